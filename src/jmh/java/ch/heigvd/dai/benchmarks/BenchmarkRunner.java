@@ -0,0 +1,59 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Entry point of the benchmarks jar.
+ *
+ * <p>Runs the <a href="https://github.com/openjdk/jmh">JMH</a> runner with the given arguments,
+ * exporting the results as JSON to {@value #DEFAULT_RESULT_FILE} unless the {@code -rf} or {@code
+ * -rff} options are given, so that the results of successive runs can be compared.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public final class BenchmarkRunner {
+
+  private static final String DEFAULT_RESULT_FORMAT = "json";
+  private static final String DEFAULT_RESULT_FILE = "jmh-result.json";
+
+  private BenchmarkRunner() {}
+
+  /**
+   * Runs the benchmarks.
+   *
+   * @param args the options of the JMH runner, see {@code -h}
+   * @throws Exception if the runner fails
+   */
+  public static void main(String[] args) throws Exception {
+    List<String> arguments = new ArrayList<>(List.of(args));
+
+    if (!arguments.contains("-rf")) {
+      arguments.addAll(0, List.of("-rf", DEFAULT_RESULT_FORMAT));
+    }
+    if (!arguments.contains("-rff")) {
+      arguments.addAll(0, List.of("-rff", DEFAULT_RESULT_FILE));
+    }
+
+    org.openjdk.jmh.Main.main(arguments.toArray(new String[0]));
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.benchmarks;
+
+import ch.heigvd.dai.utilities.BmpFile;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the parsing of a bitmap file by the {@link BmpFile} constructor.
+ *
+ * <p>With the {@link BmpFile.Backend#HEAP} backend, the whole pixel array is read; with the {@link
+ * BmpFile.Backend#MAPPED} backend, only the header is, so the latter measures the parsing of the
+ * header itself. The file is in the page cache after the first iteration, the disk is therefore not
+ * measured.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class BmpFileBenchmark {
+
+  /** Length of the pixel array of the carrier, in bytes. */
+  @Param({"1048576", "16777216"})
+  public int carrierSize;
+
+  @Param({"HEAP", "MAPPED"})
+  public BmpFile.Backend backend;
+
+  private Path directory;
+  private Path carrier;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("shadow-jmh");
+    carrier = SyntheticBmp.create(directory, carrierSize);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    SyntheticBmp.delete(directory);
+  }
+
+  @Benchmark
+  public BmpFile parse() throws IOException {
+    try (BmpFile bmpFile = new BmpFile(carrier.toString(), backend)) {
+      return bmpFile;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.benchmarks;
+
+import ch.heigvd.dai.utilities.BmpFile;
+import ch.heigvd.dai.utilities.MessageHeader;
+import ch.heigvd.dai.utilities.MessageManipulator;
+import ch.heigvd.dai.utilities.Passphrase;
+import ch.heigvd.dai.utilities.PayloadCipher;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the hiding and retrieval of a 1 MiB payload with and without {@link PayloadCipher}, to
+ * know how much the encryption adds to the embedding on a given machine.
+ *
+ * <p>The key is derived once, in the setup: its cost, which does not depend on the payload, is
+ * measured by {@link PassphraseBenchmark}.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class CipherBenchmark {
+
+  private static final int PAYLOAD_SIZE = 1 << 20;
+
+  /** Cipher of the payload, {@code raw} for none. */
+  @Param({"raw", "aes-gcm"})
+  public String cipher;
+
+  @Param({"1", "8"})
+  public int bitsPerByte;
+
+  private Path directory;
+  private BmpFile bmpFile;
+  private byte[] payload;
+  private MessageManipulator messageManipulator;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("shadow-jmh");
+    Path carrier =
+        SyntheticBmp.create(directory, (PAYLOAD_SIZE + 1024 * 1024) * BmpFile.MAX_BITS_PER_BYTE);
+    bmpFile = new BmpFile(carrier.toString());
+    payload = SyntheticBmp.payload(PAYLOAD_SIZE);
+    messageManipulator = new MessageManipulator();
+    messageManipulator.setPassphrase(new Passphrase("benchmark".toCharArray()));
+    messageManipulator.hideMessage(
+        bmpFile, new ByteArrayInputStream(payload), bitsPerByte, header());
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    bmpFile.close();
+    messageManipulator.close();
+    SyntheticBmp.delete(directory);
+  }
+
+  @Benchmark
+  public BmpFile hide() throws IOException {
+    messageManipulator.hideMessage(
+        bmpFile, new ByteArrayInputStream(payload), bitsPerByte, header());
+    return bmpFile;
+  }
+
+  @Benchmark
+  public long expose() throws IOException {
+    return messageManipulator.exposeMessage(bmpFile, OutputStream.nullOutputStream());
+  }
+
+  private MessageHeader header() {
+    MessageHeader header = new MessageHeader();
+    header.setCipher(cipher.equals("aes-gcm") ? PayloadCipher.AES_GCM : null);
+    return header;
+  }
+}
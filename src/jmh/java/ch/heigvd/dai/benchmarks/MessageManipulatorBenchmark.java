@@ -0,0 +1,109 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.benchmarks;
+
+import ch.heigvd.dai.utilities.BmpFile;
+import ch.heigvd.dai.utilities.MessageManipulator;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link MessageManipulator#hideMessage(BmpFile, byte[], int)} and {@link
+ * MessageManipulator#exposeMessage(BmpFile, byte[])} on a heap image, for every number of bits per
+ * byte and every kernel.
+ *
+ * <p>The carrier is just big enough to hold the payload with 1 bit per byte, only the pixel array
+ * is therefore measured, not the file.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class MessageManipulatorBenchmark {
+
+  /** Length of the hidden message, in bytes. */
+  @Param({"4096", "1048576"})
+  public int payloadSize;
+
+  @Param({"1", "2", "4", "8"})
+  public int bitsPerByte;
+
+  /** Kernel selected through the {@code shadow.kernel} system property. */
+  @Param({"scalar", "swar", "vector"})
+  public String kernel;
+
+  private Path directory;
+  private BmpFile bmpFile;
+  private byte[] payload;
+  private byte[] exposed;
+  private MessageManipulator messageManipulator;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("shadow-jmh");
+    Path carrier = SyntheticBmp.create(directory, payloadSize * BmpFile.MAX_BITS_PER_BYTE);
+    bmpFile = new BmpFile(carrier.toString());
+    payload = SyntheticBmp.payload(payloadSize);
+    exposed = new byte[payloadSize];
+
+    System.setProperty("shadow.kernel", kernel);
+    messageManipulator = new MessageManipulator();
+    messageManipulator.hideMessage(bmpFile, payload, bitsPerByte);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    bmpFile.close();
+    messageManipulator.close();
+    SyntheticBmp.delete(directory);
+  }
+
+  @Benchmark
+  public BmpFile hide() throws IOException {
+    messageManipulator.hideMessage(bmpFile, payload, bitsPerByte);
+    return bmpFile;
+  }
+
+  @Benchmark
+  public byte[] expose() throws IOException {
+    messageManipulator.exposeMessage(bmpFile, exposed);
+    return exposed;
+  }
+}
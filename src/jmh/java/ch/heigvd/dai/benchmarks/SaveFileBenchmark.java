@@ -0,0 +1,132 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.benchmarks;
+
+import ch.heigvd.dai.utilities.BmpFile;
+import ch.heigvd.dai.utilities.MessageManipulator;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the ways an image with a hidden message is written, as done by the {@code hide}
+ * subcommand:
+ *
+ * <ul>
+ *   <li>{@code copy}: {@link BmpFile#saveFile(String)} of a heap image to a new file;
+ *   <li>{@code inPlace}: {@link BmpFile#saveFile(String)} of a heap image to its own file;
+ *   <li>{@code mappedCopy}: {@link BmpFile#copyTo(String)} of a mapped image, the message then
+ *       being hidden directly in the copy, so the embedding is included.
+ * </ul>
+ *
+ * <p>The message is hidden again before each invocation, so that there is always a range of the
+ * pixel array to write.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class SaveFileBenchmark {
+
+  /** Length of the pixel array of the carrier, in bytes. */
+  @Param({"1048576", "16777216"})
+  public int carrierSize;
+
+  /** Length of the hidden message, in bytes. */
+  @Param({"4096", "131072"})
+  public int payloadSize;
+
+  @Param({"copy", "inPlace", "mappedCopy"})
+  public String path;
+
+  private static final int BITS_PER_BYTE = 1;
+
+  private Path directory;
+  private Path carrier;
+  private Path output;
+  private byte[] payload;
+  private MessageManipulator messageManipulator;
+  private BmpFile bmpFile;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("shadow-jmh");
+    carrier = SyntheticBmp.create(directory, carrierSize);
+    output = directory.resolve("output.bmp");
+    payload = SyntheticBmp.payload(payloadSize);
+    messageManipulator = new MessageManipulator();
+
+    switch (path) {
+      case "copy" -> bmpFile = new BmpFile(carrier.toString());
+      case "inPlace" -> {
+        Files.copy(carrier, output, StandardCopyOption.REPLACE_EXISTING);
+        bmpFile = new BmpFile(output.toString());
+      }
+      case "mappedCopy" -> bmpFile = new BmpFile(carrier.toString(), BmpFile.Backend.MAPPED);
+      default -> throw new IllegalArgumentException("Unknown save path: " + path);
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void hide() throws IOException {
+    if (!path.equals("mappedCopy")) {
+      messageManipulator.hideMessage(bmpFile, payload, BITS_PER_BYTE);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    bmpFile.close();
+    messageManipulator.close();
+    SyntheticBmp.delete(directory);
+  }
+
+  @Benchmark
+  public void save() throws IOException {
+    if (path.equals("mappedCopy")) {
+      try (BmpFile copy = bmpFile.copyTo(output.toString())) {
+        messageManipulator.hideMessage(copy, payload, BITS_PER_BYTE);
+      }
+    } else {
+      bmpFile.saveFile(output.toString());
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.benchmarks;
+
+import ch.heigvd.dai.utilities.BmpFile;
+import ch.heigvd.dai.utilities.MessageHeader;
+import ch.heigvd.dai.utilities.MessageManipulator;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the hiding and retrieval of a 1 MiB payload in the first bytes of the image and
+ * scattered over the whole image (see {@link MessageHeader#FLAG_SCATTERED}), to know how much the
+ * permutation of the blocks costs on a given machine.
+ *
+ * <p>Both layouts hide the payload after a header, so only the layout differs. The image is twice
+ * as big as needed with 1 bit per byte, so that the scattered blocks are spread over memory that
+ * the linear layout does not touch.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class ScatterBenchmark {
+
+  private static final int PAYLOAD_SIZE = 1 << 20;
+
+  /** Layout of the payload, {@code linear} or {@code scatter}. */
+  @Param({"linear", "scatter"})
+  public String layout;
+
+  @Param({"1", "8"})
+  public int bitsPerByte;
+
+  @Param({"HEAP", "MAPPED"})
+  public BmpFile.Backend backend;
+
+  private Path directory;
+  private BmpFile bmpFile;
+  private byte[] payload;
+  private MessageManipulator messageManipulator;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("shadow-jmh");
+    Path carrier = SyntheticBmp.create(directory, 2 * PAYLOAD_SIZE * BmpFile.MAX_BITS_PER_BYTE);
+    bmpFile = new BmpFile(carrier.toString(), backend, backend == BmpFile.Backend.MAPPED);
+    payload = SyntheticBmp.payload(PAYLOAD_SIZE);
+    messageManipulator = new MessageManipulator();
+    messageManipulator.hideMessage(
+        bmpFile, new ByteArrayInputStream(payload), bitsPerByte, header());
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    bmpFile.close();
+    messageManipulator.close();
+    SyntheticBmp.delete(directory);
+  }
+
+  @Benchmark
+  public BmpFile hide() throws IOException {
+    messageManipulator.hideMessage(
+        bmpFile, new ByteArrayInputStream(payload), bitsPerByte, header());
+    return bmpFile;
+  }
+
+  @Benchmark
+  public long expose() throws IOException {
+    return messageManipulator.exposeMessage(bmpFile, OutputStream.nullOutputStream());
+  }
+
+  private MessageHeader header() {
+    MessageHeader header = new MessageHeader();
+    header.setScattered(layout.equals("scatter"));
+    return header;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.benchmarks;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the wall time of a whole execution of the program, from the start of its process to its
+ * end, with the ways it can be launched:
+ *
+ * <ul>
+ *   <li>{@code jar}: the shaded jar, with {@code java -jar};
+ *   <li>{@code cds}: the shaded jar with the class-data sharing archive built along with it;
+ *   <li>{@code native}: the executable built with the {@code native} profile, which has to be
+ *       selected explicitly with {@code -p launcher=native}.
+ * </ul>
+ *
+ * <p>The jar, the archive and the executable are looked for next to the benchmarks jar, in the
+ * {@code target} directory.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 30)
+@Fork(1)
+public class StartupBenchmark {
+
+  @Param({"jar", "cds"})
+  public String launcher;
+
+  /** {@code version} only starts the program, {@code hide} also hides a small message. */
+  @Param({"version", "hide"})
+  public String command;
+
+  private static final int CARRIER_SIZE = 64 * 1024;
+  private static final int PAYLOAD_SIZE = 1024;
+
+  private Path directory;
+  private ProcessBuilder processBuilder;
+
+  @Setup
+  public void setUp() throws IOException, URISyntaxException {
+    Path benchmarksJar =
+        Path.of(StartupBenchmark.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+    Path target = benchmarksJar.getParent();
+    Path jar = target.resolve(benchmarksJar.getFileName().toString().replace("-benchmarks", ""));
+
+    List<String> processCommand = new ArrayList<>();
+    switch (launcher) {
+      case "jar", "cds" -> {
+        processCommand.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (launcher.equals("cds")) {
+          processCommand.add("-XX:SharedArchiveFile=" + target.resolve("shadow.jsa"));
+        }
+        processCommand.addAll(List.of("--add-modules", "jdk.incubator.vector", "-jar"));
+        processCommand.add(jar.toString());
+      }
+      case "native" -> processCommand.add(target.resolve("shadow").toString());
+      default -> throw new IllegalArgumentException("Unknown launcher: " + launcher);
+    }
+
+    directory = Files.createTempDirectory("shadow-jmh");
+    switch (command) {
+      case "version" -> processCommand.add("--version");
+      case "hide" -> {
+        Path carrier = SyntheticBmp.create(directory, CARRIER_SIZE);
+        Path message =
+            Files.write(directory.resolve("message.bin"), SyntheticBmp.payload(PAYLOAD_SIZE));
+        processCommand.addAll(
+            List.of(
+                "--force",
+                carrier.toString(),
+                message.toString(),
+                "hide",
+                directory.resolve("output.bmp").toString()));
+      }
+      default -> throw new IllegalArgumentException("Unknown command: " + command);
+    }
+
+    processBuilder =
+        new ProcessBuilder(processCommand)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    SyntheticBmp.delete(directory);
+  }
+
+  @Benchmark
+  public int run() throws IOException, InterruptedException {
+    int exitCode = processBuilder.start().waitFor();
+    if (exitCode != 0) {
+      throw new IllegalStateException(
+          "The program exited with code " + exitCode + ": " + processBuilder.command());
+    }
+    return exitCode;
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates bitmap images filled with random pixels, so that the benchmarks do not depend on any
+ * file.
+ *
+ * <p>The images are 24 bits per pixel and {@value #WIDTH} pixels wide, so that their rows need no
+ * padding. The pixels are generated from a fixed seed: the same size always gives the same image.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+final class SyntheticBmp {
+
+  /** Width of the generated images, in pixels. */
+  static final int WIDTH = 1024;
+
+  private static final int BYTES_PER_PIXEL = 3;
+  private static final int ROW_LENGTH = WIDTH * BYTES_PER_PIXEL;
+  private static final int FILE_HEADER_LEN = 14;
+  private static final int INFO_HEADER_LEN = 40;
+  private static final int PIXELS_PER_METER = 2835; // 72 DPI
+  private static final long SEED = 0x5AD0_5EEDL;
+
+  private SyntheticBmp() {}
+
+  /**
+   * Creates a bitmap image with a pixel array of at least the given length.
+   *
+   * @param directory the directory where the image is created
+   * @param pixelArrayLength the minimum length of the pixel array, rounded up to whole rows
+   * @return the {@link Path} of the image
+   * @throws IOException if the image cannot be written
+   */
+  static Path create(Path directory, int pixelArrayLength) throws IOException {
+    int height = Math.max(1, (pixelArrayLength + ROW_LENGTH - 1) / ROW_LENGTH);
+    int imageLength = height * ROW_LENGTH;
+    int pixelArrayOffset = FILE_HEADER_LEN + INFO_HEADER_LEN;
+
+    ByteBuffer header =
+        ByteBuffer.allocate(pixelArrayOffset)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .put((byte) 'B')
+            .put((byte) 'M')
+            .putInt(pixelArrayOffset + imageLength) // File size
+            .putInt(0) // Reserved, where the message header goes
+            .putInt(pixelArrayOffset)
+            .putInt(INFO_HEADER_LEN)
+            .putInt(WIDTH)
+            .putInt(height)
+            .putShort((short) 1) // Planes
+            .putShort((short) (BYTES_PER_PIXEL * 8))
+            .putInt(0) // No compression
+            .putInt(imageLength)
+            .putInt(PIXELS_PER_METER)
+            .putInt(PIXELS_PER_METER)
+            .putInt(0) // Colors in the palette
+            .putInt(0); // Important colors
+
+    Path path = Files.createTempFile(directory, "carrier-" + pixelArrayLength + "-", ".bmp");
+    Random random = new Random(SEED);
+    byte[] row = new byte[ROW_LENGTH];
+
+    try (OutputStream output = Files.newOutputStream(path)) {
+      output.write(header.array());
+      for (int y = 0; y < height; ++y) {
+        random.nextBytes(row);
+        output.write(row);
+      } /* for */
+    }
+
+    return path;
+  }
+
+  /**
+   * Creates random bytes to be used as a payload.
+   *
+   * @param length the number of bytes
+   * @return a {@code byte[]} with the payload
+   */
+  static byte[] payload(int length) {
+    byte[] payload = new byte[length];
+    new Random(SEED + length).nextBytes(payload);
+    return payload;
+  }
+
+  /**
+   * Deletes a directory created for the benchmarks, with the files it contains.
+   *
+   * @param directory the directory to delete
+   * @throws IOException if a file cannot be deleted
+   */
+  static void delete(Path directory) throws IOException {
+    try (var files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        Files.deleteIfExists(file);
+      } /* for */
+    }
+    Files.deleteIfExists(directory);
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.benchmarks;
+
+import ch.heigvd.dai.utilities.BmpFile;
+import ch.heigvd.dai.utilities.MessageHeader;
+import ch.heigvd.dai.utilities.MessageManipulator;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the update of a few bytes of a checksummed payload hidden in a mapped image with hiding
+ * the whole payload again, which is what had to be done before {@link
+ * MessageManipulator#updateMessage(BmpFile, long, java.io.InputStream)}.
+ *
+ * <p>The update overwrites the middle of the payload, so that its cost would grow with the payload
+ * if the checksum were computed again from the whole content.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(
+    value = 1,
+    jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class UpdateBenchmark {
+
+  private static final int UPDATE_SIZE = 256;
+
+  /** Size of the hidden payload, in bytes. */
+  @Param({"1048576", "16777216"})
+  public int payloadSize;
+
+  private Path directory;
+  private BmpFile bmpFile;
+  private byte[] payload;
+  private byte[] update;
+  private MessageManipulator messageManipulator;
+
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("shadow-jmh");
+    Path carrier = SyntheticBmp.create(directory, 2 * payloadSize);
+    bmpFile = new BmpFile(carrier.toString(), BmpFile.Backend.MAPPED, true);
+    payload = SyntheticBmp.payload(payloadSize);
+    update = SyntheticBmp.payload(UPDATE_SIZE);
+    messageManipulator = new MessageManipulator();
+    messageManipulator.hideMessage(bmpFile, new ByteArrayInputStream(payload), 4, header());
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    bmpFile.close();
+    messageManipulator.close();
+    SyntheticBmp.delete(directory);
+  }
+
+  @Benchmark
+  public long update() throws IOException {
+    return messageManipulator.updateMessage(
+        bmpFile, payloadSize / 2, new ByteArrayInputStream(update));
+  }
+
+  @Benchmark
+  public long rehide() throws IOException {
+    return messageManipulator.hideMessage(bmpFile, new ByteArrayInputStream(payload), 4, header());
+  }
+
+  private static MessageHeader header() {
+    MessageHeader header = new MessageHeader();
+    header.setChecksummed(true);
+    return header;
+  }
+}
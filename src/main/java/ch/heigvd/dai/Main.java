@@ -19,7 +19,10 @@
 package ch.heigvd.dai;
 
 import ch.heigvd.dai.commands.Root;
+import ch.heigvd.dai.server.ShadowClient;
 import java.io.File;
+import java.security.CodeSource;
+import java.util.Arrays;
 import picocli.CommandLine;
 
 /**
@@ -37,12 +40,18 @@ public class Main {
    * @param args the execution arguments as space-separated strings
    */
   public static void main(String[] args) {
+    // Forward the command to a server started with 'serve' instead of executing it
+    if (args.length >= 2 && args[0].equals("--connect")) {
+      System.exit(ShadowClient.run(args[1], Arrays.copyOfRange(args, 2, args.length)));
+    }
+
     // Example from class -
     // https://github.com/heig-vd-dai-course/heig-vd-dai-course-java-ios-practical-content-template/blob/778e1934a64f338e93613afbb31dd9e92356d7c4/src/main/java/ch/heigvd/dai/Main.java#L10
     // Define command name - source: https://stackoverflow.com/a/11159435
+    // There is no code source in a native executable, which is simply named after the program
+    CodeSource codeSource = Main.class.getProtectionDomain().getCodeSource();
     String jarFilename =
-        new File(Main.class.getProtectionDomain().getCodeSource().getLocation().getPath())
-            .getName();
+        codeSource == null ? "shadow" : new File(codeSource.getLocation().getPath()).getName();
 
     // Create root command and CommandLine
     CommandLine command = new CommandLine(new Root());
@@ -53,9 +62,8 @@ public class Main {
     int exitCode = command.execute(args);
     Long end = System.nanoTime();
 
-    if (exitCode == 0) {
-      System.out.println("Execution time: " + (end - start) / (1000 * 1000) + " ms");
-    }
+    Root root = command.getCommand();
+    root.printReport(exitCode, end - start, command.getOut(), command.getErr());
 
     System.exit(exitCode);
   }
@@ -0,0 +1,589 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.commands;
+
+import ch.heigvd.dai.exceptions.ManifestException;
+import ch.heigvd.dai.utilities.BatchManifest;
+import ch.heigvd.dai.utilities.BmpFile;
+import ch.heigvd.dai.utilities.MessageHeader;
+import ch.heigvd.dai.utilities.MessageManipulator;
+import ch.heigvd.dai.utilities.PayloadCipher;
+import ch.heigvd.dai.utilities.PayloadCodec;
+import ch.heigvd.dai.utilities.Pipeline;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import picocli.CommandLine;
+
+/**
+ * Implements the {@code batch} subcommand for executing the program on a CLI.
+ *
+ * <p>This subcommand runs many {@link Hide} and {@link Expose} jobs in a single execution, so that
+ * the start of the program is only paid once. The jobs are either read from a manifest (see {@link
+ * BatchManifest}) or built from a glob matching BMP images. Each job either runs from start to end
+ * on its own virtual thread, or goes through the stages of a {@link Pipeline} with {@code
+ * --pipeline}, so that reading, hiding and writing overlap with a bounded number of jobs in memory.
+ * For checking the usage of the subcommand, use the {@code --help} option.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@CommandLine.Command(
+    name = "batch",
+    description =
+        "Hide or expose messages for many BMP images at once. The BMP image and message parameters must not be provided.")
+public class Batch implements Callable<Integer> {
+
+  @CommandLine.ParentCommand private Root parent;
+
+  @CommandLine.Spec private CommandLine.Model.CommandSpec spec;
+
+  @CommandLine.Parameters(
+      index = "0",
+      arity = "0..1",
+      description =
+          "The manifest listing the jobs, one per line, either as CSV ('hide,carrier,message,output[,bitsPerByte]' or 'expose,carrier,message') or as JSON objects with the same fields. Must not be provided with '--glob'.",
+      converter = PathConverter.class)
+  private String filenameManifest;
+
+  @CommandLine.Option(
+      names = {"-g", "--glob"},
+      description =
+          "Run the operation on every BMP image matching the glob (e.g. 'images/*.bmp') instead of reading a manifest.",
+      converter = PathConverter.class)
+  private String glob;
+
+  @CommandLine.Option(
+      names = {"--operation"},
+      description =
+          "The operation to run on the images matching '--glob': ${COMPLETION-CANDIDATES}.")
+  private BatchManifest.Operation operation;
+
+  @CommandLine.Option(
+      names = {"--message"},
+      description = "The file to hide inside every image matching '--glob'.",
+      converter = PathConverter.class)
+  private String filenameMessage;
+
+  @CommandLine.Option(
+      names = {"-o", "--output-dir"},
+      description =
+          "The directory where the results of '--glob' are written. Hidden messages are written in images with the same names, exposed messages in files with the '.bin' extension.",
+      converter = PathConverter.class)
+  private String outputDirectory;
+
+  @CommandLine.Option(
+      names = {"-b", "--bits-per-byte"},
+      description =
+          "Number of bits to hide per byte of information of the BMP images, for the jobs not specifying it.",
+      defaultValue = "1")
+  private int bitsPerByte;
+
+  @CommandLine.Option(
+      names = {"-z", "--compress"},
+      description = "Compress the messages with DEFLATE before hiding them.")
+  private boolean compress;
+
+  @CommandLine.Option(
+      names = {"--checksum"},
+      description = "Store a checksum of the messages when hiding them.")
+  private boolean checksum;
+
+  @CommandLine.Option(
+      names = {"--scatter"},
+      description = "Scatter the messages over the whole images when hiding them.")
+  private boolean scatter;
+
+  @CommandLine.Option(
+      names = {"-c", "--concurrency"},
+      description =
+          "Maximum number of jobs running at the same time. Defaults to the number of processors.")
+  private int concurrency = Runtime.getRuntime().availableProcessors();
+
+  @CommandLine.Option(
+      names = {"--pipeline"},
+      description =
+          "Run the jobs through separate stages reading the files, hiding or exposing the messages and writing the results, connected by bounded queues, instead of running each job from start to end.")
+  private boolean pipeline;
+
+  @CommandLine.Option(
+      names = {"--read-threads"},
+      description =
+          "Number of virtual threads reading the images and the messages with '--pipeline'. Defaults to 4.",
+      defaultValue = "4")
+  private int readThreads;
+
+  @CommandLine.Option(
+      names = {"--cpu-threads"},
+      description =
+          "Number of threads hiding or exposing the messages with '--pipeline'. Defaults to the number of processors.")
+  private int cpuThreads = Runtime.getRuntime().availableProcessors();
+
+  @CommandLine.Option(
+      names = {"--write-threads"},
+      description =
+          "Number of virtual threads writing the images and the messages with '--pipeline'. Defaults to 4.",
+      defaultValue = "4")
+  private int writeThreads;
+
+  @CommandLine.Option(
+      names = {"--queue-capacity"},
+      description =
+          "Number of jobs waiting before each stage of '--pipeline', which bounds the memory used. Defaults to 4.",
+      defaultValue = "4")
+  private int queueCapacity;
+
+  /** State of a job going through the stages of {@code --pipeline}. */
+  private static class PipelineJob {
+    private final int index;
+    private final BatchManifest.Job job;
+    private long start;
+    private BmpFile bmpFile;
+    private byte[] message;
+
+    PipelineJob(int index, BatchManifest.Job job) {
+      this.index = index;
+      this.job = job;
+    }
+  }
+
+  /**
+   * Call function that contains the logic of the subcommand.
+   *
+   * <p>This function reads the jobs, runs them and displays the result of each job followed by a
+   * summary. A job failing does not stop the other jobs.
+   *
+   * @return exit code 1 if there was an error or if a job failed, 0 otherwise
+   */
+  @Override
+  public Integer call() {
+    PrintWriter out = spec.commandLine().getOut();
+    PrintWriter err = spec.commandLine().getErr();
+
+    if (parent.getFilenameBmpImage() != null) {
+      err.println(
+          "The BMP image and the message file cannot be provided for a batch.\n"
+              + "Please list them in a manifest or use '--glob'.");
+      return 1;
+    }
+
+    if ((filenameManifest == null) == (glob == null)) {
+      err.println("Either a manifest or '--glob' must be provided.");
+      return 1;
+    }
+
+    if (concurrency < 1) {
+      err.println("--concurrency needs to be a positive number");
+      return 1;
+    }
+
+    if (pipeline) {
+      if (readThreads < 1 || cpuThreads < 1 || writeThreads < 1 || queueCapacity < 1) {
+        err.println(
+            "--read-threads, --cpu-threads, --write-threads and --queue-capacity need to be positive numbers");
+        return 1;
+      }
+
+      if (spec.commandLine().getParseResult().hasMatchedOption("--concurrency")
+          || parent.getBackend() == BmpFile.Backend.MAPPED) {
+        err.println(
+            "--concurrency and --memory-mapped cannot be used with --pipeline.\n"
+                + "Please set the threads of each stage instead.");
+        return 1;
+      }
+    }
+
+    List<BatchManifest.Job> jobs;
+    try {
+      jobs = readJobs();
+    } catch (IOException | IllegalArgumentException e) {
+      err.println("Error while reading the jobs! Exception message:\n" + e.getMessage());
+      return 1;
+    }
+
+    if (jobs.isEmpty()) {
+      err.println("No job to run.");
+      return 1;
+    }
+
+    if (pipeline) {
+      return runPipeline(jobs);
+    }
+
+    List<Future<String>> results = new ArrayList<>(jobs.size());
+    long[] bytes = new long[jobs.size()];
+    long[] durations = new long[jobs.size()];
+    int failures = 0;
+    long start = System.nanoTime();
+
+    // The jobs mostly wait on the disk, a virtual thread is cheap enough to be used for each one
+    Semaphore permits = new Semaphore(concurrency);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < jobs.size(); ++i) {
+        BatchManifest.Job job = jobs.get(i);
+        int index = i;
+        results.add(
+            executor.submit(
+                () -> {
+                  permits.acquire();
+                  long jobStart = System.nanoTime();
+                  try {
+                    return runJob(job, bytes, index);
+                  } finally {
+                    durations[index] = (System.nanoTime() - jobStart) / (1000 * 1000);
+                    permits.release();
+                  }
+                }));
+      } /* for */
+
+      // The results are displayed in the order of the jobs
+      for (int i = 0; i < jobs.size(); ++i) {
+        BatchManifest.Job job = jobs.get(i);
+        String error;
+        try {
+          error = results.get(i).get();
+        } catch (ExecutionException e) {
+          error = e.getCause().toString();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          executor.shutdownNow();
+          err.println("Batch interrupted.");
+          return 1;
+        }
+
+        printResult(job, error, bytes[i], durations[i]);
+        if (error != null) {
+          ++failures;
+        } /* if */
+      } /* for */
+    }
+
+    printSummary(jobs.size(), failures, bytes, start);
+    return failures == 0 ? 0 : 1;
+  }
+
+  /**
+   * Runs the jobs through a {@link Pipeline} of three stages: reading the images and the messages
+   * on virtual threads, hiding or exposing the messages on platform threads and writing the results
+   * on virtual threads. The jobs go through the same checks as when they are run by {@link Hide}
+   * and {@link Expose}, but are processed in memory, the images being loaded (see {@link
+   * BmpFile.Backend#HEAP}) by the first stage.
+   *
+   * @param jobs the jobs to run
+   * @return exit code 1 if there was an error or if a job failed, 0 otherwise
+   */
+  private int runPipeline(List<BatchManifest.Job> jobs) {
+    PrintWriter out = spec.commandLine().getOut();
+    PrintWriter err = spec.commandLine().getErr();
+
+    String[] errors = new String[jobs.size()];
+    long[] bytes = new long[jobs.size()];
+    long[] durations = new long[jobs.size()];
+
+    Pipeline<PipelineJob> stages =
+        new Pipeline<PipelineJob>(
+                queueCapacity,
+                (item, error) -> {
+                  Exception failure = error;
+                  try {
+                    if (item.bmpFile != null) {
+                      item.bmpFile.close();
+                    } /* if */
+                  } catch (IOException e) {
+                    failure = failure == null ? e : failure;
+                  }
+
+                  if (failure == null) {
+                    bytes[item.index] = item.message.length;
+                  } else {
+                    errors[item.index] =
+                        failure.getMessage() != null ? failure.getMessage() : failure.toString();
+                  } /* if */
+                  durations[item.index] = (System.nanoTime() - item.start) / (1000 * 1000);
+                  item.bmpFile = null;
+                  item.message = null;
+                })
+            .addStage("read", readThreads, true, this::readStage)
+            .addStage("cpu", cpuThreads, false, this::processStage)
+            .addStage("write", writeThreads, true, this::writeStage);
+
+    List<PipelineJob> items = new ArrayList<>(jobs.size());
+    for (int i = 0; i < jobs.size(); ++i) {
+      items.add(new PipelineJob(i, jobs.get(i)));
+    } /* for */
+
+    long start = System.nanoTime();
+    List<Pipeline.StageReport> reports;
+    try {
+      reports = stages.run(items.iterator());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      err.println("Batch interrupted.");
+      return 1;
+    }
+    long elapsed = System.nanoTime() - start;
+
+    // The results are displayed in the order of the jobs
+    int failures = 0;
+    for (int i = 0; i < jobs.size(); ++i) {
+      printResult(jobs.get(i), errors[i], bytes[i], durations[i]);
+      if (errors[i] != null) {
+        ++failures;
+      } /* if */
+    } /* for */
+
+    printSummary(jobs.size(), failures, bytes, start);
+    for (Pipeline.StageReport report : reports) {
+      out.printf(
+          "%-5s stage: %d threads, %d jobs, %.0f%% busy, %.0f%% waiting for jobs, %.0f%% blocked by the next stage%n",
+          report.name(),
+          report.threads(),
+          report.items(),
+          100 * report.utilisation(elapsed),
+          100.0 * report.idleNanos() / ((double) elapsed * report.threads()),
+          100.0 * report.blockedNanos() / ((double) elapsed * report.threads()));
+    } /* for */
+    out.printf("At most %d jobs in memory at once%n", stages.getMaxItemsInFlight());
+
+    return failures == 0 ? 0 : 1;
+  }
+
+  /**
+   * First stage of {@code --pipeline}: checks the paths of a job and loads its image, and its
+   * message when hiding.
+   *
+   * @param item the {@link PipelineJob} to read
+   * @throws Exception if the job cannot be run
+   */
+  private void readStage(PipelineJob item) throws Exception {
+    item.start = System.nanoTime();
+    BatchManifest.Job job = item.job;
+    Path output = job.operation() == BatchManifest.Operation.HIDE ? job.output() : job.message();
+
+    if (parent.forceDisabled() && Files.exists(output)) {
+      throw new IllegalArgumentException(
+          "A file already exists on the output path provided.\n"
+              + "If you are sure you want to overwrite it, enable the '--force' flag.");
+    } /* if */
+
+    item.bmpFile = new BmpFile(job.carrier().toString(), BmpFile.Backend.HEAP);
+    if (job.operation() == BatchManifest.Operation.HIDE) {
+      if (parent.forceDisabled() && item.bmpFile.hasMessage()) {
+        throw new IllegalArgumentException(
+            "BMP file provided already has a message hidden inside.\n"
+                + "If you are sure you want to overwrite it, enable the '--force' flag.");
+      } /* if */
+      item.message = Files.readAllBytes(job.message());
+    } else if (!item.bmpFile.hasMessage()) {
+      throw new IllegalArgumentException(
+          "BMP file provided does not have a message hidden inside.\n"
+              + "Please provide a path to a BMP file containing a message.");
+    } /* if */
+  }
+
+  /**
+   * Second stage of {@code --pipeline}: hides the message in the loaded image, or exposes it from
+   * the loaded image, with the options of the batch.
+   *
+   * @param item the {@link PipelineJob} to process
+   * @throws Exception if the message cannot be hidden or exposed
+   */
+  private void processStage(PipelineJob item) throws Exception {
+    BatchManifest.Job job = item.job;
+    try (MessageManipulator messageManipulator = new MessageManipulator()) {
+      messageManipulator.setPassphrase(parent.getPassphrase());
+
+      if (job.operation() == BatchManifest.Operation.EXPOSE) {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        messageManipulator.exposeMessage(item.bmpFile, message);
+        item.message = message.toByteArray();
+        return;
+      } /* if */
+
+      int bits = job.bitsPerByte() == 0 ? bitsPerByte : job.bitsPerByte();
+      MessageHeader header = new MessageHeader();
+      header.setCodec(compress ? PayloadCodec.DEFLATE : null);
+      header.setCipher(parent.getPassphrase() != null ? PayloadCipher.AES_GCM : null);
+      header.setChecksummed(checksum);
+      header.setScattered(scatter);
+
+      InputStream message = new ByteArrayInputStream(item.message);
+      if (header.isCompressed()
+          || header.isEncrypted()
+          || header.isChecksummed()
+          || header.isScattered()
+          || item.message.length > BmpFile.MAX_MESSAGE_LENGTH) {
+        messageManipulator.hideMessage(item.bmpFile, message, bits, header);
+      } else {
+        messageManipulator.hideMessage(item.bmpFile, message, bits);
+      } /* if */
+    }
+  }
+
+  /**
+   * Last stage of {@code --pipeline}: writes the image with the hidden message, or the exposed
+   * message.
+   *
+   * @param item the {@link PipelineJob} to write
+   * @throws Exception if the result cannot be written
+   */
+  private void writeStage(PipelineJob item) throws Exception {
+    BatchManifest.Job job = item.job;
+    if (job.operation() == BatchManifest.Operation.HIDE) {
+      item.bmpFile.saveFile(job.output().toString());
+    } else {
+      Files.write(job.message(), item.message);
+    } /* if */
+  }
+
+  /**
+   * Prints the result of a job.
+   *
+   * @param job the job
+   * @param error the error message of the job, or {@code null} if it succeeded
+   * @param bytes the size of the message of the job
+   * @param duration the duration of the job, in milliseconds
+   */
+  private void printResult(BatchManifest.Job job, String error, long bytes, long duration) {
+    PrintWriter out = spec.commandLine().getOut();
+    if (error == null) {
+      out.printf(
+          "[OK]   #%d %s %s (%d bytes, %d ms)%n",
+          job.line(), job.operation().name().toLowerCase(), job.carrier(), bytes, duration);
+    } else {
+      out.printf(
+          "[FAIL] #%d %s %s: %s%n",
+          job.line(),
+          job.operation().name().toLowerCase(),
+          job.carrier(),
+          error.strip().replace('\n', ' '));
+    } /* if */
+  }
+
+  /**
+   * Prints the summary of the batch.
+   *
+   * @param jobs the number of jobs
+   * @param failures the number of failed jobs
+   * @param bytes the size of the message of each job
+   * @param start the start of the batch, from {@link System#nanoTime()}
+   */
+  private void printSummary(int jobs, int failures, long[] bytes, long start) {
+    long elapsed = Math.max(1, (System.nanoTime() - start) / (1000 * 1000));
+    long total = 0;
+    for (long b : bytes) {
+      total += b;
+    } /* for */
+
+    spec.commandLine()
+        .getOut()
+        .printf(
+            "%d jobs, %d failed, %.2f MB in %d ms (%.2f MB/s)%n",
+            jobs, failures, total / 1e6, elapsed, total / 1e3 / elapsed);
+  }
+
+  private List<BatchManifest.Job> readJobs() throws IOException, ManifestException {
+    if (filenameManifest != null) {
+      if (operation != null || filenameMessage != null || outputDirectory != null) {
+        throw new IllegalArgumentException(
+            "'--operation', '--message' and '--output-dir' can only be used with '--glob'.");
+      }
+      return BatchManifest.read(Paths.get(filenameManifest));
+    }
+
+    if (operation == null || outputDirectory == null) {
+      throw new IllegalArgumentException(
+          "'--operation' and '--output-dir' must be provided with '--glob'.");
+    }
+
+    if ((operation == BatchManifest.Operation.HIDE) != (filenameMessage != null)) {
+      throw new IllegalArgumentException(
+          "'--message' must be provided when hiding, and only when hiding.");
+    }
+
+    Path directory = Paths.get(outputDirectory);
+    Files.createDirectories(directory);
+
+    return BatchManifest.fromGlob(
+        glob, operation, filenameMessage == null ? null : Paths.get(filenameMessage), directory);
+  }
+
+  /**
+   * Runs a job with its own {@link Root} command, so that the jobs go through the same checks as
+   * when they are run one by one.
+   *
+   * @return {@code null} if the job succeeded, the error message otherwise
+   */
+  private String runJob(BatchManifest.Job job, long[] bytes, int index) throws IOException {
+    List<String> args = new ArrayList<>();
+    args.add(job.carrier().toString());
+    args.add(job.message().toString());
+    if (!parent.forceDisabled()) {
+      args.add("--force");
+    }
+    if (parent.getBackend() == BmpFile.Backend.MAPPED) {
+      args.add("--memory-mapped");
+    }
+
+    if (job.operation() == BatchManifest.Operation.HIDE) {
+      args.add("hide");
+      args.add(job.output().toString());
+      args.add("--bits-per-byte");
+      args.add(String.valueOf(job.bitsPerByte() == 0 ? bitsPerByte : job.bitsPerByte()));
+      if (compress) {
+        args.add("--compress");
+      }
+      if (checksum) {
+        args.add("--checksum");
+      }
+      if (scatter) {
+        args.add("--scatter");
+      }
+    } else {
+      args.add("expose");
+    }
+
+    StringWriter error = new StringWriter();
+    Root root = new Root();
+    root.inheritPassphrase(parent.getPassphrase());
+    CommandLine command = new CommandLine(root);
+    command.setOut(new PrintWriter(new StringWriter())).setErr(new PrintWriter(error, true));
+
+    if (command.execute(args.toArray(new String[0])) != 0) {
+      return error.toString();
+    }
+
+    bytes[index] = Files.size(job.message());
+    return null;
+  }
+}
@@ -20,14 +20,26 @@ package ch.heigvd.dai.commands;
 
 import ch.heigvd.dai.utilities.BmpFile;
 import ch.heigvd.dai.utilities.FileManipulator;
+import ch.heigvd.dai.utilities.MessageHeader;
 import ch.heigvd.dai.utilities.MessageManipulator;
+import ch.heigvd.dai.utilities.ShardManipulator;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
 import picocli.CommandLine;
 
 /**
- * Implements the {@code hide} subcommand for executing the program on a CLI.
+ * Implements the {@code expose} subcommand for executing the program on a CLI.
  *
  * <p>This class defines the parameters and options that are only specific for this subcommand. For
  * checking the usage of the subcommand, use the {@code --help} option.
@@ -42,25 +54,72 @@ public class Expose implements Callable<Integer> {
 
   @CommandLine.ParentCommand private Root parent;
 
+  @CommandLine.Spec private CommandLine.Model.CommandSpec spec;
+
+  @CommandLine.Option(
+      names = {"-t", "--threads"},
+      description =
+          "Number of threads used to expose the content. Only big contents are split between threads. Defaults to 1.",
+      defaultValue = "1")
+  private int threads;
+
+  @CommandLine.Option(
+      names = {"-s", "--shard"},
+      description =
+          "Another BMP image carrying a part of a content split across images, in any order. Can be repeated.",
+      converter = PathConverter.class)
+  private List<String> shards = new ArrayList<>();
+
+  @CommandLine.Option(
+      names = {"--resume"},
+      description =
+          "Only write the parts of the content carried by the images provided into the existing output file, e.g. to complete it once failing shards have been fixed.")
+  private boolean resume;
+
+  @CommandLine.Option(
+      names = {"-n", "--name"},
+      description =
+          "Name of the file to expose when several files are hidden together in the BMP image. Only this file is read from the image.")
+  private String name;
+
   /**
    * Call function that contains the logic of the subcommand.
    *
    * <p>This function performs the multiple input validation checks and outputs an exit code
-   * accordingly. An error message is displayed to explain why the command failed.
+   * accordingly. An error message is displayed on the error stream of the command to explain why
+   * the command failed.
    *
    * @return exit code 1 if there was an error, 0 otherwise
    */
   @Override
   public Integer call() {
-    if (Files.exists(Paths.get(parent.getFilenameMessage()))) {
+    parent.requireFilenames(spec.commandLine());
+    PrintWriter err = spec.commandLine().getErr();
+
+    if (threads < 1) {
+      err.println("--threads needs to be a positive number");
+      return 1;
+    }
+
+    if (name != null && (!shards.isEmpty() || resume)) {
+      err.println("--name cannot be used with --shard or --resume");
+      return 1;
+    }
+
+    if (!shards.isEmpty() || resume) {
+      return exposeShards();
+    }
+
+    if (!parent.isMessageOnStandardStream()
+        && Files.exists(Paths.get(parent.getFilenameMessage()))) {
       if (Files.isDirectory(Paths.get(parent.getFilenameMessage()))) {
-        System.err.println(
+        err.println(
             "The path for the message output is a directory.\n"
                 + "Please provide a different path.");
         return 1;
       }
       if (parent.forceDisabled()) {
-        System.err.println(
+        err.println(
             "A file already exists on the output path provided.\n"
                 + "If you are sure you want to overwrite that file, enable the '--force' flag.");
         return 1;
@@ -68,30 +127,158 @@ public class Expose implements Callable<Integer> {
     }
 
     if (!parent.isBmpFileValid()) {
-      System.err.println(
+      err.println(
           "BMP file provided either does not exist or is a directory.\n"
               + "Please provide a path to a valid BMP file.");
       return 1;
     }
 
-    try {
-      BmpFile bmpFile = new BmpFile(parent.getFilenameBmpImage());
-
+    try (BmpFile bmpFile = new BmpFile(parent.getFilenameBmpImage(), parent.getBackend())) {
       if (!bmpFile.hasMessage()) {
-        System.err.println(
+        err.println(
             "BMP file provided does not have a message hidden inside.\n"
                 + "Please provide a path to a BMP file containing a message.");
         return 1;
       }
 
-      byte[] message = new byte[bmpFile.getMessageLength()];
-      FileManipulator fileManipulator = new FileManipulator(parent.getFilenameMessage(), true);
-      MessageManipulator messageManipulator = new MessageManipulator();
+      // The message is written next to the output and only replaces it once it has been checked,
+      // so that a wrong passphrase or a corrupted image leaves nothing behind
+      Path outputPath =
+          parent.isMessageOnStandardStream() ? null : Paths.get(parent.getFilenameMessage());
+      Path partialPath = outputPath == null ? null : getPartialPath(outputPath);
+      FileManipulator fileManipulator =
+          new FileManipulator(
+              partialPath == null ? parent.getFilenameMessage() : partialPath.toString(), true);
+
+      // The message is streamed, it is never entirely held in memory
+      try {
+        try (OutputStream message = fileManipulator.openOutputStream();
+            MessageManipulator messageManipulator = new MessageManipulator(threads)) {
+          messageManipulator.setPassphrase(parent.getPassphrase());
+          if (name != null) {
+            messageManipulator.exposeEntry(bmpFile, name, message);
+          } else {
+            messageManipulator.exposeMessage(bmpFile, message);
+          }
+        }
+
+        if (partialPath != null) {
+          Files.move(
+              partialPath,
+              outputPath,
+              StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+        }
+      } finally {
+        if (partialPath != null) {
+          Files.deleteIfExists(partialPath);
+        }
+      }
+    } catch (Exception e) {
+      err.println("Error while exposing message! Exception message:\n" + e.getMessage());
+      return 1;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Returns a path next to the output file, where the message is written until it is complete.
+   *
+   * @param outputPath the {@link Path} of the output file
+   * @return a hidden {@link Path} in the same directory, so that it can be moved atomically
+   */
+  private static Path getPartialPath(Path outputPath) {
+    String suffix = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    return outputPath.resolveSibling("." + outputPath.getFileName() + "." + suffix + ".part");
+  }
+
+  /**
+   * Exposes the content split across the BMP image provided and the images of {@code --shard}.
+   *
+   * <p>The shards are exposed concurrently and written at their offset in the output file. When a
+   * shard fails, the other ones are still written, so that only the failing shards need to be
+   * exposed again with {@code --resume}.
+   *
+   * @return exit code 1 if there was an error, 0 otherwise
+   */
+  private int exposeShards() {
+    PrintWriter err = spec.commandLine().getErr();
+
+    if (parent.isMessageOnStandardStream()) {
+      err.println(
+          "The content cannot be written to the standard output when it is split across images.\n"
+              + "Please provide a path to a file.");
+      return 1;
+    }
+
+    Path outputPath = Paths.get(parent.getFilenameMessage());
+    if (Files.isDirectory(outputPath)) {
+      err.println(
+          "The path for the message output is a directory.\n" + "Please provide a different path.");
+      return 1;
+    }
+
+    if (resume && !Files.exists(outputPath)) {
+      err.println(
+          "The message output to resume does not exist.\n"
+              + "Please expose all the shards without '--resume' first.");
+      return 1;
+    }
+
+    if (!resume && parent.forceDisabled() && Files.exists(outputPath)) {
+      err.println(
+          "A file already exists on the output path provided.\n"
+              + "If you are sure you want to overwrite that file, enable the '--force' flag.");
+      return 1;
+    }
+
+    List<String> shardPaths = new ArrayList<>();
+    shardPaths.add(parent.getFilenameBmpImage());
+    shardPaths.addAll(shards);
+    for (String shardPath : shardPaths) {
+      if (!Files.exists(Paths.get(shardPath)) || Files.isDirectory(Paths.get(shardPath))) {
+        err.println(
+            "BMP file "
+                + shardPath
+                + " either does not exist or is a directory.\n"
+                + "Please provide a path to a valid BMP file.");
+        return 1;
+      }
+    }
+
+    try (MessageManipulator messageManipulator = new MessageManipulator(threads)) {
+      messageManipulator.setPassphrase(parent.getPassphrase());
+      ShardManipulator shardManipulator = new ShardManipulator(messageManipulator);
+      MessageHeader[] headers = shardManipulator.readShardHeaders(shardPaths, !resume);
 
-      messageManipulator.exposeMessage(bmpFile, message);
-      fileManipulator.writeBytesToFile(message);
+      Map<String, Exception> failures;
+      try (FileChannel output =
+          resume
+              ? FileChannel.open(outputPath, StandardOpenOption.WRITE)
+              : FileChannel.open(
+                  outputPath,
+                  StandardOpenOption.CREATE,
+                  StandardOpenOption.WRITE,
+                  StandardOpenOption.TRUNCATE_EXISTING)) {
+        failures = shardManipulator.exposeShards(shardPaths, headers, parent.getBackend(), output);
+      }
+
+      if (!failures.isEmpty()) {
+        for (Map.Entry<String, Exception> failure : failures.entrySet()) {
+          err.println(
+              "Error while exposing the shard of "
+                  + failure.getKey()
+                  + "! Exception message:\n"
+                  + failure.getValue().getMessage());
+        }
+        err.println(
+            "The other shards were written to the output.\n"
+                + "Once fixed, expose only the failing shards with the '--resume' flag.");
+        return 1;
+      }
     } catch (Exception e) {
-      System.err.println("Error while hiding message! Exception message:\n" + e.getMessage());
+      err.println("Error while exposing message! Exception message:\n" + e.getMessage());
       return 1;
     }
 
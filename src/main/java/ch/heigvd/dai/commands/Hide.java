@@ -19,11 +19,27 @@
 package ch.heigvd.dai.commands;
 
 import ch.heigvd.dai.utilities.BmpFile;
+import ch.heigvd.dai.utilities.ContainerIndex;
 import ch.heigvd.dai.utilities.FileManipulator;
+import ch.heigvd.dai.utilities.MessageHeader;
 import ch.heigvd.dai.utilities.MessageManipulator;
+import ch.heigvd.dai.utilities.PayloadCipher;
+import ch.heigvd.dai.utilities.PayloadCodec;
+import ch.heigvd.dai.utilities.ShardManipulator;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadLocalRandom;
 import picocli.CommandLine;
 
 /**
@@ -42,79 +58,513 @@ public class Hide implements Callable<Integer> {
 
   @CommandLine.ParentCommand private Root parent;
 
+  @CommandLine.Spec private CommandLine.Model.CommandSpec spec;
+
+  private static final String DEFAULT_FILENAME_OUTPUT = "output.bmp";
+
   @CommandLine.Parameters(
       index = "0",
+      arity = "0..1",
       description =
-          "The filename where the image with the hidden content will be stored. Defaults to './output.bmp'.",
-      defaultValue = "output.bmp")
+          "The filename where the image with the hidden content will be stored. Defaults to './"
+              + DEFAULT_FILENAME_OUTPUT
+              + "'. Must not be provided with '--in-place'. With '--shard', the directory where the images are written with their own names.",
+      converter = PathConverter.class)
   private String filenameOutput;
 
   @CommandLine.Option(
       names = {"-b", "--bits-per-byte"},
       description =
-          "Number of bits to hide per byte of information of the BMP image. Note that the original bits of the image will be overwritten and it may be more noticeable that something is hidden within the image.",
+          "Number of bits to hide per byte of information of the BMP image. Using more bits per byte increases the size of the message that can be hidden and reduces the portion of the image that is modified. Note that the original bits of the image will be overwritten and it may be more noticeable that something is hidden within the image.",
       defaultValue = "1")
   private int bitsPerByte;
 
+  @CommandLine.Option(
+      names = {"-i", "--in-place"},
+      description =
+          "Hide the content directly inside the BMP image provided instead of creating a new image. Only the parts of the image carrying the content are written.")
+  private boolean inPlace;
+
+  @CommandLine.Option(
+      names = {"-t", "--threads"},
+      description =
+          "Number of threads used to hide the content. Only big contents are split between threads. Defaults to 1.",
+      defaultValue = "1")
+  private int threads;
+
+  @CommandLine.Option(
+      names = {"-s", "--shard"},
+      description =
+          "Another BMP image to split the content across, after the BMP image provided before the subcommand. Can be repeated, the content being split in proportion to the size of the images.",
+      converter = PathConverter.class)
+  private List<String> shards = new ArrayList<>();
+
+  @CommandLine.Option(
+      names = {"--entry"},
+      description =
+          "Another file to hide along with the message file, in a container from which each file can be exposed alone by its name (the name of the file, without its directory). Can be repeated.",
+      converter = PathConverter.class)
+  private List<String> entries = new ArrayList<>();
+
+  @CommandLine.Option(
+      names = {"-z", "--compress"},
+      description =
+          "Compress the content with DEFLATE before hiding it, so that fewer bytes of the image are modified and bigger contents fit. The content is decompressed automatically when it is exposed.")
+  private boolean compress;
+
+  @CommandLine.Option(
+      names = {"--checksum"},
+      description =
+          "Store a checksum of the content, which is checked when the content is exposed to detect a corrupted image. The content is then preceded by a header that the versions of the program before checksums were added do not know.")
+  private boolean checksum;
+
+  @CommandLine.Option(
+      names = {"--scatter"},
+      description =
+          "Scatter the content over the whole BMP image, in blocks of up to 4 KiB taken in a random order, instead of hiding it in the first bytes of the image. The content is gathered automatically when it is exposed.")
+  private boolean scatter;
+
+  /** Hides the content inside a bitmap image, which is then written by {@link #hideInto}. */
+  @FunctionalInterface
+  private interface ContentHider {
+    void hide(BmpFile bmpFile) throws IOException;
+  }
+
   /**
    * Call function that contains the logic of the subcommand.
    *
    * <p>This function performs the multiple input validation checks and outputs an exit code
-   * accordingly. An error message is displayed to explain why the command failed.
+   * accordingly. An error message is displayed on the error stream of the command to explain why
+   * the command failed.
    *
    * @return exit code 1 if there was an error, 0 otherwise
    */
   @Override
   public Integer call() {
+    parent.requireFilenames(spec.commandLine());
+    PrintWriter err = spec.commandLine().getErr();
+
     if (!isPowerOfTwo(bitsPerByte) || bitsPerByte < 1 || bitsPerByte > 8) {
-      System.err.println("--bits-per-byte needs to be a power of 2 between 1 and 8 inclusively");
+      err.println("--bits-per-byte needs to be a power of 2 between 1 and 8 inclusively");
+      return 1;
+    }
+
+    if (threads < 1) {
+      err.println("--threads needs to be a positive number");
+      return 1;
+    }
+
+    if (inPlace && filenameOutput != null) {
+      err.println(
+          "An output path cannot be provided when hiding in place.\n"
+              + "Please remove either the output path or the '--in-place' flag.");
+      return 1;
+    }
+
+    if (!shards.isEmpty() && !entries.isEmpty()) {
+      err.println("--shard and --entry cannot be used together");
       return 1;
     }
 
-    if (parent.forceDisabled() && Files.exists(Paths.get(filenameOutput))) {
-      System.err.println(
+    if (!shards.isEmpty()) {
+      return hideShards();
+    }
+
+    if (!entries.isEmpty()) {
+      return hideContainer();
+    }
+
+    String outputPath = inPlace ? parent.getFilenameBmpImage() : filenameOutput;
+    if (outputPath == null) {
+      outputPath = DEFAULT_FILENAME_OUTPUT;
+    }
+
+    if (!inPlace && parent.forceDisabled() && Files.exists(Paths.get(outputPath))) {
+      err.println(
           "A file already exists on the output path provided.\n"
               + "If you are sure you want to overwrite it, enable the '--force' flag.");
       return 1;
     }
 
     if (!parent.isMessageFileValid()) {
-      System.err.println(
+      err.println(
           "Message file either does not exist or is a directory.\n"
               + "Please provide a path to a valid file.");
       return 1;
     }
 
     if (!parent.isBmpFileValid()) {
-      System.err.println(
+      err.println(
           "BMP file provided either does not exist or is a directory.\n"
               + "Please provide a path to a valid BMP file.");
       return 1;
     }
 
+    // When hiding in place, a mapped image is directly modified
+    try (BmpFile bmpFile =
+        new BmpFile(parent.getFilenameBmpImage(), parent.getBackend(), inPlace)) {
+      if (parent.forceDisabled() && bmpFile.hasMessage()) {
+        err.println(
+            "BMP file provided already has a message hidden inside.\n"
+                + "If you are sure you want to overwrite it, enable the '--force' flag.");
+        return 1;
+      }
+
+      if (bmpFile.getCarrierLength() == 0) {
+        err.println(
+            "The pixels of the BMP file provided have no color channel to hide a message in.\n"
+                + "Please provide an uncompressed BMP file with 24 or 32 bits per pixel.");
+        return 1;
+      }
+
+      FileManipulator fileManipulator = new FileManipulator(parent.getFilenameMessage());
+
+      long messageSize =
+          fileManipulator.isStandardStream()
+              ? -1
+              : Files.size(Paths.get(parent.getFilenameMessage()));
+
+      // Only the message header can hold a length that does not fit in the BMP header
+      MessageHeader header = describeContent(new MessageHeader());
+      boolean withHeader =
+          header.isCompressed()
+              || header.isEncrypted()
+              || header.isChecksummed()
+              || header.isScattered()
+              || messageSize > BmpFile.MAX_MESSAGE_LENGTH;
+
+      // Fail before writing anything if the size of the message is already known, the size of a
+      // compressed message is only known once it has been hidden
+      if (!compress
+          && messageSize >= 0
+          && messageSize
+              > (withHeader
+                  ? MessageManipulator.getMessageCapacity(bmpFile, bitsPerByte, header)
+                  : MessageManipulator.getMessageCapacity(bmpFile, bitsPerByte))) {
+        err.println(
+            "The message file is too big to be hidden inside the BMP file provided.\n"
+                + "Please provide a bigger BMP file or use more bits per byte.");
+        return 1;
+      }
+
+      // The message is streamed, it is never entirely loaded in memory
+      try (InputStream message = fileManipulator.openInputStream();
+          MessageManipulator messageManipulator = new MessageManipulator(threads)) {
+        messageManipulator.setPassphrase(parent.getPassphrase());
+        hideInto(
+            bmpFile,
+            outputPath,
+            image -> {
+              if (withHeader) {
+                messageManipulator.hideMessage(image, message, bitsPerByte, header);
+              } else {
+                messageManipulator.hideMessage(image, message, bitsPerByte);
+              }
+            });
+      }
+    } catch (Exception e) {
+      err.println("Error while hiding message! Exception message:\n" + e.getMessage());
+      return 1;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Splits the content across the BMP image provided and the images of {@code --shard}.
+   *
+   * <p>Every image is checked before the first one is written, so that the content is not partially
+   * hidden because of an image that is too small.
+   *
+   * @return exit code 1 if there was an error, 0 otherwise
+   */
+  private int hideShards() {
+    PrintWriter err = spec.commandLine().getErr();
+
+    if (parent.isMessageOnStandardStream()) {
+      err.println(
+          "The content cannot be read from the standard input when it is split across images.\n"
+              + "Please provide a path to a file.");
+      return 1;
+    }
+
+    if (!parent.isMessageFileValid()) {
+      err.println(
+          "Message file either does not exist or is a directory.\n"
+              + "Please provide a path to a valid file.");
+      return 1;
+    }
+
+    if (!inPlace && filenameOutput == null) {
+      err.println(
+          "An output directory must be provided when the content is split across images.\n"
+              + "Please provide one or enable the '--in-place' flag.");
+      return 1;
+    }
+
+    List<String> carriers = new ArrayList<>();
+    carriers.add(parent.getFilenameBmpImage());
+    carriers.addAll(shards);
+
+    List<String> outputs = new ArrayList<>();
+    Set<Path> distinctOutputs = new HashSet<>();
+    for (String carrier : carriers) {
+      Path carrierPath = Paths.get(carrier);
+      if (!Files.exists(carrierPath) || Files.isDirectory(carrierPath)) {
+        err.println(
+            "BMP file "
+                + carrier
+                + " either does not exist or is a directory.\n"
+                + "Please provide a path to a valid BMP file.");
+        return 1;
+      }
+
+      Path outputPath =
+          inPlace ? carrierPath : Paths.get(filenameOutput).resolve(carrierPath.getFileName());
+      if (!distinctOutputs.add(outputPath.toAbsolutePath().normalize())) {
+        err.println(
+            "Several BMP images would be written to "
+                + outputPath
+                + ".\n"
+                + "Please provide images with different names.");
+        return 1;
+      }
+
+      if (!inPlace && parent.forceDisabled() && Files.exists(outputPath)) {
+        err.println(
+            "A file already exists on the output path "
+                + outputPath
+                + ".\n"
+                + "If you are sure you want to overwrite it, enable the '--force' flag.");
+        return 1;
+      }
+      outputs.add(outputPath.toString());
+    }
+
     try {
-      BmpFile bmpFile = new BmpFile(parent.getFilenameBmpImage());
+      long messageLength = Files.size(Paths.get(parent.getFilenameMessage()));
+
+      // Only the headers of the images are needed to plan the shards
+      MessageHeader shardHeader = describeContent(MessageHeader.forShard(0, 0, 1, 0, 0));
+      long[] capacities = new long[carriers.size()];
+      for (int i = 0; i < capacities.length; ++i) {
+        try (BmpFile bmpFile = new BmpFile(carriers.get(i), BmpFile.Backend.LAZY)) {
+          if (parent.forceDisabled() && bmpFile.hasMessage()) {
+            err.println(
+                "BMP file "
+                    + carriers.get(i)
+                    + " already has a message hidden inside.\n"
+                    + "If you are sure you want to overwrite it, enable the '--force' flag.");
+            return 1;
+          }
+          capacities[i] = ShardManipulator.getShardCapacity(bmpFile, bitsPerByte, shardHeader);
+        }
+      }
+
+      long[] lengths;
+      try {
+        lengths = ShardManipulator.splitMessage(messageLength, capacities);
+      } catch (IllegalArgumentException e) {
+        err.println(
+            "The message file is too big to be hidden inside the BMP files provided.\n"
+                + "Please provide more or bigger BMP files or use more bits per byte.");
+        return 1;
+      }
+
+      if (!inPlace) {
+        Files.createDirectories(Paths.get(filenameOutput));
+      }
 
+      // Tells the shards of this content apart from the shards of another one
+      long setId = ThreadLocalRandom.current().nextLong();
+
+      FileManipulator fileManipulator = new FileManipulator(parent.getFilenameMessage());
+      try (InputStream message = fileManipulator.openInputStream();
+          MessageManipulator messageManipulator = new MessageManipulator(threads)) {
+        messageManipulator.setPassphrase(parent.getPassphrase());
+        ShardManipulator shardManipulator = new ShardManipulator(messageManipulator);
+
+        long offset = 0;
+        for (int i = 0; i < carriers.size(); ++i) {
+          MessageHeader header =
+              describeContent(
+                  MessageHeader.forShard(setId, i, carriers.size(), offset, messageLength));
+          long length = lengths[i];
+          try (BmpFile bmpFile = new BmpFile(carriers.get(i), parent.getBackend(), inPlace)) {
+            hideInto(
+                bmpFile,
+                outputs.get(i),
+                image -> shardManipulator.hideShard(image, message, bitsPerByte, header, length));
+          }
+          offset += length;
+        }
+      }
+    } catch (Exception e) {
+      err.println("Error while hiding message! Exception message:\n" + e.getMessage());
+      return 1;
+    }
+
+    return 0;
+  }
+
+  /**
+   * Hides the message file and the files of {@code --entry} together in the BMP image provided,
+   * after an index of their names.
+   *
+   * @return exit code 1 if there was an error, 0 otherwise
+   */
+  private int hideContainer() {
+    PrintWriter err = spec.commandLine().getErr();
+
+    if (parent.isMessageOnStandardStream()) {
+      err.println(
+          "The files of a container cannot be read from the standard input.\n"
+              + "Please provide a path to a file.");
+      return 1;
+    }
+
+    if (compress || parent.getPassphrase() != null) {
+      err.println(
+          "The files of a container cannot be compressed or encrypted.\n"
+              + "Please remove the '--compress' or '--encryption-key' option.");
+      return 1;
+    }
+
+    String outputPath = inPlace ? parent.getFilenameBmpImage() : filenameOutput;
+    if (outputPath == null) {
+      outputPath = DEFAULT_FILENAME_OUTPUT;
+    }
+
+    if (!inPlace && parent.forceDisabled() && Files.exists(Paths.get(outputPath))) {
+      err.println(
+          "A file already exists on the output path provided.\n"
+              + "If you are sure you want to overwrite it, enable the '--force' flag.");
+      return 1;
+    }
+
+    List<String> files = new ArrayList<>();
+    files.add(parent.getFilenameMessage());
+    files.addAll(entries);
+
+    Map<String, Path> filesByName = new LinkedHashMap<>();
+    long totalLength = 0;
+    try {
+      for (String file : files) {
+        Path path = Paths.get(file);
+        if (!Files.exists(path) || Files.isDirectory(path)) {
+          err.println(
+              "File "
+                  + file
+                  + " either does not exist or is a directory.\n"
+                  + "Please provide a path to a valid file.");
+          return 1;
+        }
+
+        if (filesByName.put(path.getFileName().toString(), path) != null) {
+          err.println(
+              "Several files are named "
+                  + path.getFileName()
+                  + ".\n"
+                  + "Please provide files with different names.");
+          return 1;
+        }
+        totalLength += Files.size(path);
+      }
+    } catch (IOException e) {
+      err.println("Error while hiding message! Exception message:\n" + e.getMessage());
+      return 1;
+    }
+
+    if (!parent.isBmpFileValid()) {
+      err.println(
+          "BMP file provided either does not exist or is a directory.\n"
+              + "Please provide a path to a valid BMP file.");
+      return 1;
+    }
+
+    List<String> names = new ArrayList<>(filesByName.keySet());
+    try (BmpFile bmpFile =
+        new BmpFile(parent.getFilenameBmpImage(), parent.getBackend(), inPlace)) {
       if (parent.forceDisabled() && bmpFile.hasMessage()) {
-        System.err.println(
+        err.println(
             "BMP file provided already has a message hidden inside.\n"
                 + "If you are sure you want to overwrite it, enable the '--force' flag.");
         return 1;
       }
 
-      FileManipulator fileManipulator = new FileManipulator(parent.getFilenameMessage());
-      MessageManipulator messageManipulator = new MessageManipulator();
+      // The files are checked by the checksums of the index instead of the one of the header
+      int indexLength = ContainerIndex.getLength(names);
+      MessageHeader header = describeContent(MessageHeader.forContainer(indexLength));
+      header.setChecksummed(false);
+
+      if (totalLength + indexLength
+          > MessageManipulator.getMessageCapacity(bmpFile, bitsPerByte, header)) {
+        err.println(
+            "The files are too big to be hidden inside the BMP file provided.\n"
+                + "Please provide a bigger BMP file or use more bits per byte.");
+        return 1;
+      }
 
-      messageManipulator.hideMessage(bmpFile, fileManipulator.readBytesFromFile(), bitsPerByte);
-      bmpFile.saveFile(filenameOutput);
+      try (MessageManipulator messageManipulator = new MessageManipulator(threads)) {
+        hideInto(
+            bmpFile,
+            outputPath,
+            image ->
+                messageManipulator.hideContainer(
+                    image,
+                    names,
+                    name -> new FileManipulator(filesByName.get(name).toString()).openInputStream(),
+                    bitsPerByte,
+                    header));
+      }
     } catch (Exception e) {
-      System.err.println("Error while hiding message! Exception message:\n" + e.getMessage());
+      err.println("Error while hiding message! Exception message:\n" + e.getMessage());
       return 1;
     }
 
     return 0;
   }
 
+  /**
+   * Hides the content inside a bitmap image and writes the image to the output path.
+   *
+   * <p>A mapped image that is not hidden in place is first copied to the output path and the
+   * content is written directly into the copy, which is deleted if hiding fails.
+   *
+   * @param bmpFile the {@link BmpFile} to hide the content in
+   * @param outputPath the path where the image is written
+   * @param hider the {@link ContentHider} hiding the content
+   * @throws IOException if an IO error occurs while hiding or writing
+   */
+  private void hideInto(BmpFile bmpFile, String outputPath, ContentHider hider) throws IOException {
+    if (parent.getBackend() == BmpFile.Backend.MAPPED && !inPlace) {
+      // The message is written directly into a copy of the image
+      try (BmpFile outputBmpFile = bmpFile.copyTo(outputPath)) {
+        hider.hide(outputBmpFile);
+      } catch (Exception e) {
+        Files.deleteIfExists(Paths.get(outputPath));
+        throw e;
+      }
+    } else {
+      hider.hide(bmpFile);
+      bmpFile.saveFile(outputPath);
+    }
+  }
+
+  /**
+   * Adds the optional fields requested by the options to the header of the content or of a shard.
+   *
+   * @param header the {@link MessageHeader} to complete
+   * @return the same {@link MessageHeader}
+   */
+  private MessageHeader describeContent(MessageHeader header) {
+    header.setCodec(compress ? PayloadCodec.DEFLATE : null);
+    header.setCipher(parent.getPassphrase() != null ? PayloadCipher.AES_GCM : null);
+    header.setChecksummed(checksum);
+    header.setScattered(scatter);
+    return header;
+  }
+
   // Ref: https://www.baeldung.com/java-check-number-power-of-two
   private boolean isPowerOfTwo(int n) {
     return (n != 0) && ((n & (n - 1)) == 0);
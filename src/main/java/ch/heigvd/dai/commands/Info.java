@@ -0,0 +1,282 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.commands;
+
+import ch.heigvd.dai.utilities.BmpFile;
+import ch.heigvd.dai.utilities.ContainerIndex;
+import ch.heigvd.dai.utilities.DibHeader;
+import ch.heigvd.dai.utilities.MessageManipulator;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import picocli.CommandLine;
+
+/**
+ * Implements the {@code info} subcommand for executing the program on a CLI.
+ *
+ * <p>This subcommand describes BMP images without modifying them: their capacity for each number of
+ * bits per byte and the message hidden inside, if any. Only the headers of the images are read (see
+ * {@link BmpFile.Backend#LAZY}), with a single small read per image, and the images are probed
+ * concurrently, so that whole directory trees can be scanned. The files hidden together in an image
+ * can also be listed, the images being then memory-mapped so that only the pixels carrying the
+ * header and the index of the files are read. For checking the usage of the subcommand, use the
+ * {@code --help} option.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@CommandLine.Command(
+    name = "info",
+    description =
+        "Describe BMP images and the messages hidden inside, without reading their pixels. The message parameter must not be provided.")
+public class Info implements Callable<Integer> {
+
+  /** The result of the probe of an image. */
+  private record Probe(String line, boolean hasMessage, boolean failed) {}
+
+  @CommandLine.ParentCommand private Root parent;
+
+  @CommandLine.Spec private CommandLine.Model.CommandSpec spec;
+
+  @CommandLine.Parameters(
+      arity = "0..*",
+      description =
+          "The BMP images or the directories to scan for BMP images ('.bmp' files), recursively. The BMP image provided before the subcommand is described first.",
+      converter = PathConverter.class)
+  private List<String> paths = new ArrayList<>();
+
+  @CommandLine.Option(
+      names = {"--with-message"},
+      description = "Only list the images with a message hidden inside.")
+  private boolean withMessageOnly;
+
+  @CommandLine.Option(
+      names = {"--entries"},
+      description =
+          "List the files hidden together in the images, with their size. Only the index of the files is read from the pixels.")
+  private boolean listEntries;
+
+  @CommandLine.Option(
+      names = {"-c", "--concurrency"},
+      description =
+          "Maximum number of images probed at the same time. Defaults to 8 times the number of processors, as the probes mostly wait on the disk.")
+  private int concurrency = 8 * Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Call function that contains the logic of the subcommand.
+   *
+   * <p>This function walks the paths, probes the images and displays the description of each image
+   * in the order of the walk, followed by a summary. An invalid image does not stop the scan.
+   *
+   * @return exit code 1 if there was an error or if an image could not be probed, 0 otherwise
+   */
+  @Override
+  public Integer call() {
+    PrintWriter out = spec.commandLine().getOut();
+    PrintWriter err = spec.commandLine().getErr();
+
+    if (parent.getFilenameMessage() != null) {
+      err.println("The message file cannot be provided to describe images.");
+      return 1;
+    }
+
+    List<String> roots = new ArrayList<>(paths);
+    if (parent.getFilenameBmpImage() != null) {
+      roots.addFirst(parent.getFilenameBmpImage());
+    }
+
+    if (roots.isEmpty()) {
+      err.println("At least one BMP image or directory must be provided.");
+      return 1;
+    }
+
+    if (concurrency < 1) {
+      err.println("--concurrency needs to be a positive number");
+      return 1;
+    }
+
+    int[] counts = new int[3]; // Images, images with a message, failures
+    long start = System.nanoTime();
+
+    // The probes are printed in the order of the walk, at most (concurrency) of them being pending
+    ArrayDeque<Future<Probe>> pending = new ArrayDeque<>(concurrency);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (String root : roots) {
+        try (Stream<Path> images = findImages(Paths.get(root))) {
+          Iterator<Path> iterator = images.iterator();
+          while (iterator.hasNext()) {
+            Path image = iterator.next();
+            if (pending.size() == concurrency) {
+              printProbe(pending.poll().get(), out, counts);
+            } /* if */
+            pending.add(executor.submit(() -> probe(image)));
+          } /* while */
+        } catch (IOException | UncheckedIOException e) {
+          // The images found before the error are printed first
+          while (!pending.isEmpty()) {
+            printProbe(pending.poll().get(), out, counts);
+          } /* while */
+          out.println(
+              "[FAIL] " + root + ": " + (e instanceof UncheckedIOException ? e.getCause() : e));
+          ++counts[2];
+        }
+      } /* for */
+
+      while (!pending.isEmpty()) {
+        printProbe(pending.poll().get(), out, counts);
+      } /* while */
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      err.println("Scan interrupted.");
+      return 1;
+    } catch (ExecutionException e) {
+      // The probes catch their own errors
+      err.println("Error while scanning! Exception message:\n" + e.getCause());
+      return 1;
+    }
+
+    long elapsed = Math.max(1, (System.nanoTime() - start) / (1000 * 1000));
+    out.printf(
+        "%d images, %d with a message, %d failed in %d ms (%.0f images/s)%n",
+        counts[0], counts[1], counts[2], elapsed, counts[0] * 1000.0 / elapsed);
+
+    return counts[2] == 0 ? 0 : 1;
+  }
+
+  /**
+   * Lists the BMP images of a directory tree, or the path itself if it is not a directory.
+   *
+   * @param root the {@link Path} to walk
+   * @return a {@link Stream} of the images, which must be closed
+   * @throws IOException if the root cannot be walked
+   */
+  private static Stream<Path> findImages(Path root) throws IOException {
+    if (!Files.isDirectory(root)) {
+      return Stream.of(root);
+    }
+
+    return Files.walk(root)
+        .filter(
+            path ->
+                path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".bmp")
+                    && Files.isRegularFile(path));
+  }
+
+  /**
+   * Probes an image, reading its headers only.
+   *
+   * @param image the {@link Path} of the image
+   * @return the {@link Probe} describing the image
+   */
+  private Probe probe(Path image) {
+    BmpFile.Backend backend = listEntries ? BmpFile.Backend.MAPPED : BmpFile.Backend.LAZY;
+    try (BmpFile bmpFile = new BmpFile(image.toString(), backend)) {
+      DibHeader dibHeader = bmpFile.getDibHeader();
+      StringBuilder line =
+          new StringBuilder(bmpFile.hasMessage() ? "[MSG]  " : "[NONE] ")
+              .append(image)
+              .append(
+                  String.format(
+                      " %dx%d %d bpp, capacity",
+                      dibHeader.getWidth(), dibHeader.getHeight(), dibHeader.getBitsPerPixel()));
+
+      for (int bits = BmpFile.MIN_BITS_PER_BYTE; bits <= BmpFile.MAX_BITS_PER_BYTE; bits *= 2) {
+        long capacity = Math.max(0, MessageManipulator.getMessageCapacity(bmpFile, bits));
+        line.append(' ').append(bits).append("b=").append(capacity);
+      } /* for */
+
+      if (bmpFile.hasMessage()) {
+        // The exact length of a longer message is only in its header, which is not read here
+        line.append(
+            String.format(
+                ", message of %s%d bytes with %d bits per byte%s",
+                bmpFile.hasExtendedMessageLength() ? "at least " : "",
+                bmpFile.getMessageLength(),
+                bmpFile.getBitsPerByte(),
+                bmpFile.hasMessageHeader() ? " (header included)" : ""));
+      } /* if */
+
+      if (listEntries && bmpFile.hasMessageHeader()) {
+        appendEntries(bmpFile, line);
+      } /* if */
+
+      return new Probe(line.toString(), bmpFile.hasMessage(), false);
+    } catch (IOException e) {
+      return new Probe("[FAIL] " + image + ": " + e, false, true);
+    } catch (IllegalArgumentException e) {
+      return new Probe("[FAIL] " + image + ": " + e.getMessage(), false, true);
+    }
+  }
+
+  /**
+   * Appends the files hidden together in an image to its description, one per line, if its message
+   * is made of several files.
+   *
+   * @param bmpFile the {@link BmpFile} of the image, with a message header
+   * @param line the description of the image
+   * @throws IOException if the pixel array cannot be accessed
+   */
+  private static void appendEntries(BmpFile bmpFile, StringBuilder line) throws IOException {
+    try (MessageManipulator messageManipulator = new MessageManipulator()) {
+      if (!messageManipulator.readMessageHeader(bmpFile).isContainer()) {
+        return;
+      } /* if */
+
+      for (ContainerIndex.Entry entry :
+          messageManipulator.readContainerIndex(bmpFile).getEntries()) {
+        line.append(String.format("%n       - %s (%d bytes)", entry.name(), entry.length()));
+      } /* for */
+    }
+  }
+
+  /**
+   * Prints the description of an image, unless only the images with a message are listed, and
+   * counts it.
+   *
+   * @param probe the {@link Probe} of the image
+   * @param out the {@link PrintWriter} to print to
+   * @param counts the counts of images, images with a message and failures to update
+   */
+  private void printProbe(Probe probe, PrintWriter out, int[] counts) {
+    ++counts[0];
+    if (probe.hasMessage()) {
+      ++counts[1];
+    } else if (probe.failed()) {
+      ++counts[2];
+    } /* if */
+
+    if (!withMessageOnly || probe.hasMessage() || probe.failed()) {
+      out.println(probe.line());
+    } /* if */
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.commands;
+
+import ch.heigvd.dai.utilities.FileManipulator;
+import java.nio.file.Path;
+import java.util.function.Supplier;
+import picocli.CommandLine;
+
+/**
+ * Converts the parameters and options of the commands that are paths.
+ *
+ * <p>The paths are kept as they are given when the program runs on its own. A command sent to a
+ * {@link ch.heigvd.dai.server.ShadowServer} is parsed with a converter resolving them against the
+ * working directory of the client instead, as the server runs in another directory. {@value
+ * FileManipulator#STANDARD_STREAM} is never resolved.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public final class PathConverter implements CommandLine.ITypeConverter<String> {
+
+  private final Supplier<Path> directory;
+
+  /** Creates a converter keeping the paths as they are given. */
+  public PathConverter() {
+    this(null);
+  }
+
+  /**
+   * Creates a converter resolving the paths against a directory.
+   *
+   * @param directory the {@link Supplier} of the directory of the command being parsed, or {@code
+   *     null} to keep the paths as they are given
+   */
+  public PathConverter(Supplier<Path> directory) {
+    this.directory = directory;
+  }
+
+  @Override
+  public String convert(String value) {
+    if (directory == null || value.equals(FileManipulator.STANDARD_STREAM)) {
+      return value;
+    }
+    return directory.get().resolve(value).toString();
+  }
+}
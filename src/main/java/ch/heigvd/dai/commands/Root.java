@@ -18,16 +18,25 @@
 
 package ch.heigvd.dai.commands;
 
+import ch.heigvd.dai.server.ShadowServer;
+import ch.heigvd.dai.utilities.BmpFile;
+import ch.heigvd.dai.utilities.FileManipulator;
+import ch.heigvd.dai.utilities.Metrics;
+import ch.heigvd.dai.utilities.Passphrase;
+import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import picocli.CommandLine;
 
 /**
  * Implements the root command for executing the program on a CLI.
  *
- * <p>This class defines the parameters and options that are common throughout the {@link Hide} and
- * {@link Expose} subcommands. For checking the usage of the command, use the {@code --help} option.
+ * <p>This class defines the parameters and options that are common throughout the {@link Hide},
+ * {@link Expose} and {@link Update} subcommands. The parameters are not used by the {@link Batch},
+ * {@link Info} and {@link Serve} subcommands, so they are optional here and checked by the
+ * subcommands needing them. For checking the usage of the command, use the {@code --help} option.
  *
  * @author Pedro Alves da Silva
  * @author Gonçalo Carvalheiro Heleno
@@ -38,21 +47,31 @@ import picocli.CommandLine;
     subcommands = {
       Hide.class,
       Expose.class,
+      Update.class,
+      Batch.class,
+      Info.class,
+      Serve.class,
     },
     scope = CommandLine.ScopeType.INHERIT,
     mixinStandardHelpOptions = true)
 public class Root {
 
+  @CommandLine.Spec private CommandLine.Model.CommandSpec spec;
+
   @CommandLine.Parameters(
       index = "0",
+      arity = "0..1",
       description =
-          "The BMP image where the content will be hidden or where to read the content from.")
+          "The BMP image where the content will be hidden or where to read the content from.",
+      converter = PathConverter.class)
   private String filenameBmpImage;
 
   @CommandLine.Parameters(
       index = "1",
+      arity = "0..1",
       description =
-          "The file where to read the message from or the file destination where to write the message to, depending on the operation mode.")
+          "The file where to read the message from or the file destination where to write the message to, depending on the operation mode. Use '-' for the standard input or output.",
+      converter = PathConverter.class)
   private String filenameMessage;
 
   @CommandLine.Option(
@@ -60,14 +79,102 @@ public class Root {
       description = "Overwrite output file if something already exists in the path.")
   private boolean force;
 
-  // TODO Potentially implement encryption in the future.
-  //
-  //  @CommandLine.Option(
-  //      names = {"-e", "--encryption-key"},
-  //      description =
-  //          "The GPG encryption key to use to encrypt the message/file before hiding it inside the
-  // BMP image.")
-  //  protected String encryptionKey;
+  @CommandLine.Option(
+      names = {"-m", "--memory-mapped"},
+      description =
+          "Memory-map the BMP images instead of loading them, so that images bigger than the available memory can be used. Only the parts of the images carrying the message are accessed.")
+  private boolean memoryMapped;
+
+  private Metrics.Format metricsFormat;
+  private Metrics metrics;
+  private Passphrase passphrase;
+  private Passphrase inheritedPassphrase;
+
+  /**
+   * Setter for the {@code --metrics} option, which starts collecting the metrics as soon as the
+   * option is parsed, before the subcommand runs.
+   *
+   * @param format the {@link Metrics.Format} of the report
+   */
+  @CommandLine.Option(
+      names = {"--metrics"},
+      description =
+          "Print the time spent and the bytes processed by each phase (reading and writing the images and the message, hiding or exposing the message, deriving the key and encrypting or decrypting the message), the peak heap usage and the garbage collections, instead of the execution time. Format: ${COMPLETION-CANDIDATES}.",
+      defaultValue = CommandLine.Option.NULL_VALUE)
+  private void setMetricsFormat(Metrics.Format format) {
+    // Also called without the option, as the command can be executed several times by the server
+    metricsFormat = format;
+    // The metrics of the whole process are shared with the other commands run by a server
+    metrics = format == null ? null : Metrics.start(!ShadowServer.isHandlingRequest());
+  }
+
+  /**
+   * Setter for the {@code --encryption-key} option, which keeps a copy of the passphrase for the
+   * execution of the command and clears the characters parsed by picocli.
+   *
+   * @param encryptionKey the characters of the passphrase
+   * @throws CommandLine.ParameterException if the passphrase is empty
+   */
+  @CommandLine.Option(
+      names = {"-e", "--encryption-key"},
+      arity = "0..1",
+      interactive = true,
+      prompt = "Passphrase: ",
+      description =
+          "Encrypt the message with AES-GCM before hiding it, or authenticate and decrypt it when exposing it, with a key derived from this passphrase. The passphrase is asked for if it does not follow the option.",
+      defaultValue = CommandLine.Option.NULL_VALUE)
+  private void setEncryptionKey(char[] encryptionKey) throws CommandLine.ParameterException {
+    // Also called without the option, so that the passphrase of a previous execution is dropped
+    passphrase = null;
+    if (encryptionKey != null) {
+      try {
+        passphrase = new Passphrase(encryptionKey);
+      } catch (IllegalArgumentException e) {
+        throw new CommandLine.ParameterException(spec.commandLine(), e.getMessage());
+      } finally {
+        Arrays.fill(encryptionKey, '\0');
+      }
+    }
+  }
+
+  /**
+   * Prints what is displayed once a command has been executed: the report of the metrics if {@code
+   * --metrics} was used, the execution time if the command succeeded otherwise.
+   *
+   * <p>The standard output is kept clean when the message is written to it, the error stream being
+   * used instead.
+   *
+   * @param exitCode the exit code of the command
+   * @param elapsedNanos the execution time of the command, in nanoseconds
+   * @param out the {@link PrintWriter} of the standard output
+   * @param err the {@link PrintWriter} of the error stream
+   */
+  public void printReport(int exitCode, long elapsedNanos, PrintWriter out, PrintWriter err) {
+    PrintWriter report = isMessageOnStandardStream() ? err : out;
+
+    if (metrics != null) {
+      metrics.stop();
+      report.println(metrics.report(metricsFormat, exitCode));
+    } else if (exitCode == 0) {
+      report.println("Execution time: " + elapsedNanos / (1000 * 1000) + " ms");
+    }
+    report.flush();
+  }
+
+  /**
+   * Checks that the paths to the bitmap image and to the message file have been provided, as the
+   * {@link Hide}, {@link Expose} and {@link Update} subcommands need them.
+   *
+   * @param subcommand the {@link CommandLine} of the subcommand, used to report the error
+   * @throws CommandLine.ParameterException if one of the paths is missing
+   */
+  public void requireFilenames(CommandLine subcommand) throws CommandLine.ParameterException {
+    if (filenameBmpImage == null || filenameMessage == null) {
+      throw new CommandLine.ParameterException(
+          subcommand,
+          "Missing required parameters: the BMP image and the message file must be provided before the subcommand");
+    }
+  }
 
   /**
    * Getter for the subcommands to read the path to the bitmap image passed as an argument.
@@ -97,6 +204,57 @@ public class Root {
     return !force;
   }
 
+  /**
+   * Getter for the format of the metrics requested with {@code --metrics}.
+   *
+   * @return the {@link Metrics.Format} of the report, or {@code null} if no metrics were requested
+   */
+  public Metrics.Format getMetricsFormat() {
+    return metricsFormat;
+  }
+
+  /**
+   * Getter for the metrics collected since {@code --metrics} was parsed.
+   *
+   * @return the {@link Metrics} being collected, or {@code null} if no metrics were requested
+   */
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Getter for the passphrase of {@code --encryption-key}, or the one inherited from a {@link
+   * Batch}.
+   *
+   * @return the {@link Passphrase} of the command, or {@code null} if the message is not encrypted
+   */
+  public Passphrase getPassphrase() {
+    return passphrase != null ? passphrase : inheritedPassphrase;
+  }
+
+  /**
+   * Gives the passphrase of a {@link Batch} to the command of one of its jobs, so that the key is
+   * only derived once for all the jobs instead of once per job.
+   *
+   * @param passphrase the {@link Passphrase} of the batch, or {@code null} if there is none
+   */
+  void inheritPassphrase(Passphrase passphrase) {
+    inheritedPassphrase = passphrase;
+  }
+
+  /**
+   * Getter for the subcommands to know how the bitmap images must be handled.
+   *
+   * <p>The backend is {@link BmpFile.Backend#MAPPED} if {@code --memory-mapped} is enabled, {@link
+   * BmpFile.Backend#LAZY} otherwise, so that the pixel array is not read when a check on the
+   * headers fails.
+   *
+   * @return the {@link BmpFile.Backend} to use
+   */
+  public BmpFile.Backend getBackend() {
+    return memoryMapped ? BmpFile.Backend.MAPPED : BmpFile.Backend.LAZY;
+  }
+
   /**
    * Checks if the path for the bitmap image is for a valid file and if it exists.
    *
@@ -107,12 +265,28 @@ public class Root {
     return Files.exists(path) && !Files.isDirectory(path);
   }
 
+  /**
+   * Checks whether the message is read from the standard input or written to the standard output.
+   *
+   * @return {@code true} if the message file is {@value FileManipulator#STANDARD_STREAM}, {@code
+   *     false} if not
+   */
+  public boolean isMessageOnStandardStream() {
+    return FileManipulator.STANDARD_STREAM.equals(filenameMessage);
+  }
+
   /**
    * Checks if the path for the message file is for a valid file and if it exists.
    *
+   * <p>The standard input/output is always valid.
+   *
    * @return {@code true} if the file is valid, {@code false} if not
    */
   public boolean isMessageFileValid() {
+    if (isMessageOnStandardStream()) {
+      return true;
+    }
+
     Path path = Paths.get(filenameMessage);
     return Files.exists(path) && !Files.isDirectory(path);
   }
@@ -0,0 +1,139 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.commands;
+
+import ch.heigvd.dai.server.ShadowServer;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import picocli.CommandLine;
+
+/**
+ * Implements the {@code serve} subcommand for executing the program on a CLI.
+ *
+ * <p>This subcommand keeps the program running and executes the commands sent to it by the same
+ * program started with {@code --connect} as its first arguments, see {@link ShadowServer}. For
+ * checking the usage of the subcommand, use the {@code --help} option.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@CommandLine.Command(
+    name = "serve",
+    description =
+        "Keep the program running and execute the commands sent with '--connect <socket|port>' as first arguments. The BMP image and message parameters must not be provided.")
+public class Serve implements Callable<Integer> {
+
+  @CommandLine.ParentCommand private Root parent;
+
+  @CommandLine.Spec private CommandLine.Model.CommandSpec spec;
+
+  @CommandLine.Option(
+      names = {"--socket"},
+      description =
+          "The path of the Unix domain socket to listen on, which only its owner can connect to. An existing file is only replaced with '--force'.")
+  private String socketPath;
+
+  @CommandLine.Option(
+      names = {"--port"},
+      description =
+          "The TCP port to listen on, on the loopback interface only. The clients must send the token written by the server in '~/.shadow', so only the same user can connect.")
+  private Integer port;
+
+  /**
+   * Call function that contains the logic of the subcommand.
+   *
+   * <p>This function opens the server and handles the commands it receives until the program is
+   * stopped.
+   *
+   * @return exit code 1 if the server could not be started or stopped with an error
+   */
+  @Override
+  public Integer call() {
+    PrintWriter out = spec.commandLine().getOut();
+    PrintWriter err = spec.commandLine().getErr();
+
+    if (parent.getFilenameBmpImage() != null) {
+      err.println("The BMP image and the message file cannot be provided for a server.");
+      return 1;
+    }
+
+    if ((socketPath == null) == (port == null)) {
+      err.println("Either '--socket' or '--port' must be provided.");
+      return 1;
+    }
+
+    if (port != null && (port < 0 || port > 65535)) {
+      err.println("--port needs to be between 0 and 65535");
+      return 1;
+    }
+
+    if (parent.getMetrics() != null) {
+      err.println("'--metrics' must be sent with each command rather than given to the server.");
+      return 1;
+    }
+
+    if (ShadowServer.isHandlingRequest()) {
+      err.println("A server cannot be started by a command sent to a server.");
+      return 1;
+    }
+
+    String address = socketPath != null ? socketPath : String.valueOf(port);
+    ShadowServer server;
+    try {
+      server = new ShadowServer(address, !parent.forceDisabled());
+    } catch (IOException e) {
+      err.println(
+          "Error while opening the server! Exception message:\n"
+              + e.getMessage()
+              + (socketPath != null ? "\nUse '--force' to replace an existing socket file." : ""));
+      return 1;
+    }
+
+    // Remove the socket when the program is stopped, e.g. with Ctrl+C
+    Thread closer =
+        new Thread(
+            () -> {
+              try {
+                server.close();
+              } catch (IOException e) {
+                // The program is stopping anyway
+              }
+            });
+    Runtime.getRuntime().addShutdownHook(closer);
+
+    try {
+      out.println(
+          "Listening on "
+              + server.getAddress()
+              + (server.getTokenPath() != null
+                  ? ", with the token of the clients in " + server.getTokenPath()
+                  : ""));
+      out.flush();
+      server.serve();
+    } catch (IOException e) {
+      err.println("Error while accepting a command! Exception message:\n" + e.getMessage());
+      return 1;
+    } finally {
+      closer.run();
+    }
+
+    return 0;
+  }
+}
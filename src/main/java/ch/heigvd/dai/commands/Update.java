@@ -0,0 +1,129 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.commands;
+
+import ch.heigvd.dai.utilities.BmpFile;
+import ch.heigvd.dai.utilities.FileManipulator;
+import ch.heigvd.dai.utilities.MessageManipulator;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.Callable;
+import picocli.CommandLine;
+
+/**
+ * Implements the {@code update} subcommand for executing the program on a CLI.
+ *
+ * <p>This class defines the parameters and options that are only specific for this subcommand. The
+ * BMP image is memory-mapped and modified in place: only the pixels carrying the updated bytes and
+ * the header of the message are written, instead of the whole image. For checking the usage of the
+ * subcommand, use the {@code --help} option.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@CommandLine.Command(
+    name = "update",
+    description =
+        "Overwrite a part of the file/message hidden in a BMP image, or append to it, by modifying the image in place.")
+public class Update implements Callable<Integer> {
+
+  @CommandLine.ParentCommand private Root parent;
+
+  @CommandLine.Spec private CommandLine.Model.CommandSpec spec;
+
+  @CommandLine.Option(
+      names = {"-o", "--offset"},
+      description =
+          "Position in the hidden content where the bytes of the message file are written. The content is extended if they go past its end. Defaults to 0.",
+      defaultValue = "0")
+  private long offset;
+
+  @CommandLine.Option(
+      names = {"-a", "--append"},
+      description = "Write the bytes of the message file after the end of the hidden content.")
+  private boolean append;
+
+  /**
+   * Call function that contains the logic of the subcommand.
+   *
+   * <p>This function performs the multiple input validation checks and outputs an exit code
+   * accordingly. An error message is displayed on the error stream of the command to explain why
+   * the command failed.
+   *
+   * @return exit code 1 if there was an error, 0 otherwise
+   */
+  @Override
+  public Integer call() {
+    parent.requireFilenames(spec.commandLine());
+    PrintWriter err = spec.commandLine().getErr();
+
+    if (offset < 0) {
+      err.println("--offset needs to be a positive number");
+      return 1;
+    }
+
+    if (append && spec.commandLine().getParseResult().hasMatchedOption("--offset")) {
+      err.println("--append and --offset cannot be used together");
+      return 1;
+    }
+
+    if (!parent.isMessageFileValid()) {
+      err.println(
+          "Message file either does not exist or is a directory.\n"
+              + "Please provide a path to a valid file.");
+      return 1;
+    }
+
+    if (!parent.isBmpFileValid()) {
+      err.println(
+          "BMP file provided either does not exist or is a directory.\n"
+              + "Please provide a path to a valid BMP file.");
+      return 1;
+    }
+
+    // The image is always mapped, so that only the updated pixels are written to it
+    try (BmpFile bmpFile =
+        new BmpFile(parent.getFilenameBmpImage(), BmpFile.Backend.MAPPED, true)) {
+      if (!bmpFile.hasMessage()) {
+        err.println(
+            "BMP file provided does not have a message hidden inside.\n"
+                + "Please provide a path to a BMP file containing a message, or use 'hide'.");
+        return 1;
+      }
+
+      FileManipulator fileManipulator = new FileManipulator(parent.getFilenameMessage());
+
+      try (InputStream message = fileManipulator.openInputStream();
+          MessageManipulator messageManipulator = new MessageManipulator()) {
+        long position =
+            append
+                ? (bmpFile.hasMessageHeader()
+                    ? messageManipulator.readMessageHeader(bmpFile).getPayloadLength()
+                    : bmpFile.getMessageLength())
+                : offset;
+        messageManipulator.updateMessage(bmpFile, position, message);
+      }
+    } catch (Exception e) {
+      err.println("Error while updating message! Exception message:\n" + e.getMessage());
+      return 1;
+    }
+
+    return 0;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.kernels;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Defines the low-level operations used to spread the bits of a message over the bytes of a pixel
+ * array and to gather them back.
+ *
+ * <p>Each pixel byte carries (bitsPerByte) bits of the message in its LSb, starting with the MSb of
+ * the message byte, so a message byte uses {@code 8 / bitsPerByte} pixel bytes. All the
+ * implementations must produce exactly the same pixels and messages, they only differ in how fast
+ * they do it.
+ *
+ * <p>Implementations do not validate their arguments: the caller must make sure the pixel buffer is
+ * big enough for the requested message range.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public interface EmbeddingKernel {
+
+  /**
+   * Hides a range of a message inside a pixel buffer.
+   *
+   * @param pixels the pixel buffer, modified in place (its position and limit are ignored)
+   * @param pixelIndex absolute index of the first pixel byte to modify
+   * @param message the message to hide
+   * @param messageIndex index of the first message byte to hide
+   * @param length number of message bytes to hide
+   * @param bitsPerByte number of message bits per pixel byte, a power of 2 between 1 and 8
+   */
+  void embed(
+      ByteBuffer pixels,
+      int pixelIndex,
+      byte[] message,
+      int messageIndex,
+      int length,
+      int bitsPerByte);
+
+  /**
+   * Extracts a range of a message hidden inside a pixel buffer.
+   *
+   * <p>The pixel buffer is only read, so it may be read-only.
+   *
+   * @param pixels the pixel buffer (its position and limit are ignored)
+   * @param pixelIndex absolute index of the first pixel byte to read
+   * @param message the array where the message bytes are written to
+   * @param messageIndex index of the first message byte to write
+   * @param length number of message bytes to extract
+   * @param bitsPerByte number of message bits per pixel byte, a power of 2 between 1 and 8
+   */
+  void extract(
+      ByteBuffer pixels,
+      int pixelIndex,
+      byte[] message,
+      int messageIndex,
+      int length,
+      int bitsPerByte);
+}
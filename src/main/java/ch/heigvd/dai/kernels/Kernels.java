@@ -0,0 +1,91 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.kernels;
+
+/**
+ * Selects the {@link EmbeddingKernel} to use at runtime.
+ *
+ * <p>The {@link VectorKernel} is used when the {@code jdk.incubator.vector} module has been added
+ * to the JVM (with {@code --add-modules jdk.incubator.vector}), the {@link SwarKernel} otherwise.
+ * The choice can be forced with the {@code shadow.kernel} system property set to {@code scalar},
+ * {@code swar} or {@code vector}.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public final class Kernels {
+
+  private static final String VECTOR_MODULE = "jdk.incubator.vector";
+  private static final String VECTOR_KERNEL_CLASS = "ch.heigvd.dai.kernels.VectorKernel";
+
+  private Kernels() {}
+
+  /**
+   * Returns the kernel to use, following the rules described in the class documentation.
+   *
+   * @return a new {@link EmbeddingKernel} instance
+   * @throws IllegalArgumentException if the {@code shadow.kernel} system property is not valid or
+   *     if the vector kernel is requested but not available
+   */
+  public static EmbeddingKernel fastest() throws IllegalArgumentException {
+    String requested = System.getProperty("shadow.kernel");
+
+    if (requested == null) {
+      return isVectorAvailable() ? createVectorKernel() : new SwarKernel();
+    }
+
+    return switch (requested) {
+      case "scalar" -> new ScalarKernel();
+      case "swar" -> new SwarKernel();
+      case "vector" -> {
+        if (!isVectorAvailable()) {
+          throw new IllegalArgumentException(
+              "The vector kernel needs the JVM option '--add-modules " + VECTOR_MODULE + "'");
+        }
+        yield createVectorKernel();
+      }
+      default -> throw new IllegalArgumentException("Unknown kernel: " + requested);
+    };
+  }
+
+  /**
+   * Checks whether the Vector API module has been resolved by the JVM.
+   *
+   * @return {@code true} if the vector kernel can be used, {@code false} if not
+   */
+  public static boolean isVectorAvailable() {
+    return ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent();
+  }
+
+  /**
+   * Instantiates the vector kernel by reflection, so that its class, which links against the
+   * incubator module, is never loaded when the module is missing.
+   *
+   * @return a new {@link VectorKernel} instance
+   */
+  private static EmbeddingKernel createVectorKernel() {
+    try {
+      return (EmbeddingKernel)
+          Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      // Should not happen once the module is present, but never fail because of an optimization
+      return new SwarKernel();
+    }
+  }
+}
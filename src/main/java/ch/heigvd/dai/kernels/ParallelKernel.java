@@ -0,0 +1,160 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.kernels;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Implementation of {@link EmbeddingKernel} splitting big ranges into chunks processed in parallel
+ * by another kernel.
+ *
+ * <p>Message byte {@code n} only touches the pixel bytes carrying it, so the chunks are
+ * independent. Their length is a multiple of {@value #CHUNK_ALIGNMENT} message bytes, which makes
+ * each chunk of pixels a whole number of cache lines for every number of bits per byte. Ranges
+ * shorter than {@value #PARALLEL_THRESHOLD} bytes are processed by the calling thread.
+ *
+ * <p>The tasks run on a dedicated {@link ForkJoinPool}, released by {@link #close()}.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public class ParallelKernel implements EmbeddingKernel, AutoCloseable {
+
+  /** Minimum number of message bytes for a range to be split. */
+  public static final int PARALLEL_THRESHOLD = 256 * 1024;
+
+  private static final int CHUNK_ALIGNMENT = 64;
+  private static final int MIN_CHUNK_LENGTH = 64 * 1024;
+  private static final int CHUNKS_PER_THREAD = 4; // Balances the load when some chunks are slower
+  private static final int BITS_IN_BYTE = 8;
+
+  private final EmbeddingKernel kernel;
+  private final ForkJoinPool pool;
+  private final int threads;
+
+  /**
+   * Main constructor.
+   *
+   * @param kernel the {@link EmbeddingKernel} processing each chunk
+   * @param threads the number of threads to use
+   * @throws IllegalArgumentException if the number of threads is not positive
+   */
+  public ParallelKernel(EmbeddingKernel kernel, int threads) throws IllegalArgumentException {
+    this.kernel = kernel;
+    this.threads = threads;
+    this.pool = new ForkJoinPool(threads);
+  }
+
+  /**
+   * Returns the number of threads used.
+   *
+   * @return the number of threads
+   */
+  public int getThreads() {
+    return threads;
+  }
+
+  @Override
+  public void embed(
+      ByteBuffer pixels,
+      int pixelIndex,
+      byte[] message,
+      int messageIndex,
+      int length,
+      int bitsPerByte) {
+    forEachChunk(
+        pixelIndex,
+        messageIndex,
+        length,
+        bitsPerByte,
+        (chunkPixelIndex, chunkMessageIndex, chunkLength) ->
+            kernel.embed(
+                pixels, chunkPixelIndex, message, chunkMessageIndex, chunkLength, bitsPerByte));
+  }
+
+  @Override
+  public void extract(
+      ByteBuffer pixels,
+      int pixelIndex,
+      byte[] message,
+      int messageIndex,
+      int length,
+      int bitsPerByte) {
+    forEachChunk(
+        pixelIndex,
+        messageIndex,
+        length,
+        bitsPerByte,
+        (chunkPixelIndex, chunkMessageIndex, chunkLength) ->
+            kernel.extract(
+                pixels, chunkPixelIndex, message, chunkMessageIndex, chunkLength, bitsPerByte));
+  }
+
+  /** Shuts the thread pool down. */
+  @Override
+  public void close() {
+    pool.shutdown();
+  }
+
+  /**
+   * Splits a range into chunks and runs an operation on each of them, in parallel if the range is
+   * big enough.
+   *
+   * @param pixelIndex absolute index of the first pixel byte of the range
+   * @param messageIndex index of the first message byte of the range
+   * @param length number of message bytes in the range
+   * @param bitsPerByte number of message bits per pixel byte
+   * @param operation the operation to run on each chunk
+   */
+  private void forEachChunk(
+      int pixelIndex, int messageIndex, int length, int bitsPerByte, ChunkOperation operation) {
+    if (length < PARALLEL_THRESHOLD || threads == 1) {
+      operation.run(pixelIndex, messageIndex, length);
+      return;
+    }
+
+    int chunkLength = Math.max(MIN_CHUNK_LENGTH, length / (threads * CHUNKS_PER_THREAD));
+    chunkLength = (chunkLength + CHUNK_ALIGNMENT - 1) / CHUNK_ALIGNMENT * CHUNK_ALIGNMENT;
+    int pixelsPerMessageByte = BITS_IN_BYTE / bitsPerByte;
+
+    List<ForkJoinTask<?>> tasks = new ArrayList<>();
+    for (int offset = 0; offset < length; offset += chunkLength) {
+      int chunkPixelIndex = pixelIndex + offset * pixelsPerMessageByte;
+      int chunkMessageIndex = messageIndex + offset;
+      int currentLength = Math.min(chunkLength, length - offset);
+      tasks.add(
+          pool.submit(() -> operation.run(chunkPixelIndex, chunkMessageIndex, currentLength)));
+    } /* for */
+
+    // Rethrows the first exception thrown by a chunk, if any
+    for (ForkJoinTask<?> task : tasks) {
+      task.join();
+    } /* for */
+  }
+
+  /** Defines an operation on a chunk of a range. */
+  @FunctionalInterface
+  private interface ChunkOperation {
+    void run(int pixelIndex, int messageIndex, int length);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.kernels;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reference implementation of {@link EmbeddingKernel} handling one pixel byte at a time.
+ *
+ * <p>It is the slowest kernel, but also the most straightforward one. It is kept to check the other
+ * kernels against it and to handle the bytes they cannot process in bulk.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public class ScalarKernel implements EmbeddingKernel {
+
+  private static final int BITS_IN_BYTE = 8;
+
+  @Override
+  public void embed(
+      ByteBuffer pixels,
+      int pixelIndex,
+      byte[] message,
+      int messageIndex,
+      int length,
+      int bitsPerByte) {
+    // Mask used to reset the data bits to hide the message in
+    int bit_mask = (1 << bitsPerByte) - 1;
+
+    // (bitsPerByte) bits by (bitsPerByte) bits in message, byte by byte in pixel array
+    for (int i = messageIndex; i < messageIndex + length; ++i) {
+      byte msg_byte = message[i];
+      for (int shift = BITS_IN_BYTE - bitsPerByte; shift >= 0; shift -= bitsPerByte) {
+        int msg_bits = (msg_byte >> shift) & bit_mask;
+        pixels.put(pixelIndex, (byte) ((pixels.get(pixelIndex) & ~bit_mask) | msg_bits));
+        ++pixelIndex;
+      } /* for */
+    } /* for */
+  }
+
+  @Override
+  public void extract(
+      ByteBuffer pixels,
+      int pixelIndex,
+      byte[] message,
+      int messageIndex,
+      int length,
+      int bitsPerByte) {
+    // Mask used to read the data bits the message is hidden in
+    int bit_mask = (1 << bitsPerByte) - 1;
+
+    // (bitsPerByte) bits by (bitsPerByte) bits in message, byte by byte in pixel array
+    for (int i = messageIndex; i < messageIndex + length; ++i) {
+      int msg_byte = 0;
+      for (int shift = BITS_IN_BYTE - bitsPerByte; shift >= 0; shift -= bitsPerByte) {
+        msg_byte |= (pixels.get(pixelIndex) & bit_mask) << shift;
+        ++pixelIndex;
+      } /* for */
+      message[i] = (byte) msg_byte;
+    } /* for */
+  }
+}
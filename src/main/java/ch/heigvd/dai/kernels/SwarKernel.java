@@ -0,0 +1,159 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.kernels;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Implementation of {@link EmbeddingKernel} handling 8 pixel bytes at a time through {@code long}
+ * words (SIMD within a register).
+ *
+ * <p>8 pixel bytes carry exactly (bitsPerByte) message bytes. These message bytes are read as a
+ * single little-endian word and the order of the (bitsPerByte)-bit chunks inside each byte is
+ * reversed, so that the chunk for pixel byte {@code n} ends up at bits {@code [n * bitsPerByte, (n
+ * + 1) * bitsPerByte)}. {@link Long#expand(long, long)} then deposits each chunk in the LSb of its
+ * lane and a single masked merge updates the 8 pixel bytes. Extraction does the opposite with
+ * {@link Long#compress(long, long)}. Both are compiled to a single instruction on CPUs supporting
+ * it (e.g. {@code PDEP}/{@code PEXT} on x86).
+ *
+ * <p>Message bytes that do not fill a whole word are handled by the {@link ScalarKernel}.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public class SwarKernel implements EmbeddingKernel {
+
+  private static final int WORD_BYTES = Long.BYTES;
+  private static final long LANE_LSB = 0x0101010101010101L;
+  private static final VarHandle PIXEL_WORD =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle MESSAGE_LONG =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle MESSAGE_INT =
+      MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+  private static final VarHandle MESSAGE_SHORT =
+      MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+  private final ScalarKernel tailKernel = new ScalarKernel();
+
+  @Override
+  public void embed(
+      ByteBuffer pixels,
+      int pixelIndex,
+      byte[] message,
+      int messageIndex,
+      int length,
+      int bitsPerByte) {
+    long laneMask = LANE_LSB * ((1 << bitsPerByte) - 1);
+    int words = length / bitsPerByte;
+
+    for (int w = 0; w < words; ++w) {
+      long chunks = reverseChunks(readMessageWord(message, messageIndex, bitsPerByte), bitsPerByte);
+      long word = (long) PIXEL_WORD.get(pixels, pixelIndex);
+      PIXEL_WORD.set(pixels, pixelIndex, (word & ~laneMask) | Long.expand(chunks, laneMask));
+      pixelIndex += WORD_BYTES;
+      messageIndex += bitsPerByte;
+    } /* for */
+
+    tailKernel.embed(
+        pixels, pixelIndex, message, messageIndex, length - words * bitsPerByte, bitsPerByte);
+  }
+
+  @Override
+  public void extract(
+      ByteBuffer pixels,
+      int pixelIndex,
+      byte[] message,
+      int messageIndex,
+      int length,
+      int bitsPerByte) {
+    long laneMask = LANE_LSB * ((1 << bitsPerByte) - 1);
+    int words = length / bitsPerByte;
+
+    for (int w = 0; w < words; ++w) {
+      long word = (long) PIXEL_WORD.get(pixels, pixelIndex);
+      long chunks = reverseChunks(Long.compress(word, laneMask), bitsPerByte);
+      writeMessageWord(message, messageIndex, bitsPerByte, chunks);
+      pixelIndex += WORD_BYTES;
+      messageIndex += bitsPerByte;
+    } /* for */
+
+    tailKernel.extract(
+        pixels, pixelIndex, message, messageIndex, length - words * bitsPerByte, bitsPerByte);
+  }
+
+  /**
+   * Reverses the order of the (bitsPerByte)-bit chunks inside each byte of a word.
+   *
+   * <p>The operation is its own inverse, so it is used both when hiding and exposing.
+   *
+   * @param word the word to transform
+   * @param bitsPerByte the size of the chunks
+   * @return the word with the chunks of each byte in reverse order
+   */
+  private static long reverseChunks(long word, int bitsPerByte) {
+    if (bitsPerByte < 8) {
+      word = ((word >>> 4) & 0x0F0F0F0F0F0F0F0FL) | ((word & 0x0F0F0F0F0F0F0F0FL) << 4);
+    }
+    if (bitsPerByte < 4) {
+      word = ((word >>> 2) & 0x3333333333333333L) | ((word & 0x3333333333333333L) << 2);
+    }
+    if (bitsPerByte < 2) {
+      word = ((word >>> 1) & 0x5555555555555555L) | ((word & 0x5555555555555555L) << 1);
+    }
+    return word;
+  }
+
+  /**
+   * Reads the (bitsPerByte) message bytes hidden in one pixel word as a little-endian value.
+   *
+   * @param message the message array
+   * @param index the index of the first byte to read
+   * @param bitsPerByte the number of bytes to read
+   * @return the bytes read, zero-extended to a {@code long}
+   */
+  private static long readMessageWord(byte[] message, int index, int bitsPerByte) {
+    return switch (bitsPerByte) {
+      case 8 -> (long) MESSAGE_LONG.get(message, index);
+      case 4 -> Integer.toUnsignedLong((int) MESSAGE_INT.get(message, index));
+      case 2 -> Short.toUnsignedLong((short) MESSAGE_SHORT.get(message, index));
+      default -> Byte.toUnsignedLong(message[index]);
+    };
+  }
+
+  /**
+   * Writes the (bitsPerByte) message bytes extracted from one pixel word.
+   *
+   * @param message the message array
+   * @param index the index of the first byte to write
+   * @param bitsPerByte the number of bytes to write
+   * @param value the bytes to write, as a little-endian value
+   */
+  private static void writeMessageWord(byte[] message, int index, int bitsPerByte, long value) {
+    switch (bitsPerByte) {
+      case 8 -> MESSAGE_LONG.set(message, index, value);
+      case 4 -> MESSAGE_INT.set(message, index, (int) value);
+      case 2 -> MESSAGE_SHORT.set(message, index, (short) value);
+      default -> message[index] = (byte) value;
+    }
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.kernels;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Implementation of {@link EmbeddingKernel} using the incubating Vector API to process a whole SIMD
+ * register of pixel bytes at a time.
+ *
+ * <p>When hiding, the message bytes are spread over the lanes with a shuffle (each message byte is
+ * copied to the {@code 8 / bitsPerByte} lanes carrying it), shifted by a per-lane amount and merged
+ * into the pixel lanes with a mask. When exposing, the hidden chunks are masked and shifted back
+ * into place, then the lanes belonging to the same message byte are OR-ed together inside {@code
+ * long} lanes and compacted with a shuffle.
+ *
+ * <p>This class must only be loaded when the {@code jdk.incubator.vector} module is available (see
+ * {@link Kernels}). It only handles heap buffers backed by an accessible array: other buffers, and
+ * the bytes that do not fill a whole register, are delegated to the {@link SwarKernel}.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public class VectorKernel implements EmbeddingKernel {
+
+  private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+  private static final int LANES = SPECIES.length();
+  private static final int BITS_IN_BYTE = 8;
+
+  // Indexed by log2(bitsPerByte)
+  // Lists rather than arrays, which cannot be created with the type of their shuffles
+  private static final List<VectorShuffle<Byte>> SPREAD_SHUFFLES;
+  private static final List<VectorShuffle<Byte>> GATHER_SHUFFLES;
+  private static final ByteVector[] SHIFTS = new ByteVector[4];
+
+  static {
+    List<VectorShuffle<Byte>> spreadShuffles = new ArrayList<>();
+    List<VectorShuffle<Byte>> gatherShuffles = new ArrayList<>();
+    for (int log = 0; log < 4; ++log) {
+      int bitsPerByte = 1 << log;
+      int lanesPerMessageByte = BITS_IN_BYTE / bitsPerByte;
+      int messageBytes = LANES / lanesPerMessageByte;
+
+      // Lane i carries a part of message byte i / lanesPerMessageByte...
+      spreadShuffles.add(VectorShuffle.fromOp(SPECIES, i -> i / lanesPerMessageByte));
+      // ...and the first lane of each message byte holds the whole byte once gathered
+      gatherShuffles.add(
+          VectorShuffle.fromOp(SPECIES, i -> i < messageBytes ? i * lanesPerMessageByte : 0));
+      // MSb first, like in the other kernels
+      byte[] shifts = new byte[LANES];
+      for (int i = 0; i < LANES; ++i) {
+        shifts[i] = (byte) (BITS_IN_BYTE - bitsPerByte * (i % lanesPerMessageByte + 1));
+      }
+      SHIFTS[log] = ByteVector.fromArray(SPECIES, shifts, 0);
+    }
+    SPREAD_SHUFFLES = List.copyOf(spreadShuffles);
+    GATHER_SHUFFLES = List.copyOf(gatherShuffles);
+  }
+
+  private final SwarKernel fallbackKernel = new SwarKernel();
+
+  @Override
+  public void embed(
+      ByteBuffer pixels,
+      int pixelIndex,
+      byte[] message,
+      int messageIndex,
+      int length,
+      int bitsPerByte) {
+    if (!pixels.hasArray()) {
+      fallbackKernel.embed(pixels, pixelIndex, message, messageIndex, length, bitsPerByte);
+      return;
+    }
+
+    int log = Integer.numberOfTrailingZeros(bitsPerByte);
+    VectorShuffle<Byte> spreadShuffle = SPREAD_SHUFFLES.get(log);
+    int messageStep = LANES * bitsPerByte / BITS_IN_BYTE;
+    byte[] data = pixels.array();
+    int dataIndex = pixels.arrayOffset() + pixelIndex;
+    int messageEnd = messageIndex + length;
+    byte bit_mask = (byte) ((1 << bitsPerByte) - 1);
+
+    // A full register of message bytes is loaded even if only (messageStep) of them are used: it
+    // may go past the requested range, as long as it stays inside the array, so that short ranges
+    // like the blocks of a scattered message are not mostly left to the fallback kernel
+    int loadEnd = message.length - LANES;
+    for (;
+        messageIndex + messageStep <= messageEnd && messageIndex <= loadEnd;
+        messageIndex += messageStep) {
+      ByteVector hidden =
+          ByteVector.fromArray(SPECIES, message, messageIndex)
+              .rearrange(spreadShuffle)
+              .lanewise(VectorOperators.LSHR, SHIFTS[log])
+              .and(bit_mask);
+      ByteVector.fromArray(SPECIES, data, dataIndex)
+          .and((byte) ~bit_mask)
+          .or(hidden)
+          .intoArray(data, dataIndex);
+      dataIndex += LANES;
+      pixelIndex += LANES;
+    } /* for */
+
+    fallbackKernel.embed(
+        pixels, pixelIndex, message, messageIndex, messageEnd - messageIndex, bitsPerByte);
+  }
+
+  @Override
+  public void extract(
+      ByteBuffer pixels,
+      int pixelIndex,
+      byte[] message,
+      int messageIndex,
+      int length,
+      int bitsPerByte) {
+    if (!pixels.hasArray()) {
+      fallbackKernel.extract(pixels, pixelIndex, message, messageIndex, length, bitsPerByte);
+      return;
+    }
+
+    int log = Integer.numberOfTrailingZeros(bitsPerByte);
+    VectorShuffle<Byte> gatherShuffle = GATHER_SHUFFLES.get(log);
+    int lanesPerMessageByte = BITS_IN_BYTE / bitsPerByte;
+    int messageStep = LANES / lanesPerMessageByte;
+    byte[] data = pixels.array();
+    int dataIndex = pixels.arrayOffset() + pixelIndex;
+    int messageEnd = messageIndex + length;
+    byte bit_mask = (byte) ((1 << bitsPerByte) - 1);
+
+    // A full register is stored: the bytes after the (messageStep) first ones are garbage which is
+    // overwritten by the next iteration, so near the end of the range only the first ones are
+    VectorMask<Byte> stepMask = SPECIES.indexInRange(0, messageStep);
+    for (; messageIndex + messageStep <= messageEnd; messageIndex += messageStep) {
+      ByteVector hidden =
+          ByteVector.fromArray(SPECIES, data, dataIndex)
+              .and(bit_mask)
+              .lanewise(VectorOperators.LSHL, SHIFTS[log]);
+
+      if (lanesPerMessageByte > 1) {
+        // Fold the lanes of each message byte onto its first lane
+        LongVector words = hidden.reinterpretAsLongs();
+        for (int lanes = lanesPerMessageByte / 2; lanes > 0; lanes /= 2) {
+          words = words.or(words.lanewise(VectorOperators.LSHR, (long) lanes * BITS_IN_BYTE));
+        }
+        hidden = words.reinterpretAsBytes().rearrange(gatherShuffle);
+      }
+
+      if (messageIndex + LANES <= messageEnd) {
+        hidden.intoArray(message, messageIndex);
+      } else {
+        hidden.intoArray(message, messageIndex, stepMask);
+      }
+      dataIndex += LANES;
+      pixelIndex += LANES;
+    } /* for */
+
+    fallbackKernel.extract(
+        pixels, pixelIndex, message, messageIndex, messageEnd - messageIndex, bitsPerByte);
+  }
+}
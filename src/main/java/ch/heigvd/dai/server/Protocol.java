@@ -0,0 +1,132 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Protocol spoken between {@link ShadowClient} and {@link ShadowServer}, one request per
+ * connection.
+ *
+ * <p>The client sends {@link #VERSION}, the token of the server (empty on a Unix domain socket, see
+ * {@link #getTokenPath(int)}), its working directory and the arguments of the command, the strings
+ * being written with {@link java.io.DataOutputStream#writeUTF(String)}. The server answers with
+ * frames made of a type and of a length followed by as many bytes: {@link #STDOUT} and {@link
+ * #STDERR} carry the output of the command, {@link #STDIN_REQUEST} (without length) asks the client
+ * for its standard input and {@link #EXIT} (whose length is the exit code) ends the request. The
+ * standard input is then sent by the client in frames made of a length and of as many bytes, an
+ * empty frame marking its end.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+final class Protocol {
+
+  static final int VERSION = 2;
+
+  static final byte STDOUT = 'O';
+  static final byte STDERR = 'E';
+  static final byte STDIN_REQUEST = 'I';
+  static final byte EXIT = 'X';
+
+  static final int FRAME_SIZE = 64 * 1024;
+
+  private Protocol() {}
+
+  /**
+   * Parses the address of a server: a port number designates a TCP port of the loopback interface,
+   * anything else the path of a Unix domain socket.
+   *
+   * @param target the port or the path of the socket
+   * @return the address of the server
+   */
+  static SocketAddress parseAddress(String target) {
+    if (target.matches("\\d{1,5}")) {
+      return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(target));
+    }
+    return UnixDomainSocketAddress.of(target);
+  }
+
+  /**
+   * Returns the path of the file holding the token of a server listening on a TCP port, in the home
+   * directory of the user, so that only the user who started the server can send it commands.
+   *
+   * @param port the TCP port of the server
+   * @return the path of the token file
+   */
+  static Path getTokenPath(int port) {
+    return Paths.get(System.getProperty("user.home"), ".shadow", "server-" + port + ".token");
+  }
+
+  /**
+   * Wraps the reading side of a connected channel in a stream.
+   *
+   * <p>The streams of {@link java.nio.channels.Channels} are not used, as they can lock the channel
+   * while reading and prevent the other side from writing at the same time.
+   */
+  static InputStream inputStream(SocketChannel channel) {
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        return channel.read(ByteBuffer.wrap(b, off, len));
+      }
+    };
+  }
+
+  /**
+   * Wraps the writing side of a connected channel in a stream.
+   *
+   * @see #inputStream(SocketChannel)
+   */
+  static OutputStream outputStream(SocketChannel channel) {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        } /* while */
+      }
+    };
+  }
+}
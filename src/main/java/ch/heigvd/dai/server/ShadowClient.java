@@ -0,0 +1,216 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.commands.Root;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Console;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import picocli.CommandLine;
+
+/**
+ * Thin client forwarding the arguments of the program to a {@link ShadowServer}, and displaying
+ * what the server answers.
+ *
+ * <p>The client does not parse the arguments, so that it starts as fast as possible: the command is
+ * only parsed and executed by the server, with the paths resolved against the working directory of
+ * the client. The only exception is the passphrase of an {@code --encryption-key} option without
+ * value, which is asked for on the terminal of the client, the server having no access to it.
+ *
+ * <p>A server listening on a TCP port only accepts the commands carrying its token, which the
+ * client reads from the file written by the server in the home directory of the user.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public final class ShadowClient {
+
+  private ShadowClient() {}
+
+  /**
+   * Sends a command to a server and waits for its completion.
+   *
+   * @param target the port or the path of the socket of the server, see {@link
+   *     Protocol#parseAddress(String)}
+   * @param args the arguments of the command
+   * @return the exit code of the command, 1 if the server could not be reached
+   */
+  public static int run(String target, String[] args) {
+    SocketAddress address;
+    try {
+      address = Protocol.parseAddress(target);
+    } catch (RuntimeException e) {
+      System.err.println("Invalid address of the server: " + target);
+      return 1;
+    }
+
+    String[] forwarded = promptPassphrase(args);
+    if (forwarded == null) {
+      System.err.println(
+          "The passphrase cannot be asked for without a terminal.\n"
+              + "Please provide it right after the option, as in '--encryption-key=<passphrase>'.");
+      return 1;
+    }
+
+    String token = "";
+    if (address instanceof InetSocketAddress inetAddress) {
+      Path tokenPath = Protocol.getTokenPath(inetAddress.getPort());
+      try {
+        token = Files.readString(tokenPath).trim();
+      } catch (IOException e) {
+        System.err.println(
+            "The token of the server cannot be read from "
+                + tokenPath
+                + ".\nThe server must be started by the same user with 'serve --port "
+                + inetAddress.getPort()
+                + "'.");
+        return 1;
+      }
+    } /* if */
+
+    try (SocketChannel channel = SocketChannel.open(address)) {
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(Protocol.outputStream(channel)));
+      out.writeInt(Protocol.VERSION);
+      out.writeUTF(token);
+      out.writeUTF(System.getProperty("user.dir"));
+      out.writeInt(forwarded.length);
+      for (String arg : forwarded) {
+        out.writeUTF(arg);
+      } /* for */
+      out.flush();
+
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Protocol.inputStream(channel)));
+      byte[] buffer = new byte[Protocol.FRAME_SIZE];
+
+      while (true) {
+        byte type = in.readByte();
+
+        switch (type) {
+          case Protocol.STDOUT, Protocol.STDERR -> {
+            int length = in.readInt();
+            in.readFully(buffer, 0, length);
+            PrintStream stream = type == Protocol.STDOUT ? System.out : System.err;
+            stream.write(buffer, 0, length);
+            stream.flush();
+          }
+          case Protocol.STDIN_REQUEST -> sendStandardInput(out);
+          case Protocol.EXIT -> {
+            return in.readInt();
+          }
+          default -> throw new IOException("Unexpected frame from the server: " + type);
+        } /* switch */
+      } /* while */
+    } catch (IOException e) {
+      System.err.println(
+          "Error while communicating with the server at "
+              + target
+              + "! Exception message:\n"
+              + e.getMessage());
+      return 1;
+    }
+  }
+
+  /**
+   * Asks for the passphrase of the {@code -e}/{@code --encryption-key} options that are not
+   * followed by a value, i.e. followed by nothing, by another option or by a subcommand, as picocli
+   * does.
+   *
+   * @param args the arguments of the command
+   * @return the arguments with the passphrase as the value of the option, or {@code null} if a
+   *     passphrase is needed but there is no terminal to ask for it
+   */
+  private static String[] promptPassphrase(String[] args) {
+    String[] forwarded = args.clone();
+
+    for (int i = 0; i < args.length; ++i) {
+      if (!args[i].equals("-e") && !args[i].equals("--encryption-key")) {
+        continue;
+      } /* if */
+
+      boolean hasValue =
+          i + 1 < args.length
+              && !(args[i + 1].startsWith("-") && args[i + 1].length() > 1)
+              && !isSubcommand(args[i + 1]);
+      if (hasValue) {
+        continue;
+      } /* if */
+
+      Console console = System.console();
+      char[] passphrase = console == null ? null : console.readPassword("Passphrase: ");
+      if (passphrase == null) {
+        return null;
+      } /* if */
+
+      forwarded[i] = "--encryption-key=" + new String(passphrase);
+      Arrays.fill(passphrase, '\0');
+    } /* for */
+
+    return forwarded;
+  }
+
+  private static boolean isSubcommand(String arg) {
+    for (Class<?> subcommand : Root.class.getAnnotation(CommandLine.Command.class).subcommands()) {
+      if (subcommand.getAnnotation(CommandLine.Command.class).name().equals(arg)) {
+        return true;
+      } /* if */
+    } /* for */
+
+    return false;
+  }
+
+  /** Sends the standard input in the background, the server can answer in the meantime. */
+  private static void sendStandardInput(DataOutputStream out) {
+    Thread sender =
+        new Thread(
+            () -> {
+              byte[] buffer = new byte[Protocol.FRAME_SIZE];
+              try {
+                InputStream in = System.in;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                  if (read > 0) {
+                    out.writeInt(read);
+                    out.write(buffer, 0, read);
+                    out.flush();
+                  }
+                } /* while */
+                out.writeInt(0);
+                out.flush();
+              } catch (IOException e) {
+                // The server ended the request without reading the whole input
+              }
+            },
+            "shadow-stdin");
+    sender.setDaemon(true);
+    sender.start();
+  }
+}
@@ -0,0 +1,491 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.server;
+
+import ch.heigvd.dai.commands.PathConverter;
+import ch.heigvd.dai.commands.Root;
+import ch.heigvd.dai.utilities.FileManipulator;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.HexFormat;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import jdk.net.ExtendedSocketOptions;
+import picocli.CommandLine;
+
+/**
+ * Server executing the commands sent by {@link ShadowClient}, so that the start of the JVM and the
+ * warm-up of the code are only paid once.
+ *
+ * <p>The server listens on a Unix domain socket or on a TCP port of the loopback interface and
+ * handles each connection on its own virtual thread, with a {@link Root} command that is not used
+ * by any other connection at the same time. The output of the command and its standard input and
+ * output, used when the message is {@value FileManipulator#STANDARD_STREAM}, are streamed over the
+ * connection as described by {@link Protocol}.
+ *
+ * <p>The commands run with the rights of the user who started the server, so only this user may
+ * send them. The Unix domain socket is created in a new directory only its owner can enter and
+ * restricted to its owner before being moved to its path, so that no other user can ever open it,
+ * and the peer of each connection is also checked to be the same user where the system tells it.
+ * Where neither the permissions nor the peer can be checked, the server does not listen on a Unix
+ * domain socket. As anybody on the machine can connect to a TCP port, the server writes a random
+ * token to a file only its owner can read (see {@link Protocol#getTokenPath(int)}) and rejects the
+ * connections without this token.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public final class ShadowServer implements Closeable {
+
+  // Set for the threads handling a request
+  private static final InheritableThreadLocal<Boolean> HANDLING_REQUEST =
+      new InheritableThreadLocal<>();
+
+  private static final int TOKEN_LENGTH = 32;
+  private static final boolean POSIX =
+      FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+
+  private final ServerSocketChannel channel;
+  private final Path socketPath;
+  private final boolean peerChecked;
+  private final UserPrincipal owner;
+  private final Path tokenPath;
+  private final byte[] token;
+
+  // Commands ready to handle another request, building one costs more than a small request
+  private final Queue<Command> idleCommands = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Opens the server.
+   *
+   * @param address the address to listen on, see {@link Protocol#parseAddress(String)}
+   * @param replace whether an existing file at the path of a Unix domain socket can be replaced
+   * @throws IOException if the address cannot be listened on, or if a Unix domain socket cannot be
+   *     restricted to its owner on this system
+   */
+  public ShadowServer(String address, boolean replace) throws IOException {
+    SocketAddress socketAddress = Protocol.parseAddress(address);
+
+    if (socketAddress instanceof UnixDomainSocketAddress unixAddress) {
+      socketPath = unixAddress.getPath();
+      peerChecked = isPeerCredentialsSupported();
+      if (!POSIX && !peerChecked) {
+        throw new IOException(
+            "A Unix domain socket cannot be restricted to its owner on this system, please use a TCP port");
+      }
+      if (replace) {
+        Files.deleteIfExists(socketPath);
+      }
+      channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    } else {
+      socketPath = null;
+      peerChecked = false;
+      channel = ServerSocketChannel.open();
+    } /* if */
+
+    try {
+      if (socketPath != null && POSIX) {
+        bindPrivately(channel, socketPath);
+      } else {
+        channel.bind(socketAddress);
+      } /* if */
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+
+    try {
+      if (socketPath != null) {
+        owner = Files.getOwner(socketPath);
+        tokenPath = null;
+        token = null;
+      } else {
+        owner = null;
+        tokenPath =
+            Protocol.getTokenPath(((InetSocketAddress) channel.getLocalAddress()).getPort());
+        token = writeToken(tokenPath);
+      } /* if */
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Checks whether the current thread is handling a request, in which case no other server should
+   * be started from it.
+   *
+   * @return {@code true} if the current thread handles a request, {@code false} if not
+   */
+  public static boolean isHandlingRequest() {
+    return HANDLING_REQUEST.get() != null;
+  }
+
+  /**
+   * @return the address the server listens on
+   * @throws IOException if the server is closed
+   */
+  public SocketAddress getAddress() throws IOException {
+    // The socket was bound at another path before being moved
+    return socketPath != null ? UnixDomainSocketAddress.of(socketPath) : channel.getLocalAddress();
+  }
+
+  /**
+   * @return the path of the file holding the token of the server, {@code null} on a Unix domain
+   *     socket
+   */
+  public Path getTokenPath() {
+    return tokenPath;
+  }
+
+  /**
+   * Accepts connections until the server is closed.
+   *
+   * @throws IOException if a connection cannot be accepted
+   */
+  public void serve() throws IOException {
+    while (true) {
+      SocketChannel client;
+      try {
+        client = channel.accept();
+      } catch (ClosedChannelException e) {
+        return;
+      }
+
+      Thread.ofVirtual().name("shadow-request").start(() -> handle(client));
+    } /* while */
+  }
+
+  /** Stops accepting connections and removes the Unix domain socket or the token file, if any. */
+  @Override
+  public void close() throws IOException {
+    channel.close();
+    if (socketPath != null) {
+      Files.deleteIfExists(socketPath);
+    }
+    if (tokenPath != null) {
+      Files.deleteIfExists(tokenPath);
+    }
+  }
+
+  /**
+   * Writes a new random token to a file only its owner can read, replacing any previous one.
+   *
+   * @param path the path of the token file
+   * @return the token, as written in the file
+   * @throws IOException if the file cannot be written
+   */
+  private static byte[] writeToken(Path path) throws IOException {
+    byte[] random = new byte[TOKEN_LENGTH];
+    new SecureRandom().nextBytes(random);
+    byte[] token = HexFormat.of().formatHex(random).getBytes(StandardCharsets.UTF_8);
+
+    Files.createDirectories(path.getParent(), ownerOnly("rwx------"));
+    // A new file, so that the permissions of a file left by another server are not kept
+    Files.deleteIfExists(path);
+    try (SeekableByteChannel file =
+        Files.newByteChannel(
+            path,
+            EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE),
+            ownerOnly("rw-------"))) {
+      file.write(ByteBuffer.wrap(token));
+    }
+
+    return token;
+  }
+
+  /**
+   * Binds a Unix domain socket in a new directory only its owner can enter, restricts the socket to
+   * its owner, then moves it to its path, so that no other user can connect to it at any time.
+   *
+   * @param channel the channel to bind
+   * @param socketPath the path of the socket, which must not exist
+   * @throws IOException if the socket cannot be bound or moved, e.g. if a file exists at its path
+   */
+  private static void bindPrivately(ServerSocketChannel channel, Path socketPath)
+      throws IOException {
+    Path directory =
+        Files.createTempDirectory(
+            socketPath.toAbsolutePath().getParent(), ".shadow", ownerOnly("rwx------"));
+    Path privatePath = directory.resolve("socket");
+    try {
+      channel.bind(UnixDomainSocketAddress.of(privatePath));
+      Files.setPosixFilePermissions(privatePath, PosixFilePermissions.fromString("rw-------"));
+      // Renamed in the same directory, which fails if a file already exists at the path
+      Files.move(privatePath, socketPath);
+    } finally {
+      Files.deleteIfExists(privatePath);
+      Files.delete(directory);
+    }
+  }
+
+  /**
+   * Checks whether the system tells the user at the other end of a Unix domain socket.
+   *
+   * @return {@code true} if the peer of a connection can be checked, {@code false} if not
+   * @throws IOException if a Unix domain socket cannot be opened
+   */
+  private static boolean isPeerCredentialsSupported() throws IOException {
+    try (SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+      return probe.supportedOptions().contains(ExtendedSocketOptions.SO_PEERCRED);
+    }
+  }
+
+  private static FileAttribute<?>[] ownerOnly(String permissions) {
+    return POSIX
+        ? new FileAttribute<?>[] {
+          PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))
+        }
+        : new FileAttribute<?>[0];
+  }
+
+  /**
+   * Checks whether a connection comes from the user who started the server.
+   *
+   * @param client the connection
+   * @param clientToken the token sent by the client, empty on a Unix domain socket
+   * @return {@code true} if the connection can send commands, {@code false} if not
+   * @throws IOException if the peer of the connection cannot be known
+   */
+  private boolean isAuthorized(SocketChannel client, String clientToken) throws IOException {
+    if (token != null) {
+      return MessageDigest.isEqual(token, clientToken.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Without the peer, the socket could only be opened by its owner (see bindPrivately)
+    return !peerChecked || client.getOption(ExtendedSocketOptions.SO_PEERCRED).user().equals(owner);
+  }
+
+  private void handle(SocketChannel client) {
+    HANDLING_REQUEST.set(Boolean.TRUE);
+
+    try (client) {
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Protocol.inputStream(client)));
+      Frames frames = new Frames(Protocol.outputStream(client));
+
+      if (in.readInt() != Protocol.VERSION) {
+        frames.write(
+            Protocol.STDERR,
+            "Unsupported version of the protocol, the client and the server must be the same version.\n"
+                .getBytes(StandardCharsets.UTF_8));
+        frames.exit(1);
+        return;
+      }
+
+      if (!isAuthorized(client, in.readUTF())) {
+        frames.write(
+            Protocol.STDERR,
+            "Only the user who started the server can send it commands.\n"
+                .getBytes(StandardCharsets.UTF_8));
+        frames.exit(1);
+        return;
+      }
+
+      Path directory = Paths.get(in.readUTF());
+      String[] args = new String[in.readInt()];
+      for (int i = 0; i < args.length; ++i) {
+        args[i] = in.readUTF();
+      } /* for */
+
+      PrintWriter out = frames.writer(Protocol.STDOUT);
+      PrintWriter err = frames.writer(Protocol.STDERR);
+      FileManipulator.setStandardStreams(
+          frames.standardInput(in), frames.outputStream(Protocol.STDOUT));
+
+      int exitCode = execute(directory, args, out, err);
+      out.flush();
+      err.flush();
+      frames.exit(exitCode);
+    } catch (IOException e) {
+      // The client is gone, there is nobody left to report the error to
+    }
+  }
+
+  private int execute(Path directory, String[] args, PrintWriter out, PrintWriter err) {
+    Command command = idleCommands.poll();
+    if (command == null) {
+      command = new Command();
+    }
+
+    try {
+      command.directory = directory;
+      command.commandLine.setOut(out).setErr(err);
+
+      long start = System.nanoTime();
+      int exitCode = command.commandLine.execute(args);
+      long end = System.nanoTime();
+
+      Root root = command.commandLine.getCommand();
+      root.printReport(exitCode, end - start, out, err);
+
+      return exitCode;
+    } finally {
+      // The options are reset by picocli each time a command is parsed
+      idleCommands.add(command);
+    }
+  }
+
+  /** Command reused from one request to the next, but only used by one request at a time. */
+  private static final class Command {
+    private final CommandLine commandLine;
+    private Path directory;
+
+    private Command() {
+      // The paths of the commands are resolved against the directory of the client rather than
+      // the one of the server
+      PathConverter pathConverter = new PathConverter(() -> directory);
+      CommandLine.IFactory factory =
+          new CommandLine.IFactory() {
+            @Override
+            public <K> K create(Class<K> type) throws Exception {
+              return type == PathConverter.class
+                  ? type.cast(pathConverter)
+                  : CommandLine.defaultFactory().create(type);
+            }
+          };
+
+      commandLine = new CommandLine(new Root(), factory);
+      commandLine.setCommandName("shadow").setCaseInsensitiveEnumValuesAllowed(true);
+    }
+  }
+
+  /** Writes the frames of a response, from any thread. */
+  private static final class Frames {
+    private final DataOutputStream out;
+
+    private Frames(OutputStream channel) {
+      out = new DataOutputStream(new BufferedOutputStream(channel, Protocol.FRAME_SIZE + 5));
+    }
+
+    private synchronized void write(byte type, byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        int length = Math.min(len, Protocol.FRAME_SIZE);
+        out.writeByte(type);
+        out.writeInt(length);
+        out.write(b, off, length);
+        off += length;
+        len -= length;
+      } /* while */
+      out.flush();
+    }
+
+    private void write(byte type, byte[] b) throws IOException {
+      write(type, b, 0, b.length);
+    }
+
+    private synchronized void requestStandardInput() throws IOException {
+      out.writeByte(Protocol.STDIN_REQUEST);
+      out.flush();
+    }
+
+    private synchronized void exit(int exitCode) throws IOException {
+      out.writeByte(Protocol.EXIT);
+      out.writeInt(exitCode);
+      out.flush();
+    }
+
+    private OutputStream outputStream(byte type) {
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          Frames.this.write(type, b, off, len);
+        }
+      };
+    }
+
+    private PrintWriter writer(byte type) {
+      return new PrintWriter(
+          new OutputStreamWriter(outputStream(type), StandardCharsets.UTF_8), true);
+    }
+
+    /** Standard input of the client, only requested once the command reads it. */
+    private InputStream standardInput(DataInputStream in) {
+      return new InputStream() {
+        private boolean requested = false;
+        private int remaining = 0;
+        private boolean ended = false;
+
+        @Override
+        public int read() throws IOException {
+          byte[] b = new byte[1];
+          return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+          if (!requested) {
+            requestStandardInput();
+            requested = true;
+          }
+
+          while (remaining == 0 && !ended) {
+            remaining = in.readInt();
+            ended = remaining == 0;
+          } /* while */
+
+          if (ended) {
+            return -1;
+          }
+
+          int read = in.read(b, off, Math.min(len, remaining));
+          if (read == -1) {
+            throw new IOException("The client closed the standard input before its end");
+          }
+          remaining -= read;
+          return read;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,350 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import ch.heigvd.dai.exceptions.ManifestException;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Implements the reading of the jobs executed by the {@code batch} subcommand.
+ *
+ * <p>A manifest is a text file with one job per line. Each line is either a CSV line:
+ *
+ * <pre>
+ * hide,carrier.bmp,message.txt,output.bmp[,bitsPerByte]
+ * expose,carrier.bmp,message.txt
+ * </pre>
+ *
+ * <p>or a JSON object on a single line, with the same fields:
+ *
+ * <pre>
+ * {"operation": "hide", "carrier": "carrier.bmp", "message": "message.txt", "output": "output.bmp", "bitsPerByte": 2}
+ * </pre>
+ *
+ * <p>Empty lines and lines starting with {@code #} are ignored. Relative paths are resolved from
+ * the directory of the manifest, so that a manifest can be moved along with its files.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public class BatchManifest {
+
+  /** Operation performed by a job. */
+  public enum Operation {
+    HIDE,
+    EXPOSE
+  }
+
+  /**
+   * Job read from a manifest or built from a glob.
+   *
+   * @param line the line of the job in the manifest, or its position for a glob
+   * @param operation the {@link Operation} to perform
+   * @param carrier the path to the BMP image
+   * @param message the path to the message to hide, or where to write the exposed message
+   * @param output the path to the image with the hidden message, {@code null} for {@link
+   *     Operation#EXPOSE}
+   * @param bitsPerByte the number of bits to hide per byte, {@code 0} to use the default one
+   */
+  public record Job(
+      int line, Operation operation, Path carrier, Path message, Path output, int bitsPerByte) {}
+
+  private BatchManifest() {}
+
+  /**
+   * Reads the jobs of a manifest.
+   *
+   * @param manifest the path to the manifest
+   * @return the {@link List} of jobs, in the order of the manifest
+   * @throws IOException if the manifest cannot be read
+   * @throws ManifestException if a line of the manifest is not a valid job
+   */
+  public static List<Job> read(Path manifest) throws IOException, ManifestException {
+    Path directory = manifest.toAbsolutePath().getParent();
+    List<Job> jobs = new ArrayList<>();
+
+    try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+      String line;
+      int number = 0;
+      while ((line = reader.readLine()) != null) {
+        ++number;
+        line = line.strip();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        } /* if */
+
+        Map<String, String> fields =
+            line.startsWith("{") ? parseJsonLine(number, line) : parseCsvLine(number, line);
+        jobs.add(toJob(number, fields, directory));
+      } /* while */
+    }
+
+    return jobs;
+  }
+
+  /**
+   * Builds a job for each BMP image matching a glob.
+   *
+   * <p>Only the last element of the glob may contain wildcards, e.g. {@code images/*.bmp}. When
+   * hiding, the same message is hidden inside every image and the images are written to the output
+   * directory with the same name. When exposing, the messages are written to the output directory
+   * with the name of the image and the {@code .bin} extension.
+   *
+   * @param glob the glob matching the BMP images
+   * @param operation the {@link Operation} to perform
+   * @param message the path to the message to hide, ignored for {@link Operation#EXPOSE}
+   * @param outputDirectory the directory where to write the results
+   * @return the {@link List} of jobs, sorted by image name
+   * @throws IOException if the directory of the glob cannot be read
+   */
+  public static List<Job> fromGlob(
+      String glob, Operation operation, Path message, Path outputDirectory) throws IOException {
+    Path pattern = Paths.get(glob);
+    Path directory = pattern.getParent() == null ? Paths.get(".") : pattern.getParent();
+
+    List<Path> carriers = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+        Files.newDirectoryStream(directory, pattern.getFileName().toString())) {
+      for (Path carrier : stream) {
+        if (Files.isRegularFile(carrier)) {
+          carriers.add(carrier);
+        } /* if */
+      } /* for */
+    }
+    carriers.sort(null);
+
+    List<Job> jobs = new ArrayList<>(carriers.size());
+    for (Path carrier : carriers) {
+      String name = carrier.getFileName().toString();
+      if (operation == Operation.HIDE) {
+        jobs.add(
+            new Job(
+                jobs.size() + 1, operation, carrier, message, outputDirectory.resolve(name), 0));
+      } else {
+        int extension = name.lastIndexOf('.');
+        String stem = extension > 0 ? name.substring(0, extension) : name;
+        jobs.add(
+            new Job(
+                jobs.size() + 1,
+                operation,
+                carrier,
+                outputDirectory.resolve(stem + ".bin"),
+                null,
+                0));
+      } /* if */
+    } /* for */
+
+    return jobs;
+  }
+
+  private static Job toJob(int number, Map<String, String> fields, Path directory)
+      throws ManifestException {
+    String operationName = fields.get("operation");
+    if (operationName == null) {
+      throw new ManifestException(number, "missing operation");
+    } /* if */
+
+    Operation operation;
+    try {
+      operation = Operation.valueOf(operationName.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new ManifestException(
+          number, "unknown operation '" + operationName + "', expected hide or expose");
+    }
+
+    Path carrier = resolve(number, fields, "carrier", directory);
+    Path message = resolve(number, fields, "message", directory);
+    Path output = null;
+    int bitsPerByte = 0;
+
+    if (operation == Operation.HIDE) {
+      output = resolve(number, fields, "output", directory);
+
+      String bits = fields.get("bitsPerByte");
+      if (bits != null && !bits.isEmpty()) {
+        try {
+          bitsPerByte = Integer.parseInt(bits);
+        } catch (NumberFormatException e) {
+          throw new ManifestException(number, "bitsPerByte is not a number: " + bits);
+        }
+      } /* if */
+    } else if (fields.get("output") != null || fields.get("bitsPerByte") != null) {
+      throw new ManifestException(number, "expose only takes a carrier and a message");
+    } /* if */
+
+    return new Job(number, operation, carrier, message, output, bitsPerByte);
+  }
+
+  private static Path resolve(int number, Map<String, String> fields, String field, Path directory)
+      throws ManifestException {
+    String value = fields.get(field);
+    if (value == null || value.isEmpty()) {
+      throw new ManifestException(number, "missing " + field);
+    } /* if */
+
+    // The standard streams cannot be shared between the jobs
+    if (value.equals(FileManipulator.STANDARD_STREAM)) {
+      throw new ManifestException(number, "the standard streams cannot be used in a batch");
+    } /* if */
+
+    return directory.resolve(value);
+  }
+
+  private static Map<String, String> parseCsvLine(int number, String line)
+      throws ManifestException {
+    String[] values = line.split(",", -1);
+    if (values.length < 3 || values.length > 5) {
+      throw new ManifestException(number, "expected 3 to 5 comma-separated values");
+    } /* if */
+
+    String[] keys = {"operation", "carrier", "message", "output", "bitsPerByte"};
+    Map<String, String> fields = new HashMap<>();
+    for (int i = 0; i < values.length; ++i) {
+      fields.put(keys[i], values[i].strip());
+    } /* for */
+
+    return fields;
+  }
+
+  // Only flat objects are supported, which is all a job needs
+  private static Map<String, String> parseJsonLine(int number, String line)
+      throws ManifestException {
+    Map<String, String> fields = new HashMap<>();
+    int[] position = {1};
+
+    skipWhitespace(line, position);
+    if (peek(line, position) == '}') {
+      ++position[0];
+    } else {
+      while (true) {
+        skipWhitespace(line, position);
+        String key = parseJsonString(number, line, position);
+        skipWhitespace(line, position);
+        expect(number, line, position, ':');
+        skipWhitespace(line, position);
+
+        char c = peek(line, position);
+        String value;
+        if (c == '"') {
+          value = parseJsonString(number, line, position);
+        } else {
+          int start = position[0];
+          while (position[0] < line.length() && ",} \t".indexOf(line.charAt(position[0])) < 0) {
+            ++position[0];
+          } /* while */
+          value = line.substring(start, position[0]);
+          if (value.isEmpty()) {
+            throw new ManifestException(number, "missing value for " + key);
+          } else if (value.equals("null")) {
+            value = null;
+          } /* if */
+        } /* if */
+        fields.put(key, value);
+
+        skipWhitespace(line, position);
+        if (peek(line, position) == ',') {
+          ++position[0];
+        } else {
+          expect(number, line, position, '}');
+          break;
+        } /* if */
+      } /* while */
+    } /* if */
+
+    skipWhitespace(line, position);
+    if (position[0] != line.length()) {
+      throw new ManifestException(number, "unexpected content after the JSON object");
+    } /* if */
+
+    return fields;
+  }
+
+  private static String parseJsonString(int number, String line, int[] position)
+      throws ManifestException {
+    expect(number, line, position, '"');
+
+    StringBuilder value = new StringBuilder();
+    while (true) {
+      if (position[0] >= line.length()) {
+        throw new ManifestException(number, "unterminated JSON string");
+      } /* if */
+
+      char c = line.charAt(position[0]++);
+      if (c == '"') {
+        return value.toString();
+      } else if (c != '\\') {
+        value.append(c);
+        continue;
+      } /* if */
+
+      char escaped = peek(line, position);
+      ++position[0];
+      switch (escaped) {
+        case '"', '\\', '/' -> value.append(escaped);
+        case 'b' -> value.append('\b');
+        case 'f' -> value.append('\f');
+        case 'n' -> value.append('\n');
+        case 'r' -> value.append('\r');
+        case 't' -> value.append('\t');
+        case 'u' -> {
+          if (position[0] + 4 > line.length()) {
+            throw new ManifestException(number, "invalid unicode escape in JSON string");
+          } /* if */
+          try {
+            value.append((char) Integer.parseInt(line, position[0], position[0] + 4, 16));
+          } catch (NumberFormatException e) {
+            throw new ManifestException(number, "invalid unicode escape in JSON string");
+          }
+          position[0] += 4;
+        }
+        default -> throw new ManifestException(number, "invalid escape in JSON string");
+      } /* switch */
+    } /* while */
+  }
+
+  private static char peek(String line, int[] position) {
+    return position[0] < line.length() ? line.charAt(position[0]) : '\0';
+  }
+
+  private static void skipWhitespace(String line, int[] position) {
+    while (position[0] < line.length() && Character.isWhitespace(line.charAt(position[0]))) {
+      ++position[0];
+    } /* while */
+  }
+
+  private static void expect(int number, String line, int[] position, char expected)
+      throws ManifestException {
+    if (peek(line, position) != expected) {
+      throw new ManifestException(
+          number, "expected '" + expected + "' at column " + (position[0] + 1));
+    } /* if */
+    ++position[0];
+  }
+}
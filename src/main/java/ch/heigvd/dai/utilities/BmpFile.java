@@ -19,23 +19,65 @@
 package ch.heigvd.dai.utilities;
 
 import ch.heigvd.dai.exceptions.BmpFileException;
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Implements the required logic to parse a bitmap file and modify its content.
  *
+ * <p>The pixels are described by the {@link DibHeader} following the file header. A message is only
+ * hidden in the bytes of their color channels, which skip the padding of the rows and the alpha or
+ * unused bytes of the pixels: the offsets given to {@link #editPixels(long, int, PixelEditor)} and
+ * {@link #readPixels(long, int, PixelEditor)} are indexes among these bytes, which can go beyond 2
+ * GiB.
+ *
+ * <p>The pixel array is either loaded in the heap ({@link Backend#HEAP}), loaded in the heap the
+ * first time it is accessed ({@link Backend#LAZY}) or memory-mapped from the file ({@link
+ * Backend#MAPPED}). In the latter case, only the pages of the pixel array that are accessed are
+ * read, the heap usage does not depend on the size of the image, and the instance must be closed to
+ * release the file. The pixel array is then mapped in segments of 1 GiB, so that images bigger than
+ * the 2 GiB a single mapping can hold can be used. The two others only read the headers when the
+ * file is opened, with a single positional read, so that the lazy backend can probe many images for
+ * a hidden message. They borrow their pixel array from the shared {@link BufferPool}, so their
+ * instances must be closed as well to give it back. As their pixel array is an array, they cannot
+ * open images whose pixel array is bigger than 2 GiB.
+ *
+ * <p>The length of the hidden data and the number of bits per byte are stored in the reserved field
+ * of the bitmap header: 29 bits for the length and 3 bits for the number of bits per byte. Only 4
+ * of the 8 values of the latter are needed, so the 4 others tell that the hidden data starts with a
+ * {@link MessageHeader} describing the message. A message without header is read from the whole
+ * pixel array, padding and alpha included, as older versions of the program hid it there: such a
+ * message is therefore only hidden in images whose pixel array has no other byte than those of the
+ * color channels (see {@link DibHeader#isDense()}), a header being added for the others. Hidden
+ * data longer than the 29 bits can tell always starts with a header: the 29 bits are then all set,
+ * and the length is the one given by the header (see {@link #hasExtendedMessageLength()}).
+ *
  * @author Pedro Alves da Silva
  * @author Gonçalo Carvalheiro Heleno
  */
-public class BmpFile {
+public class BmpFile implements AutoCloseable {
+
+  /** Defines where the pixel array of a {@link BmpFile} lives. */
+  public enum Backend {
+    /** The pixel array is read into a {@code byte[]} array. */
+    HEAP,
+    /**
+     * The pixel array is read into a {@code byte[]} array the first time it is accessed, the file
+     * being opened again by its path. Only the headers are read until then.
+     */
+    LAZY,
+    /**
+     * The pixel array is memory-mapped from the file the first time it is accessed, each segment of
+     * the mapping being shared by all the accesses.
+     */
+    MAPPED
+  }
 
   private static final String[] VALID_MAGICS = {"BM", "BA", "CI", "CP", "IC", "PT"};
   public static final int MIN_MESSAGE_LENGTH = 1;
@@ -44,30 +86,115 @@ public class BmpFile {
   public static final int MIN_BITS_PER_BYTE = 1;
   public static final int MAX_BITS_PER_BYTE = 8;
   private static final int BITS_PER_BYTE_SHIFT = 29;
+  // Bits per byte codes telling that the hidden data starts with a MessageHeader, by log2(bits)
+  private static final int[] MESSAGE_HEADER_CODES = {2, 4, 5, 6};
   private static final int MAGIC_BYTES_LEN = 2;
   private static final int HEADER_FIELDS_LEN = 4;
   private static final int HEADER_LEN = MAGIC_BYTES_LEN + HEADER_FIELDS_LEN * 3;
+  private static final int MESSAGE_HEADER_OFFSET = MAGIC_BYTES_LEN + HEADER_FIELDS_LEN;
+  // Largest array the VM can allocate, which bounds the pixel array of the heap backends
+  private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
+  // Mapped segments of the pixel array, each one overlapping the next by MAPPING_OVERLAP bytes so
+  // that most ranges starting in a segment can be accessed without copy
+  private static final long MAPPING_SEGMENT = 1L << 30;
+  private static final int MAPPING_OVERLAP = 64 << 20;
+  // Reused by the instances created on a thread, the headers being decoded without allocating
+  private static final ThreadLocal<ByteBuffer> HEADER_BUFFER =
+      ThreadLocal.withInitial(
+          () ->
+              ByteBuffer.allocate(HEADER_LEN + DibHeader.MAX_LENGTH)
+                  .order(ByteOrder.LITTLE_ENDIAN));
   private boolean _hasMessage;
-  private byte[] _pixelArray;
-  private int _fileSize; // BMP files, as per their header, cannot be bigger than 2^32 bytes
-  private int _pixelArrayOffset;
-  private int _messageLength;
+  private boolean _hasMessageHeader;
+  private BufferPool.Buffer _pixelBuffer; // Only used by the HEAP and LAZY backends
+  private byte[] _pixelArray; // Array of _pixelBuffer, which may be longer than the pixel array
+  private FileChannel _channel; // Only used by the MAPPED backend
+  private MappedByteBuffer[] _pixelMappings; // Only used by the MAPPED backend, once accessed
+  private DibHeader _dibHeader;
+  private long _pixelArrayLength; // Up to the end of the file, whatever the size in the header is
+  private int _dirtyStart; // Range of the pixel array edited since it was last written to the file
+  private int _dirtyEnd;
+  private long _pixelArrayOffset;
+  private long _messageLength;
+  private boolean _extendedMessageLength; // Length only known once the MessageHeader is read
   private int _bitsPerByte;
   private final String _bmpFilePath;
+  private final Backend _backend;
+  private final boolean _writable; // Only true for a MAPPED file opened for writing
 
   /**
-   * Parses and splits a bitmap file into useful data.
+   * Parses and splits a bitmap file into useful data, loading its pixel array in the heap.
    *
    * @param bmpFilePath a {@link String} with the path to a bitmap file
    * @throws BmpFileException if the bitmap file is not valid
    * @throws IOException if there is an IO error when handling the bitmap file
    */
   public BmpFile(String bmpFilePath) throws BmpFileException, IOException {
-    try (FileInputStream bmpInputStream = new FileInputStream(bmpFilePath);
-        BufferedInputStream bufferedInputStream = new BufferedInputStream(bmpInputStream)) {
-      readBitmapHeader(bufferedInputStream);
-      readPixelArray(bufferedInputStream);
-      _bmpFilePath = bmpFilePath;
+    this(bmpFilePath, Backend.HEAP);
+  }
+
+  /**
+   * Parses a bitmap file with the given backend.
+   *
+   * <p>With the {@link Backend#MAPPED} backend, the file is opened read-only: its pixel array can
+   * be read but not edited. Use {@link #copyTo(String)} to get a writable copy.
+   *
+   * @param bmpFilePath a {@link String} with the path to a bitmap file
+   * @param backend the {@link Backend} holding the pixel array
+   * @throws BmpFileException if the bitmap file is not valid
+   * @throws IOException if there is an IO error when handling the bitmap file
+   */
+  public BmpFile(String bmpFilePath, Backend backend) throws BmpFileException, IOException {
+    this(bmpFilePath, backend, false);
+  }
+
+  /**
+   * Parses a bitmap file with the given backend and access mode.
+   *
+   * <p>A writable {@link Backend#MAPPED} file is modified directly by {@link #editPixels(long, int,
+   * PixelEditor)} and {@link #setMessage(long, int)}. The access mode has no effect on the other
+   * backends, whose changes are only written by {@link #saveFile(String)}.
+   *
+   * @param bmpFilePath a {@link String} with the path to a bitmap file
+   * @param backend the {@link Backend} holding the pixel array
+   * @param writable whether the changes made to a {@link Backend#MAPPED} file are written to it
+   * @throws BmpFileException if the bitmap file is not valid
+   * @throws IOException if there is an IO error when handling the bitmap file
+   */
+  public BmpFile(String bmpFilePath, Backend backend, boolean writable)
+      throws BmpFileException, IOException {
+    long start = System.nanoTime();
+    _bmpFilePath = bmpFilePath;
+    _backend = backend;
+    _writable = writable && backend == Backend.MAPPED;
+
+    FileChannel channel =
+        _writable
+            ? FileChannel.open(
+                Path.of(bmpFilePath), StandardOpenOption.READ, StandardOpenOption.WRITE)
+            : FileChannel.open(Path.of(bmpFilePath), StandardOpenOption.READ);
+    try {
+      int headerLength = readHeaders(channel);
+
+      switch (backend) {
+        case HEAP -> {
+          readPixelArray(channel);
+          channel.close();
+          Metrics.record(Metrics.Phase.READ_IMAGE, start, _pixelArrayOffset + _pixelArrayLength);
+        }
+        case LAZY -> {
+          channel.close();
+          Metrics.record(Metrics.Phase.READ_IMAGE, start, headerLength);
+        }
+        case MAPPED -> {
+          _channel = channel;
+          Metrics.record(Metrics.Phase.READ_IMAGE, start, headerLength);
+        }
+      } /* switch */
+    } catch (RuntimeException | IOException e) {
+      channel.close();
+      close();
+      throw e;
     }
   }
 
@@ -80,12 +207,38 @@ public class BmpFile {
     return _hasMessage;
   }
 
+  /**
+   * Returns whether the hidden data starts with a {@link MessageHeader}.
+   *
+   * @return {@code true} if a message header is present, {@code false} if not
+   */
+  public boolean hasMessageHeader() {
+    return _hasMessageHeader;
+  }
+
+  /**
+   * Returns whether the hidden data is too long for its length to be stored in the bitmap header.
+   *
+   * <p>The length is then only given by the {@link MessageHeader} starting the hidden data, and
+   * {@link #getMessageLength()} returns {@link #MAX_MESSAGE_LENGTH} until the header is read by
+   * {@link MessageManipulator#readMessageHeader(BmpFile)}. Older versions of the program refuse
+   * such a message, as its header does not match the length of the bitmap header.
+   *
+   * @return {@code true} if the length is stored in the message header, {@code false} if not
+   */
+  public boolean hasExtendedMessageLength() {
+    return _extendedMessageLength;
+  }
+
   /**
    * Returns the hidden message's length.
    *
+   * <p>If the hidden data starts with a {@link MessageHeader}, the length includes it.
+   *
    * @return Hidden message's length if one is present, or 0 if no message is hidden
+   * @see #hasExtendedMessageLength()
    */
-  public int getMessageLength() {
+  public long getMessageLength() {
     return _messageLength;
   }
 
@@ -99,94 +252,688 @@ public class BmpFile {
   }
 
   /**
-   * Changes the pixel array data, hidden message length, and number of bits per data byte.
+   * Returns the DIB header describing the pixels of the image.
+   *
+   * @return the {@link DibHeader} of the file
+   */
+  public DibHeader getDibHeader() {
+    return _dibHeader;
+  }
+
+  /**
+   * Returns the length of the pixel array, from its offset to the end of the file.
+   *
+   * @return a {@code long} with the length of the pixel array
+   */
+  public long getPixelArrayLength() {
+    return _pixelArrayLength;
+  }
+
+  /**
+   * Returns the number of bytes of the pixel array that can carry a message, i.e. the bytes of the
+   * color channels of the pixels.
+   *
+   * @return a {@code long} with the number of bytes that can carry a message
+   * @see DibHeader#getCarrierLength()
+   */
+  public long getCarrierLength() {
+    return _dibHeader.getCarrierLength();
+  }
+
+  /**
+   * Returns how many message bytes can be hidden in the pixel array.
+   *
+   * <p>Each byte of the color channels carries (bitsPerByte) bits of the message, so a message byte
+   * needs {@code 8 / bitsPerByte} bytes of color channels. Only a message starting with a {@link
+   * MessageHeader} can be longer than {@link #MAX_MESSAGE_LENGTH}.
+   *
+   * @param bitsPerByte number of bits per data byte
+   * @return a {@code long} with the maximum length of a message that can be hidden
+   */
+  public long getCapacity(int bitsPerByte) {
+    return getCarrierLength() * bitsPerByte / MAX_BITS_PER_BYTE;
+  }
+
+  /**
+   * Checks whether the hidden message, as described by the header, fits in the bytes it is hidden
+   * in.
+   *
+   * @return {@code true} if the whole message can be read, {@code false} if the header is not
+   *     coherent with the pixel array
+   */
+  public boolean isMessageComplete() {
+    long needed = _messageLength * (MAX_BITS_PER_BYTE / _bitsPerByte);
+    return needed <= (isLegacyLayout() ? _pixelArrayLength : getCarrierLength());
+  }
+
+  /**
+   * Changes the hidden message length and number of bits per data byte.
+   *
+   * <p>The message itself must have been written in the pixel array through {@link
+   * #editPixels(long, int, PixelEditor)}. For a writable {@link Backend#MAPPED} file, the header of
+   * the file is updated immediately.
    *
-   * @param data new pixel array as a {@code byte[]}
    * @param messageLength new message length
    * @param bitsPerByte number of bits per data byte
+   * @throws BmpFileException if one of the arguments is not coherent with the pixel array
+   * @throws IOException if the header of a mapped file cannot be written
+   */
+  public void setMessage(long messageLength, int bitsPerByte) throws BmpFileException, IOException {
+    setMessage(messageLength, bitsPerByte, false);
+  }
+
+  /**
+   * Changes the hidden message length and number of bits per data byte, telling whether the hidden
+   * data starts with a {@link MessageHeader}.
+   *
+   * @param messageLength new message length, including the message header if any
+   * @param bitsPerByte number of bits per data byte
+   * @param hasMessageHeader whether the hidden data starts with a {@link MessageHeader}
+   * @throws BmpFileException if one of the arguments is not coherent with the pixel array
+   * @throws IOException if the header of a mapped file cannot be written
+   * @see #setMessage(long, int)
    */
-  public void setData(byte[] data, int messageLength, int bitsPerByte) {
-    if (data.length != _pixelArray.length) {
-      throw new BmpFileException("Incoherent data length");
+  public void setMessage(long messageLength, int bitsPerByte, boolean hasMessageHeader)
+      throws BmpFileException, IOException {
+    // We only accept powers of 2
+    if (bitsPerByte < MIN_BITS_PER_BYTE
+        || bitsPerByte > MAX_BITS_PER_BYTE
+        || MAX_BITS_PER_BYTE % bitsPerByte != 0) {
+      throw new BmpFileException("Invalid bits per byte");
     }
 
-    if (messageLength > data.length) {
+    if (messageLength < 0 || messageLength > getCapacity(bitsPerByte)) {
       throw new BmpFileException("Incoherent message length");
     }
 
-    // We only accept multiples of 2
-    if (bitsPerByte != 1 && bitsPerByte % 2 != 0) {
-      throw new BmpFileException("Invalid bits per byte");
+    // Only the message header can tell a length that does not fit in the bitmap header
+    if (!hasMessageHeader && messageLength > MAX_MESSAGE_LENGTH) {
+      throw new BmpFileException("A message without header is limited to 29 bits of length");
+    }
+
+    // It would be read from the whole pixel array, as hidden by older versions
+    if (!hasMessageHeader && messageLength > 0 && !_dibHeader.isDense()) {
+      throw new BmpFileException(
+          "A message without header cannot be hidden in an image with row padding or alpha");
     }
 
-    _pixelArray = data.clone();
     _bitsPerByte = bitsPerByte;
     _messageLength = messageLength;
+    _hasMessage = messageLength > 0;
+    _hasMessageHeader = hasMessageHeader && _hasMessage;
+    _extendedMessageLength = _hasMessageHeader && messageLength >= MAX_MESSAGE_LENGTH;
+
+    if (_writable) {
+      _channel.write(encodeMessageHeader(), MESSAGE_HEADER_OFFSET);
+    }
+  }
+
+  /**
+   * Gives a {@link PixelEditor} access to a range of the bytes carrying a message.
+   *
+   * <p>The editor receives a {@link ByteBuffer} whose index 0 is the byte {@code offset} of the
+   * color channels: any change made to the buffer is a change of the instance (and of the file
+   * itself for a writable {@link Backend#MAPPED} file). The buffer is only valid during the call
+   * and must not be kept once the editor returns. It is a direct view of the pixel array when the
+   * pixel array only holds color channels, and a copy of the color channels written back once the
+   * editor returns otherwise.
+   *
+   * @param offset index of the first byte of the range among the bytes carrying a message
+   * @param length number of bytes in the range
+   * @param editor the {@link PixelEditor} to run on the range
+   * @throws BmpFileException if the range is not inside the color channels or if a mapped file is
+   *     not writable
+   * @throws IOException if the range cannot be mapped
+   */
+  public void editPixels(long offset, int length, PixelEditor editor)
+      throws BmpFileException, IOException {
+    checkRange(offset, length, getCarrierLength());
+
+    if (_dibHeader.isDense()) {
+      accessPixelArray(offset, length, editor, true);
+    } else {
+      transferChannels(offset, length, editor, true);
+    } /* if */
   }
 
   /**
-   * Returns the pixel array that was read from the BMP file.
+   * Gives a {@link PixelEditor} access to a range of the bytes carrying a message, for reading
+   * only.
    *
-   * <p>This function returns a copy of the pixel array of the instance.
+   * <p>The rules are the same as for {@link #editPixels(long, int, PixelEditor)}, but the editor
+   * must not modify the buffer. Heap buffers are not made read-only so that editors can still reach
+   * the backing array for bulk operations. The range is a range of the whole pixel array when the
+   * hidden message has no header, as older versions of the program hid it there.
    *
-   * @return a {@code byte[]} with the pixel array
+   * @param offset index of the first byte of the range among the bytes carrying a message
+   * @param length number of bytes in the range
+   * @param editor the {@link PixelEditor} to run on the range
+   * @throws BmpFileException if the range is not inside the color channels
+   * @throws IOException if the range cannot be mapped
    */
-  public byte[] getPixelArray() {
-    return _pixelArray.clone();
+  public void readPixels(long offset, int length, PixelEditor editor)
+      throws BmpFileException, IOException {
+    if (isLegacyLayout()) {
+      checkRange(offset, length, _pixelArrayLength);
+      accessPixelArray(offset, length, editor, false);
+    } else if (_dibHeader.isDense()) {
+      checkRange(offset, length, getCarrierLength());
+      accessPixelArray(offset, length, editor, false);
+    } else {
+      checkRange(offset, length, getCarrierLength());
+      transferChannels(offset, length, editor, false);
+    } /* if */
   }
 
   /**
-   * Dumps the pixel array into the provided output file.
+   * Gives a {@link PixelBlockEditor} access to blocks of the bytes carrying a message, scattered in
+   * the pixel array.
    *
-   * <p>Note that the original input file must still exist.
+   * <p>The blocks are accessed in the order of their offsets, which must be increasing, so that the
+   * pixel array is walked forward once whatever the number of blocks. The buffers follow the rules
+   * of {@link #editPixels(long, int, PixelEditor)}: they are a direct view of the range of the
+   * pixel array going from the first block to the last one when the pixel array only holds color
+   * channels, and a copy of each block written back once the editor returns otherwise. The blocks
+   * of a pixel array too big for a single view are accessed through several views in turn.
    *
-   * @param outputFilePath a {@link String} with the path to the output file which must not be the
-   *     same file as the input file
+   * @param offsets the indexes of the first byte of each block among the bytes carrying a message,
+   *     in increasing order
+   * @param count the number of blocks, from the start of {@code offsets}
+   * @param blockLength the number of bytes in each block
+   * @param editor the {@link PixelBlockEditor} to run on each block
+   * @throws BmpFileException if a block is not inside the color channels, if the blocks are not in
+   *     increasing order or if a mapped file is not writable
+   * @throws IOException if the range holding the blocks cannot be mapped
+   */
+  public void editBlocks(long[] offsets, int count, int blockLength, PixelBlockEditor editor)
+      throws BmpFileException, IOException {
+    accessBlocks(offsets, count, blockLength, editor, true);
+  }
+
+  /**
+   * Gives a {@link PixelBlockEditor} access to blocks of the bytes carrying a message, for reading
+   * only.
+   *
+   * <p>The rules are the same as for {@link #editBlocks(long[], int, int, PixelBlockEditor)}, but
+   * the editor must not modify the buffers.
+   *
+   * @param offsets the indexes of the first byte of each block among the bytes carrying a message,
+   *     in increasing order
+   * @param count the number of blocks, from the start of {@code offsets}
+   * @param blockLength the number of bytes in each block
+   * @param editor the {@link PixelBlockEditor} to run on each block
+   * @throws BmpFileException if a block is not inside the color channels or if the blocks are not
+   *     in increasing order
+   * @throws IOException if the range holding the blocks cannot be mapped
+   */
+  public void readBlocks(long[] offsets, int count, int blockLength, PixelBlockEditor editor)
+      throws BmpFileException, IOException {
+    accessBlocks(offsets, count, blockLength, editor, false);
+  }
+
+  /**
+   * Copies the bitmap file on disk to another path and opens the copy as a writable {@link
+   * Backend#MAPPED} file.
+   *
+   * <p>The copy is done by the kernel when possible (see {@link #saveFile(String)}), so the content
+   * of the file never goes through the heap. Changes made to this instance that were not saved are
+   * not copied.
+   *
+   * @param outputFilePath a {@link String} with the path to the copy, which must not be the same
+   *     file as this one
+   * @return a writable {@link BmpFile} for the copy, which must be closed
+   * @throws IOException if an IO error occurs with either file
+   */
+  public BmpFile copyTo(String outputFilePath) throws IOException {
+    if (isSameFile(outputFilePath)) {
+      throw new BmpFileException("The copy cannot be the same file as the original");
+    } /* if */
+
+    long start = System.nanoTime();
+    long copied = copyFile(Path.of(outputFilePath));
+    Metrics.record(Metrics.Phase.WRITE_IMAGE, start, copied);
+
+    return new BmpFile(outputFilePath, Backend.MAPPED, true);
+  }
+
+  /**
+   * Releases the file of a {@link Backend#MAPPED} instance, or gives the pixel array of the other
+   * backends back to the {@link BufferPool}. Changes that were not saved are lost.
+   *
+   * @throws IOException if the file cannot be closed
+   */
+  @Override
+  public void close() throws IOException {
+    if (_channel != null) {
+      _channel.close();
+      _pixelMappings = null;
+    }
+
+    if (_pixelBuffer != null) {
+      _pixelBuffer.close();
+      _pixelBuffer = null;
+      _pixelArray = null;
+      _dirtyStart = _dirtyEnd = 0;
+    }
+  }
+
+  /**
+   * Writes the bitmap file, with its changes, to the provided output file.
+   *
+   * <p>Only the changes are written: the original file is first copied to the output file by the
+   * kernel with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+   * (which can share the data blocks of the original file on file systems supporting it), then the
+   * message header and the range of the pixel array that was edited are written at their position.
+   * If the output file is the original file, nothing is copied and the file is patched in place.
+   *
+   * <p>Note that the original input file must still exist. Changes made to a writable {@link
+   * Backend#MAPPED} file are already in the file.
+   *
+   * @param outputFilePath a {@link String} with the path to the output file, which may be the same
+   *     file as the input file
    * @throws IOException if an IO error occurs with either the input or output file
    */
   public void saveFile(String outputFilePath) throws IOException {
-    try (FileInputStream bmpInputStream = new FileInputStream(_bmpFilePath);
-        BufferedInputStream bufferedInputStream = new BufferedInputStream(bmpInputStream);
-        FileOutputStream bmpOutputStream = new FileOutputStream(outputFilePath);
-        BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(bmpOutputStream)) {
-      // Write unaltered header (magic bytes + file size)
-      bufferedOutputStream.write(
-          bufferedInputStream.readNBytes(MAGIC_BYTES_LEN + HEADER_FIELDS_LEN));
-
-      // Write hidden message length
-      ByteBuffer byteBuffer = ByteBuffer.allocate(HEADER_FIELDS_LEN);
-      byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-      int rawBitsAndLen = ((_bitsPerByte - 1) << BITS_PER_BYTE_SHIFT) | _messageLength;
-      byteBuffer.putInt(rawBitsAndLen);
-      bufferedOutputStream.write(byteBuffer.array());
-
-      // Compensate the fact we didn't read from the input file
-      bufferedInputStream.skipNBytes(HEADER_FIELDS_LEN);
-
-      // Data offset
-      bufferedOutputStream.write(bufferedInputStream.readNBytes(HEADER_FIELDS_LEN));
-
-      // Additional headers
-      bufferedOutputStream.write(
-          bufferedInputStream.readNBytes(_fileSize - _pixelArray.length - HEADER_LEN));
-
-      // Write full pixel array
-      bufferedOutputStream.write(_pixelArray);
-      bufferedOutputStream.flush();
+    long start = System.nanoTime();
+    Path outputPath = Path.of(outputFilePath);
+    boolean inPlace = isSameFile(outputFilePath);
+    long written = HEADER_FIELDS_LEN;
+
+    if (!inPlace) {
+      written += copyFile(outputPath);
+    } /* if */
+
+    try (FileChannel output = FileChannel.open(outputPath, StandardOpenOption.WRITE)) {
+      output.write(encodeMessageHeader(), MESSAGE_HEADER_OFFSET);
+
+      // Only the heap backends have changes that are not in the original file yet
+      if (_dirtyEnd > _dirtyStart) {
+        ByteBuffer dirty = ByteBuffer.wrap(_pixelArray, _dirtyStart, _dirtyEnd - _dirtyStart);
+        long position = _pixelArrayOffset + _dirtyStart;
+        written += dirty.remaining();
+        while (dirty.hasRemaining()) {
+          position += output.write(dirty, position);
+        } /* while */
+      } /* if */
+    }
+    Metrics.record(Metrics.Phase.WRITE_IMAGE, start, written);
+
+    if (inPlace) {
+      _dirtyStart = _dirtyEnd = 0;
+    } /* if */
+  }
+
+  /**
+   * Encodes the hidden message length and the number of bits per byte as they are stored in the
+   * header.
+   *
+   * @return a {@link ByteBuffer} ready to be written
+   */
+  private ByteBuffer encodeMessageHeader() {
+    ByteBuffer byteBuffer = ByteBuffer.allocate(HEADER_FIELDS_LEN);
+    byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    int bitsCode =
+        _hasMessageHeader
+            ? MESSAGE_HEADER_CODES[Integer.numberOfTrailingZeros(_bitsPerByte)]
+            : _bitsPerByte - 1;
+    // A longer length is only given by the message header, all the 29 bits are set to tell it
+    int length = (int) Math.min(_messageLength, MAX_MESSAGE_LENGTH);
+    int rawBitsAndLen = (bitsCode << BITS_PER_BYTE_SHIFT) | length;
+    byteBuffer.putInt(rawBitsAndLen);
+    return byteBuffer.flip();
+  }
+
+  /**
+   * Checks whether a path designates the bitmap file of this instance.
+   *
+   * @param filePath a {@link String} with the path to check
+   * @return {@code true} if both paths are the same file, {@code false} if not
+   * @throws IOException if the files cannot be compared
+   */
+  private boolean isSameFile(String filePath) throws IOException {
+    Path path = Path.of(filePath);
+    return Files.exists(path) && Files.isSameFile(Path.of(_bmpFilePath), path);
+  }
+
+  /**
+   * Copies the bitmap file on disk to another path, replacing any existing file.
+   *
+   * @param outputPath the {@link Path} of the copy
+   * @return the number of bytes copied
+   * @throws IOException if an IO error occurs with either file
+   */
+  private long copyFile(Path outputPath) throws IOException {
+    try (FileChannel source = FileChannel.open(Path.of(_bmpFilePath), StandardOpenOption.READ);
+        FileChannel target =
+            FileChannel.open(
+                outputPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+      long size = source.size();
+      for (long position = 0; position < size; ) {
+        position += source.transferTo(position, size - position, target);
+      } /* for */
+      return size;
+    }
+  }
+
+  /**
+   * Checks whether the hidden message is read from the whole pixel array, as older versions of the
+   * program hid the messages without header.
+   *
+   * @return {@code true} if the message has no header, {@code false} if not
+   */
+  private boolean isLegacyLayout() {
+    return _hasMessage && !_hasMessageHeader;
+  }
+
+  /**
+   * Sets the length of hidden data whose length is only stored in its {@link MessageHeader}, once
+   * the header is read.
+   *
+   * @param messageLength the length of the hidden data, header included
+   * @throws BmpFileException if the length does not need the message header to be stored
+   * @see #hasExtendedMessageLength()
+   */
+  void resolveMessageLength(long messageLength) throws BmpFileException {
+    if (!_extendedMessageLength || messageLength < MAX_MESSAGE_LENGTH) {
+      throw new BmpFileException("Invalid payload length");
+    } /* if */
+    _messageLength = messageLength;
+  }
+
+  /**
+   * Checks that a range is inside the bytes that can be accessed.
+   *
+   * @param offset index of the first byte of the range
+   * @param length number of bytes in the range
+   * @param available number of bytes that can be accessed
+   * @throws BmpFileException if the range is not inside the bytes that can be accessed
+   */
+  private static void checkRange(long offset, long length, long available) throws BmpFileException {
+    if (offset < 0 || length < 0 || offset > available - length) {
+      throw new BmpFileException("Range outside of the pixel array");
+    } /* if */
+  }
+
+  /**
+   * Gives a {@link PixelEditor} direct access to a range of the pixel array.
+   *
+   * <p>The range of a {@link Backend#MAPPED} file is a view of the segment it starts in when it
+   * ends before the end of that segment, and a copy written back once the editor returns if it is
+   * modified otherwise.
+   *
+   * @param offset index of the first byte of the range in the pixel array
+   * @param length number of bytes in the range
+   * @param editor the {@link PixelEditor} to run on the range
+   * @param edit whether the range is modified
+   * @throws BmpFileException if the range is modified but a mapped file is not writable
+   * @throws IOException if the range cannot be mapped
+   */
+  private void accessPixelArray(long offset, int length, PixelEditor editor, boolean edit)
+      throws BmpFileException, IOException {
+    if (_backend != Backend.MAPPED) {
+      if (_pixelArray == null) {
+        loadPixelArray();
+      } /* if */
+      int start = (int) offset; // The pixel array of the heap backends is an array
+      editor.edit(ByteBuffer.wrap(_pixelArray, start, length).slice());
+      if (edit && length > 0) {
+        _dirtyStart = _dirtyEnd > _dirtyStart ? Math.min(_dirtyStart, start) : start;
+        _dirtyEnd = Math.max(_dirtyEnd, start + length);
+      } /* if */
+    } else if (edit && !_writable) {
+      throw new BmpFileException("The pixel array of a read-only mapped file cannot be edited");
+    } else if (length <= getDirectLength(offset)) {
+      int segment = (int) (offset / MAPPING_SEGMENT);
+      int start = (int) (offset - segment * MAPPING_SEGMENT);
+      editor.edit(mapSegment(segment).slice(start, length));
+    } else {
+      try (BufferPool.Buffer buffer = BufferPool.shared().borrow(length)) {
+        copySegments(offset, buffer.array(), length, false);
+        editor.edit(ByteBuffer.wrap(buffer.array(), 0, length).slice());
+        if (edit) {
+          copySegments(offset, buffer.array(), length, true);
+        } /* if */
+      }
+    } /* if */
+  }
+
+  /**
+   * Returns how many bytes of the pixel array can be accessed through a single view, from a given
+   * index.
+   *
+   * @param offset index of the first byte in the pixel array
+   * @return the number of bytes up to the end of the array of the heap backends, or up to the end
+   *     of the segment the index is in for the {@link Backend#MAPPED} backend
+   */
+  private long getDirectLength(long offset) {
+    if (_backend != Backend.MAPPED) {
+      return _pixelArrayLength - offset;
+    } /* if */
+
+    long segmentStart = offset / MAPPING_SEGMENT * MAPPING_SEGMENT;
+    return Math.min(segmentStart + MAPPING_SEGMENT + MAPPING_OVERLAP, _pixelArrayLength) - offset;
+  }
+
+  /**
+   * Maps a segment of the pixel array of a {@link Backend#MAPPED} file the first time it is
+   * accessed.
+   *
+   * <p>Mapping it once rather than for each access keeps the number of mappings of the process
+   * bounded, as they are only released when the buffers are garbage collected. The pages are still
+   * only read from the file when they are accessed.
+   *
+   * @param segment the index of the segment, starting at {@code segment * MAPPING_SEGMENT} in the
+   *     pixel array
+   * @return the {@link MappedByteBuffer} of the segment, writable if the file is
+   * @throws IOException if the segment cannot be mapped
+   */
+  private MappedByteBuffer mapSegment(int segment) throws IOException {
+    if (_pixelMappings == null) {
+      long segments = (_pixelArrayLength + MAPPING_SEGMENT - 1) / MAPPING_SEGMENT;
+      _pixelMappings = new MappedByteBuffer[(int) Math.max(segments, 1)];
+    } /* if */
+
+    if (_pixelMappings[segment] == null) {
+      long start = segment * MAPPING_SEGMENT;
+      _pixelMappings[segment] =
+          _channel.map(
+              _writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+              _pixelArrayOffset + start,
+              Math.min(_pixelArrayLength - start, MAPPING_SEGMENT + MAPPING_OVERLAP));
+    } /* if */
+    return _pixelMappings[segment];
+  }
+
+  /**
+   * Copies a range of the pixel array of a {@link Backend#MAPPED} file from or to an array, segment
+   * by segment.
+   *
+   * @param offset index of the first byte of the range in the pixel array
+   * @param array the array to copy the range from or to
+   * @param length number of bytes in the range
+   * @param toPixels {@code true} to copy from {@code array} to the pixel array, {@code false} for
+   *     the opposite
+   * @throws IOException if a segment cannot be mapped
+   */
+  private void copySegments(long offset, byte[] array, int length, boolean toPixels)
+      throws IOException {
+    for (int copied = 0; copied < length; ) {
+      long position = offset + copied;
+      int segment = (int) (position / MAPPING_SEGMENT);
+      int start = (int) (position - segment * MAPPING_SEGMENT);
+      int run = (int) Math.min(length - copied, MAPPING_SEGMENT - start);
+      if (toPixels) {
+        mapSegment(segment).put(start, array, copied, run);
+      } else {
+        mapSegment(segment).get(start, array, copied, run);
+      } /* if */
+      copied += run;
+    } /* for */
+  }
+
+  /**
+   * Gives a {@link PixelEditor} access to a copy of a range of the bytes carrying a message, which
+   * are scattered in the pixel array, and writes the copy back if it is modified.
+   *
+   * @param offset index of the first byte of the range among the bytes carrying a message
+   * @param length number of bytes in the range
+   * @param editor the {@link PixelEditor} to run on the copy
+   * @param edit whether the range is modified
+   * @throws BmpFileException if the range is modified but a mapped file is not writable
+   * @throws IOException if the range cannot be mapped
+   */
+  private void transferChannels(long offset, int length, PixelEditor editor, boolean edit)
+      throws BmpFileException, IOException {
+    if (length == 0) {
+      accessPixelArray(0, 0, editor, edit);
+      return;
+    } /* if */
+
+    // Range of the pixel array holding the bytes
+    long first = _dibHeader.getPixelArrayIndex(offset);
+    long last = _dibHeader.getPixelArrayIndex(offset + length - 1);
+    if (last + 1 - first > MAX_ARRAY_LENGTH) {
+      throw new BmpFileException("The range is too long to be accessed at once");
+    } /* if */
+
+    try (BufferPool.Buffer buffer = BufferPool.shared().borrow(length)) {
+      byte[] channels = buffer.array();
+      accessPixelArray(
+          first,
+          (int) (last + 1 - first),
+          pixels -> {
+            _dibHeader.transfer(pixels, first, offset, channels, 0, length, false);
+            editor.edit(ByteBuffer.wrap(channels, 0, length).slice());
+            if (edit) {
+              _dibHeader.transfer(pixels, first, offset, channels, 0, length, true);
+            } /* if */
+          },
+          edit);
+    }
+  }
+
+  /**
+   * Gives a {@link PixelBlockEditor} access to blocks of the bytes carrying a message, through as
+   * few accesses to the ranges of the pixel array holding them as possible.
+   *
+   * @param offsets the indexes of the first byte of each block among the bytes carrying a message
+   * @param count the number of blocks
+   * @param blockLength the number of bytes in each block
+   * @param editor the {@link PixelBlockEditor} to run on each block
+   * @param edit whether the blocks are modified
+   * @throws BmpFileException if the blocks are not valid or if a mapped file is not writable
+   * @throws IOException if the range cannot be mapped
+   */
+  private void accessBlocks(
+      long[] offsets, int count, int blockLength, PixelBlockEditor editor, boolean edit)
+      throws BmpFileException, IOException {
+    if (count == 0) {
+      return;
+    } /* if */
+
+    for (int block = 1; block < count; ++block) {
+      if (offsets[block] - offsets[block - 1] < blockLength) {
+        throw new BmpFileException("The blocks overlap or are not in increasing order");
+      } /* if */
+    } /* for */
+    checkRange(offsets[0], offsets[count - 1] + blockLength - offsets[0], getCarrierLength());
+
+    // The blocks are grouped by range of the pixel array that can be accessed through one view
+    boolean dense = _dibHeader.isDense();
+    for (int from = 0, to; from < count; from = to) {
+      long first = dense ? offsets[from] : _dibHeader.getPixelArrayIndex(offsets[from]);
+      long available = Math.min(getDirectLength(first), MAX_ARRAY_LENGTH);
+      to = from + 1;
+      while (to < count && getBlockEnd(offsets[to], blockLength) - first <= available) {
+        ++to;
+      } /* while */
+      accessBlockGroup(offsets, from, to, blockLength, first, editor, edit);
+    } /* for */
+  }
+
+  /**
+   * Returns the index following the last byte of a block in the pixel array.
+   *
+   * @param offset the index of the first byte of the block among the bytes carrying a message
+   * @param blockLength the number of bytes in the block
+   * @return the index in the pixel array following the last byte of the block
+   */
+  private long getBlockEnd(long offset, int blockLength) {
+    long last = offset + blockLength - 1;
+    return (_dibHeader.isDense() ? last : _dibHeader.getPixelArrayIndex(last)) + 1;
+  }
+
+  /**
+   * Gives a {@link PixelBlockEditor} access to a group of blocks, through a single access to the
+   * range of the pixel array holding them.
+   *
+   * @param offsets the indexes of the first byte of each block among the bytes carrying a message
+   * @param from the index of the first block of the group
+   * @param to the index following the last block of the group
+   * @param blockLength the number of bytes in each block
+   * @param first the index in the pixel array of the first byte of the first block
+   * @param editor the {@link PixelBlockEditor} to run on each block
+   * @param edit whether the blocks are modified
+   * @throws BmpFileException if a mapped file is not writable
+   * @throws IOException if the range cannot be mapped
+   */
+  private void accessBlockGroup(
+      long[] offsets,
+      int from,
+      int to,
+      int blockLength,
+      long first,
+      PixelBlockEditor editor,
+      boolean edit)
+      throws BmpFileException, IOException {
+    int length = (int) (getBlockEnd(offsets[to - 1], blockLength) - first);
+
+    if (_dibHeader.isDense()) {
+      accessPixelArray(
+          first,
+          length,
+          pixels -> {
+            for (int block = from; block < to; ++block) {
+              editor.edit(pixels, (int) (offsets[block] - first), block);
+            } /* for */
+          },
+          edit);
+      return;
+    } /* if */
+
+    // Each block is copied in turn
+    try (BufferPool.Buffer buffer = BufferPool.shared().borrow(blockLength)) {
+      byte[] channels = buffer.array();
+      ByteBuffer copy = ByteBuffer.wrap(channels, 0, blockLength).slice();
+      accessPixelArray(
+          first,
+          length,
+          pixels -> {
+            for (int block = from; block < to; ++block) {
+              _dibHeader.transfer(pixels, first, offsets[block], channels, 0, blockLength, false);
+              editor.edit(copy, 0, block);
+              if (edit) {
+                _dibHeader.transfer(pixels, first, offsets[block], channels, 0, blockLength, true);
+              } /* if */
+            } /* for */
+          },
+          edit);
     }
   }
 
   /**
    * Checks whether the provided magic bytes are valid for a bitmap file.
    *
-   * @param magicBytes a {@code byte[]} containing the magic bytes
+   * @param header a {@link ByteBuffer} starting with the magic bytes
    * @return {@code true} if magic is valid, {@code false} if not
    */
-  private boolean isValidMagic(byte[] magicBytes) {
+  private boolean isValidMagic(ByteBuffer header) {
     boolean validMagic = false;
     for (String acceptedMagic : VALID_MAGICS) {
-      if (Arrays.equals(
-          acceptedMagic.getBytes(), 0, MAGIC_BYTES_LEN, magicBytes, 0, MAGIC_BYTES_LEN)) {
+      if (acceptedMagic.charAt(0) == header.get(0) && acceptedMagic.charAt(1) == header.get(1)) {
         validMagic = true;
         break;
       } /* if */
@@ -196,78 +943,121 @@ public class BmpFile {
   }
 
   /**
-   * Reads and checks the file's header.
+   * Reads and checks the headers of the file, then the size of its pixel array.
    *
-   * @param fileBuffer a {@link BufferedInputStream} to read from
-   * @throws BmpFileException if the function fails to read the file's header
+   * @param channel the {@link FileChannel} of the file
+   * @return the number of bytes read
+   * @throws BmpFileException if the headers are not valid or if the pixel array is truncated
+   * @throws IOException if the file cannot be read
    */
-  private void readBitmapHeader(BufferedInputStream fileBuffer) throws BmpFileException {
-    byte[] magicBytes = new byte[MAGIC_BYTES_LEN];
-    ByteBuffer byteBuffer = ByteBuffer.allocate(HEADER_FIELDS_LEN);
+  private int readHeaders(FileChannel channel) throws BmpFileException, IOException {
+    ByteBuffer header = HEADER_BUFFER.get().clear();
+    int bytesRead = 0;
+    while (header.hasRemaining() && bytesRead >= 0) {
+      bytesRead = channel.read(header, header.position());
+    } /* while */
+    header.flip();
+
+    readBitmapHeader(header);
+    _dibHeader = DibHeader.read(header, HEADER_LEN, _pixelArrayOffset);
+
+    long fileSize = channel.size();
+    if (_pixelArrayOffset > fileSize) {
+      throw new BmpFileException("Invalid pixel array offset");
+    } /* if */
+    _pixelArrayLength = fileSize - _pixelArrayOffset;
+
+    // The size of the file in its header is not trusted, the rows must really be there
+    if (getCarrierLength() > 0 && _pixelArrayLength < _dibHeader.getPixelArrayLength()) {
+      throw new BmpFileException("Not enough bytes to read the pixel array");
+    } /* if */
+
+    return header.limit();
+  }
 
+  /**
+   * Reads and checks the file header, without allocating.
+   *
+   * @param header a {@link ByteBuffer} containing the first bytes of the file
+   * @throws BmpFileException if the function fails to read the file's header
+   */
+  private void readBitmapHeader(ByteBuffer header) throws BmpFileException {
     // Bitmap headers are little endian
-    byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    header.order(ByteOrder.LITTLE_ENDIAN);
 
-    try {
-      // Check magic bytes
-      if (MAGIC_BYTES_LEN != fileBuffer.read(magicBytes, 0, MAGIC_BYTES_LEN)
-          || !isValidMagic(magicBytes)) {
-        throw new BmpFileException("Invalid magic bytes");
+    if (header.limit() < HEADER_LEN) {
+      throw new BmpFileException("Not enough bytes to read the entire header");
+    } /* if */
+
+    // Check magic bytes
+    if (!isValidMagic(header)) {
+      throw new BmpFileException("Invalid magic bytes");
+    } /* if */
+
+    // Get the hidden message length (we expect this to be 0 if no message is hidden)
+    int rawBitsAndLength = header.getInt(MESSAGE_HEADER_OFFSET);
+    _messageLength = rawBitsAndLength & MAX_MESSAGE_LENGTH;
+    // Unsigned shift, otherwise the sign bit would be extended when 8 bits per byte are used
+    int bitsCode = rawBitsAndLength >>> BITS_PER_BYTE_SHIFT;
+    _hasMessage = _messageLength > 0;
+    _hasMessageHeader = false;
+    _bitsPerByte = bitsCode + 1; // Compensate for the fact we have a range from 1 to 8
+    for (int i = 0; i < MESSAGE_HEADER_CODES.length; ++i) {
+      if (MESSAGE_HEADER_CODES[i] == bitsCode) {
+        _bitsPerByte = 1 << i;
+        _hasMessageHeader = _hasMessage;
       } /* if */
+    } /* for */
+    _extendedMessageLength = _hasMessageHeader && _messageLength == MAX_MESSAGE_LENGTH;
 
-      // Get file size
-      byteBuffer.put(fileBuffer.readNBytes(HEADER_FIELDS_LEN));
-      byteBuffer.rewind();
-      _fileSize = byteBuffer.getInt();
-
-      // Get the hidden message length (we expect this to be 0 if no message is hidden)
-      byteBuffer.rewind();
-      byteBuffer.put(fileBuffer.readNBytes(HEADER_FIELDS_LEN));
-      byteBuffer.rewind();
-      int rawBitsAndLength = byteBuffer.getInt();
-      _messageLength = rawBitsAndLength & MAX_MESSAGE_LENGTH;
-      _bitsPerByte = rawBitsAndLength >> BITS_PER_BYTE_SHIFT;
-      // Happens when MSb is 1 (sign bit)
-      if (_bitsPerByte < 0) {
-        _bitsPerByte *= -1;
-      }
-      _bitsPerByte += 1; // Compensate for the fact we have a range from 1 to 8
-      _hasMessage = _messageLength > 0;
-
-      // Get the offset to start reading the pixel array from
-      byteBuffer.rewind();
-      byteBuffer.put(fileBuffer.readNBytes(HEADER_FIELDS_LEN));
-      byteBuffer.rewind();
-      _pixelArrayOffset = byteBuffer.getInt();
-    } catch (BufferUnderflowException e) {
-      throw new BmpFileException("Not enough bytes to read the entire header");
-    } catch (IOException e) {
-      throw new BmpFileException(e.getMessage());
-    } /* try */
+    // Get the offset to start reading the pixel array from
+    _pixelArrayOffset =
+        Integer.toUnsignedLong(header.getInt(MESSAGE_HEADER_OFFSET + HEADER_FIELDS_LEN));
+    if (_pixelArrayOffset < HEADER_LEN) {
+      throw new BmpFileException("Invalid pixel array offset");
+    } /* if */
   }
 
   /**
-   * Reads the bitmap file's pixel array.
+   * Reads the pixel array of a {@link Backend#LAZY} file, opening the file again.
    *
-   * @param fileBuffer a {@link BufferedInputStream} to read from
-   * @throws BmpFileException if the function fails to read the pixel array
+   * @throws IOException if the pixel array cannot be read
    */
-  private void readPixelArray(BufferedInputStream fileBuffer) throws BmpFileException {
+  private void loadPixelArray() throws IOException {
+    long start = System.nanoTime();
+    try (FileChannel channel = FileChannel.open(Path.of(_bmpFilePath), StandardOpenOption.READ)) {
+      readPixelArray(channel);
+    }
+    Metrics.record(Metrics.Phase.READ_IMAGE, start, _pixelArrayLength);
+  }
+
+  /**
+   * Reads the bitmap file's pixel array, up to the end of the file, into an array borrowed from the
+   * {@link BufferPool}.
+   *
+   * @param channel the {@link FileChannel} of the file
+   * @throws IOException if the pixel array cannot be read or is too big for an array
+   */
+  private void readPixelArray(FileChannel channel) throws IOException {
+    if (_pixelArrayLength > MAX_ARRAY_LENGTH) {
+      throw new BmpFileException(
+          "The pixel array is too big to be loaded in memory, the image must be memory-mapped");
+    } /* if */
+
+    BufferPool.Buffer buffer = BufferPool.shared().borrow((int) _pixelArrayLength);
     try {
-      // Length of all headers, mandatory and optional
-      int expectedPixelArraySize = _fileSize - _pixelArrayOffset;
-      _pixelArray = new byte[expectedPixelArraySize];
-
-      // Skip to pixel array start
-      fileBuffer.skipNBytes(_pixelArrayOffset - HEADER_LEN);
-      if (expectedPixelArraySize != fileBuffer.read(_pixelArray, 0, expectedPixelArraySize)) {
-        _pixelArray = null;
-        throw new BufferUnderflowException();
-      } /* if */
-    } catch (BufferUnderflowException e) {
-      throw new BmpFileException("Not enough bytes to read the pixel array");
-    } catch (IOException e) {
-      throw new BmpFileException(e.getMessage());
-    } /* try */
+      ByteBuffer pixels = ByteBuffer.wrap(buffer.array(), 0, (int) _pixelArrayLength);
+      while (pixels.hasRemaining()) {
+        if (channel.read(pixels, _pixelArrayOffset + pixels.position()) < 0) {
+          throw new BmpFileException("Not enough bytes to read the pixel array");
+        } /* if */
+      } /* while */
+    } catch (RuntimeException | IOException e) {
+      buffer.close();
+      throw e;
+    }
+
+    _pixelBuffer = buffer;
+    _pixelArray = buffer.array();
   }
 }
@@ -0,0 +1,293 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of {@code byte[]} arrays reused by the pixel arrays and the message chunks, so that a
+ * process handling many images (see the {@code batch} and {@code serve} subcommands) does not
+ * allocate new arrays of several megabytes for each of them.
+ *
+ * <p>The arrays are sorted in size classes, four per power of two from {@value #MIN_CLASS_SIZE}
+ * bytes to {@value #MAX_CLASS_SIZE} bytes, so that a borrowed array is at most 25% longer than
+ * requested. Longer arrays are allocated with the exact length and never pooled. The bytes retained
+ * by the pool are bounded by the {@code shadow.bufferPool.maxRetained} system property (in bytes),
+ * an eighth of the maximum heap by default: an array released while the pool is full is left to the
+ * garbage collector.
+ *
+ * <p>A {@link Buffer} that becomes unreachable without having been released is counted as a leak
+ * and reported on the standard error, with the stack trace of its borrowing when the {@code
+ * shadow.bufferPool.leakTraces} system property is {@code true}. The statistics of the pool are
+ * included in the {@link Metrics} reports.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public final class BufferPool {
+
+  /** Size of the smallest class of arrays, in bytes. */
+  public static final int MIN_CLASS_SIZE = 4 * 1024;
+
+  /** Size of the largest class of arrays, in bytes. */
+  public static final int MAX_CLASS_SIZE = 1024 * 1024 * 1024;
+
+  // A class is identified by (shift, sub) with a size of (sub + 1) << shift and 4 <= sub <= 7
+  private static final int SUB_CLASSES = 4;
+  private static final int FIRST_CLASS = classKey(MIN_CLASS_SIZE);
+  private static final Cleaner CLEANER = Cleaner.create();
+  private static final BufferPool SHARED =
+      new BufferPool(
+          Long.getLong("shadow.bufferPool.maxRetained", Runtime.getRuntime().maxMemory() / 8),
+          Boolean.getBoolean("shadow.bufferPool.leakTraces"));
+
+  private final ConcurrentLinkedQueue<byte[]>[] classes;
+  private final long maxRetained;
+  private final boolean leakTraces;
+  private final AtomicLong retained = new AtomicLong();
+  private final LongAdder borrows = new LongAdder();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder releases = new LongAdder();
+  private final LongAdder leaks = new LongAdder();
+
+  /** Statistics of a pool, since its creation. */
+  public record Stats(long borrows, long hits, long releases, long leaks, long retainedBytes) {
+
+    /**
+     * Returns the number of buffers borrowed but neither released nor leaked yet.
+     *
+     * @return a {@code long} with the number of buffers still in use
+     */
+    public long outstanding() {
+      return borrows - releases - leaks;
+    }
+
+    /**
+     * Returns the share of the borrowings served by an array of the pool.
+     *
+     * @return a {@code double} between 0 and 1, 0 if nothing was borrowed
+     */
+    public double hitRate() {
+      return borrows == 0 ? 0 : (double) hits / borrows;
+    }
+  }
+
+  /**
+   * An array borrowed from a {@link BufferPool}, which must be closed to give the array back.
+   *
+   * <p>The array may be longer than requested and its content is undefined. It must not be used
+   * once the buffer is closed.
+   */
+  public static final class Buffer implements AutoCloseable {
+
+    private final byte[] array;
+    private final int length;
+    private final Leak leak;
+    private final Cleaner.Cleanable cleanable;
+
+    private Buffer(byte[] array, int length, Leak leak) {
+      this.array = array;
+      this.length = length;
+      this.leak = leak;
+      this.cleanable = CLEANER.register(this, leak);
+    }
+
+    /**
+     * Returns the borrowed array.
+     *
+     * @return the {@code byte[]} array, of at least {@link #length()} bytes
+     */
+    public byte[] array() {
+      return array;
+    }
+
+    /**
+     * Returns the length requested when the buffer was borrowed.
+     *
+     * @return an {@code int} with the length requested
+     */
+    public int length() {
+      return length;
+    }
+
+    /**
+     * Gives the array back to its pool.
+     *
+     * @throws IllegalStateException if the buffer has already been released
+     */
+    @Override
+    public void close() throws IllegalStateException {
+      if (leak.released) {
+        throw new IllegalStateException("Buffer released twice");
+      } /* if */
+
+      leak.released = true;
+      cleanable.clean();
+      leak.pool.giveBack(array);
+    }
+  }
+
+  /** Action run once a {@link Buffer} is unreachable, counting it if it was not released. */
+  private static final class Leak implements Runnable {
+
+    private final BufferPool pool;
+    private final int capacity;
+    private final Throwable origin;
+    private volatile boolean released;
+
+    private Leak(BufferPool pool, int capacity, Throwable origin) {
+      this.pool = pool;
+      this.capacity = capacity;
+      this.origin = origin;
+    }
+
+    @Override
+    public void run() {
+      if (released) {
+        return;
+      } /* if */
+
+      pool.leaks.increment();
+      System.err.println(
+          "Leak: a buffer of "
+              + capacity
+              + " bytes was not released"
+              + (origin == null ? " (use -Dshadow.bufferPool.leakTraces=true to trace it)" : ""));
+      if (origin != null) {
+        origin.printStackTrace();
+      } /* if */
+    }
+  }
+
+  /**
+   * Creates a pool.
+   *
+   * @param maxRetained maximum number of bytes kept by the pool
+   * @param leakTraces whether the stack trace of the borrowing of a buffer is kept to report leaks
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public BufferPool(long maxRetained, boolean leakTraces) {
+    this.maxRetained = maxRetained;
+    this.leakTraces = leakTraces;
+    this.classes = new ConcurrentLinkedQueue[classKey(MAX_CLASS_SIZE) - FIRST_CLASS + 1];
+    for (int i = 0; i < classes.length; ++i) {
+      classes[i] = new ConcurrentLinkedQueue<>();
+    } /* for */
+  }
+
+  /**
+   * Returns the pool shared by the whole process.
+   *
+   * @return the shared {@link BufferPool}
+   */
+  public static BufferPool shared() {
+    return SHARED;
+  }
+
+  /**
+   * Borrows an array of at least the given length.
+   *
+   * @param length the minimum length of the array
+   * @return a {@link Buffer} holding the array, which must be closed once the array is not used
+   *     anymore
+   * @throws IllegalArgumentException if the length is negative
+   */
+  public Buffer borrow(int length) throws IllegalArgumentException {
+    if (length < 0) {
+      throw new IllegalArgumentException("Negative buffer length");
+    } /* if */
+
+    borrows.increment();
+    byte[] array = null;
+    if (length <= MAX_CLASS_SIZE) {
+      int index = classKey(Math.max(length, MIN_CLASS_SIZE)) - FIRST_CLASS;
+      array = classes[index].poll();
+      if (array != null) {
+        hits.increment();
+        retained.addAndGet(-array.length);
+      } else {
+        array = new byte[classSize(index + FIRST_CLASS)];
+      } /* if */
+    } else {
+      array = new byte[length];
+    } /* if */
+
+    Throwable origin = leakTraces ? new Throwable("Buffer borrowed here") : null;
+    return new Buffer(array, length, new Leak(this, array.length, origin));
+  }
+
+  /**
+   * Returns the statistics of the pool.
+   *
+   * @return the {@link Stats} of the pool
+   */
+  public Stats getStats() {
+    return new Stats(borrows.sum(), hits.sum(), releases.sum(), leaks.sum(), retained.get());
+  }
+
+  /**
+   * Keeps a released array if it belongs to a class and if the pool is not full.
+   *
+   * @param array the released array
+   */
+  private void giveBack(byte[] array) {
+    releases.increment();
+    if (array.length > MAX_CLASS_SIZE || classSize(classKey(array.length)) != array.length) {
+      return;
+    } /* if */
+
+    long current;
+    do {
+      current = retained.get();
+      if (current + array.length > maxRetained) {
+        return;
+      } /* if */
+    } while (!retained.compareAndSet(current, current + array.length));
+
+    classes[classKey(array.length) - FIRST_CLASS].add(array);
+  }
+
+  /**
+   * Returns the key of the smallest class holding a length, {@code shift * 4 + sub - 4}.
+   *
+   * @param length a positive length
+   * @return an {@code int} identifying the class
+   */
+  private static int classKey(int length) {
+    int last = length - 1;
+    int shift = Math.max(0, 31 - Integer.numberOfLeadingZeros(last) - 2);
+    int sub = last >>> shift;
+    return shift * SUB_CLASSES + sub - SUB_CLASSES;
+  }
+
+  /**
+   * Returns the size of the arrays of a class.
+   *
+   * @param key the key of the class, as returned by {@link #classKey(int)}
+   * @return an {@code int} with the size of the arrays
+   */
+  private static int classSize(int key) {
+    int shift = key / SUB_CLASSES;
+    int sub = key % SUB_CLASSES + SUB_CLASSES;
+    return (sub + 1) << shift;
+  }
+}
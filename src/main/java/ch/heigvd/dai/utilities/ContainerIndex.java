@@ -0,0 +1,223 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import ch.heigvd.dai.exceptions.MessageManipulationException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Implements the index of a payload made of several named files (see {@link
+ * MessageHeader#FLAG_CONTAINER}), so that each file can be exposed alone.
+ *
+ * <p>The index is hidden at the start of the payload, right after the header, and the files follow
+ * it one after the other. It is made of little endian fields: the number of entries (4 bytes), then
+ * for each entry the length of its name (2 bytes), its name in UTF-8, its offset from the end of
+ * the index (8 bytes), its length (8 bytes) and its CRC-32C (4 bytes). The length of the index only
+ * depends on the names, so that it can be reserved before the files are hidden.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public class ContainerIndex {
+
+  /** A file of the container. */
+  public record Entry(String name, long offset, long length, int checksum) {}
+
+  /** Opens the files of a container, one at a time while they are hidden. */
+  @FunctionalInterface
+  public interface Source {
+
+    /**
+     * Opens a file of the container.
+     *
+     * @param name the name of the file
+     * @return the {@link InputStream} of the file, closed once it has been hidden
+     * @throws IOException if the file cannot be opened
+     */
+    InputStream open(String name) throws IOException;
+  }
+
+  /** Maximum length of the name of an entry, in bytes once encoded in UTF-8. */
+  public static final int MAX_NAME_LENGTH = 255;
+
+  private static final int COUNT_FIELD_LENGTH = 4;
+  private static final int ENTRY_FIELDS_LENGTH = 22;
+
+  private final List<Entry> entries;
+
+  /**
+   * Main constructor.
+   *
+   * @param entries the entries of the container, in the order of their files
+   */
+  public ContainerIndex(List<Entry> entries) {
+    this.entries = List.copyOf(entries);
+  }
+
+  /**
+   * Returns the entries of the container.
+   *
+   * @return an unmodifiable {@link List} of the entries, in the order of their files
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  /**
+   * Finds an entry by its name.
+   *
+   * @param name the name of the file
+   * @return the {@link Entry} of the file, or {@code null} if there is none with this name
+   */
+  public Entry find(String name) {
+    for (Entry entry : entries) {
+      if (entry.name().equals(name)) {
+        return entry;
+      } /* if */
+    } /* for */
+    return null;
+  }
+
+  /**
+   * Returns the number of bytes the index takes once encoded.
+   *
+   * @return an {@code int} with the length of the index
+   */
+  public int getLength() {
+    return getLength(entries.stream().map(Entry::name).toList());
+  }
+
+  /**
+   * Returns the number of bytes the index of files with the given names takes once encoded.
+   *
+   * @param names the names of the files
+   * @return an {@code int} with the length of the index
+   */
+  public static int getLength(List<String> names) {
+    int length = COUNT_FIELD_LENGTH;
+    for (String name : names) {
+      length += ENTRY_FIELDS_LENGTH + name.getBytes(StandardCharsets.UTF_8).length;
+    } /* for */
+    return length;
+  }
+
+  /**
+   * Checks that names can be used for the entries of a container: they must be distinct file names
+   * of at most {@value #MAX_NAME_LENGTH} bytes, without any directory, so that the files can be
+   * written under their name.
+   *
+   * @param names the names of the files
+   * @throws MessageManipulationException if a name is not valid or is used twice
+   */
+  public static void checkNames(List<String> names) throws MessageManipulationException {
+    Set<String> distinct = new HashSet<>();
+    for (String name : names) {
+      if (name.isEmpty()
+          || name.equals(".")
+          || name.equals("..")
+          || name.indexOf('/') >= 0
+          || name.indexOf('\\') >= 0
+          || name.chars().anyMatch(Character::isISOControl)
+          || name.getBytes(StandardCharsets.UTF_8).length > MAX_NAME_LENGTH) {
+        throw new MessageManipulationException("Invalid file name in container: " + name);
+      } /* if */
+
+      if (!distinct.add(name)) {
+        throw new MessageManipulationException("Several files of the container are named " + name);
+      } /* if */
+    } /* for */
+  }
+
+  /**
+   * Encodes the index as it is hidden.
+   *
+   * @return a {@code byte[]} of {@link #getLength()} bytes
+   */
+  public byte[] encode() {
+    ByteBuffer index = ByteBuffer.allocate(getLength()).order(ByteOrder.LITTLE_ENDIAN);
+    index.putInt(entries.size());
+    for (Entry entry : entries) {
+      byte[] name = entry.name().getBytes(StandardCharsets.UTF_8);
+      index.putShort((short) name.length);
+      index.put(name);
+      index.putLong(entry.offset());
+      index.putLong(entry.length());
+      index.putInt(entry.checksum());
+    } /* for */
+    return index.array();
+  }
+
+  /**
+   * Decodes and checks an encoded index.
+   *
+   * @param index a {@code byte[]} with the index, as returned by {@link #encode()}
+   * @param dataLength the number of bytes following the index in the payload
+   * @return the decoded {@link ContainerIndex}
+   * @throws MessageManipulationException if the index is not valid or if an entry is not inside the
+   *     payload
+   */
+  public static ContainerIndex decode(byte[] index, long dataLength)
+      throws MessageManipulationException {
+    ByteBuffer buffer = ByteBuffer.wrap(index).order(ByteOrder.LITTLE_ENDIAN);
+    Entry[] entries;
+
+    try {
+      int count = buffer.getInt();
+      if (count < 0 || count > (index.length - COUNT_FIELD_LENGTH) / ENTRY_FIELDS_LENGTH) {
+        throw new MessageManipulationException("Invalid container entry count");
+      } /* if */
+
+      entries = new Entry[count];
+      for (int i = 0; i < count; ++i) {
+        byte[] name = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(name);
+        entries[i] =
+            new Entry(
+                new String(name, StandardCharsets.UTF_8),
+                buffer.getLong(),
+                buffer.getLong(),
+                buffer.getInt());
+
+        if (entries[i].offset() < 0
+            || entries[i].length() < 0
+            || entries[i].offset() > dataLength - entries[i].length()) {
+          throw new MessageManipulationException("Invalid container entry " + entries[i].name());
+        } /* if */
+      } /* for */
+    } catch (BufferUnderflowException e) {
+      throw new MessageManipulationException("Not enough bytes to read the container index");
+    } /* try */
+
+    if (buffer.hasRemaining()) {
+      throw new MessageManipulationException("Invalid container index length");
+    } /* if */
+
+    List<Entry> decoded = List.of(entries);
+    checkNames(decoded.stream().map(Entry::name).toList());
+    return new ContainerIndex(decoded);
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import java.util.zip.CRC32C;
+
+/**
+ * Updates a CRC-32C after a part of the data it covers has been replaced or appended, without
+ * reading the rest of the data.
+ *
+ * <p>The CRC is linear over GF(2) apart from its initial and final inversions, so replacing bytes
+ * changes it by the CRC of the difference between the old and new bytes, moved to their position by
+ * a multiplication by a power of x modulo the polynomial. The arithmetic is the one of {@code
+ * crc32_combine} in zlib, with the reflected polynomial of CRC-32C, and the CRCs themselves are
+ * still computed by the intrinsified {@link CRC32C}.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+final class Crc32c {
+
+  private static final int POLYNOMIAL = 0x82F63B78;
+  private static final int X_0 = 1 << 31; // x^0, the bits being reflected
+  // x^(2^n) modulo the polynomial, by n, up to the bytes of the longest length
+  private static final int[] X_2N = new int[3 + Long.SIZE];
+
+  static {
+    int power = X_0 >>> 1;
+    for (int n = 0; n < X_2N.length; ++n) {
+      X_2N[n] = power;
+      power = multiply(power, power);
+    } /* for */
+  }
+
+  private Crc32c() {}
+
+  /**
+   * Updates the CRC of some data after bytes have been appended to it.
+   *
+   * @param crc the CRC of the data before the bytes were appended
+   * @param appended an array with the appended bytes
+   * @param offset the index of the first appended byte in {@code appended}
+   * @param length the number of appended bytes
+   * @return an {@code int} with the CRC of the data followed by the appended bytes
+   */
+  static int append(int crc, byte[] appended, int offset, int length) {
+    CRC32C tail = new CRC32C();
+    tail.update(appended, offset, length);
+    return shift(crc, length) ^ (int) tail.getValue();
+  }
+
+  /**
+   * Updates the CRC of some data after a range of its bytes has been replaced.
+   *
+   * @param crc the CRC of the data before the bytes were replaced
+   * @param previous an array starting with the replaced bytes, which is overwritten
+   * @param replacement an array starting with the new bytes
+   * @param length the number of replaced bytes
+   * @param following the number of bytes of the data after the replaced ones
+   * @return an {@code int} with the CRC of the data with the new bytes
+   */
+  static int replace(int crc, byte[] previous, byte[] replacement, int length, long following) {
+    for (int i = 0; i < length; ++i) {
+      previous[i] ^= replacement[i];
+    } /* for */
+
+    // CRC of the difference without the inversions, which cancel out between the two versions
+    CRC32C difference = new CRC32C();
+    difference.update(previous, 0, length);
+    int linear = (int) difference.getValue() ^ ~shift(~0, length);
+    return crc ^ shift(linear, following);
+  }
+
+  /**
+   * Moves a CRC register past zero bytes, i.e. multiplies it by x^(8 * length).
+   *
+   * @param crc the CRC register
+   * @param length the number of zero bytes
+   * @return an {@code int} with the register after the zero bytes
+   */
+  private static int shift(int crc, long length) {
+    int power = X_0;
+    for (int n = 3; length != 0; length >>>= 1, ++n) {
+      if ((length & 1) != 0) {
+        power = multiply(X_2N[n], power);
+      } /* if */
+    } /* for */
+    return multiply(power, crc);
+  }
+
+  /**
+   * Multiplies two polynomials modulo the polynomial of CRC-32C, their bits being reflected.
+   *
+   * @param a the first polynomial, which must not be zero
+   * @param b the second polynomial
+   * @return an {@code int} with the product
+   */
+  private static int multiply(int a, int b) {
+    int product = 0;
+    for (int bit = X_0; bit != 0; bit >>>= 1) {
+      if ((a & bit) != 0) {
+        product ^= b;
+      } /* if */
+      b = (b & 1) != 0 ? (b >>> 1) ^ POLYNOMIAL : b >>> 1;
+    } /* for */
+    return product;
+  }
+}
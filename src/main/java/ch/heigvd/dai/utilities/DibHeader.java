@@ -0,0 +1,390 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import ch.heigvd.dai.exceptions.BmpFileException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Implements the DIB header following the file header of a bitmap file, which describes the pixels
+ * of the image: their dimensions, their format and the layout of the rows in the pixel array.
+ *
+ * <p>The known versions of the header are decoded: {@code BITMAPCOREHEADER} (12 bytes), the OS/2
+ * 2.x headers (16 to 64 bytes), {@code BITMAPINFOHEADER} (40 bytes) and its {@code V2} to {@code
+ * V5} extensions (52 to 124 bytes), along with the color masks following a {@code BITMAPINFOHEADER}
+ * with the {@code BI_BITFIELDS} or {@code BI_ALPHABITFIELDS} compression.
+ *
+ * <p>The bytes that can carry a message are the least significant byte of each color channel of at
+ * least 8 bits, in uncompressed images of 16, 24 or 32 bits per pixel: the row padding, the alpha
+ * channel and the unused bytes are left untouched. They are numbered in the order they are stored,
+ * row by row (from the bottom row of a bottom-up image, from the top row of a top-down one), then
+ * pixel by pixel and byte by byte.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public final class DibHeader {
+
+  /**
+   * Number of bytes to read after the file header to decode any version of the header, the color
+   * masks following it included.
+   */
+  public static final int MAX_LENGTH = 124;
+
+  private static final int CORE_HEADER_LENGTH = 12;
+  private static final int INFO_HEADER_LENGTH = 40;
+  private static final int V2_HEADER_LENGTH = 52;
+  private static final int V3_HEADER_LENGTH = 56;
+  private static final int V4_HEADER_LENGTH = 108;
+  private static final int V5_HEADER_LENGTH = 124;
+  private static final int OS2_HEADER_MIN_LENGTH = 16;
+  private static final int OS2_HEADER_MAX_LENGTH = 64;
+  private static final int COLOR_MASKS_LENGTH = 3 * 4;
+
+  // Compression methods
+  private static final int BI_RGB = 0;
+  private static final int BI_BITFIELDS = 3;
+  private static final int BI_ALPHABITFIELDS = 6;
+
+  private final int _length;
+  private final int _width;
+  private final int _height;
+  private final boolean _topDown;
+  private final int _bitsPerPixel;
+  private final int _compression;
+  private final int _rowStride;
+  private final int _bytesPerPixel;
+  private final int[] _channelBytes; // Index in a pixel of each byte carrying a message
+  private final long _carrierLength;
+
+  private DibHeader(
+      int length,
+      int width,
+      int height,
+      int bitsPerPixel,
+      int compression,
+      boolean uncompressed,
+      int[] masks)
+      throws BmpFileException {
+    if (width <= 0 || height == 0 || height == Integer.MIN_VALUE) {
+      throw new BmpFileException("Invalid image dimensions");
+    } /* if */
+
+    switch (bitsPerPixel) {
+      case 1, 2, 4, 8, 16, 24, 32 -> {}
+      default -> throw new BmpFileException("Invalid number of bits per pixel");
+    } /* switch */
+
+    _length = length;
+    _width = width;
+    _height = Math.abs(height);
+    _topDown = height < 0;
+    _bitsPerPixel = bitsPerPixel;
+    _compression = compression;
+
+    // Rows are padded to a multiple of 4 bytes, a single row must fit in an array
+    long rowStride = ((long) width * bitsPerPixel + 31) / 32 * 4;
+    if (rowStride > Integer.MAX_VALUE) {
+      throw new BmpFileException("The rows of the pixel array are too long");
+    } /* if */
+    _rowStride = (int) rowStride;
+    _bytesPerPixel = bitsPerPixel / 8;
+
+    _channelBytes = uncompressed && bitsPerPixel >= 16 ? findChannelBytes(masks) : new int[0];
+    _carrierLength = (long) width * _height * _channelBytes.length; // Never more than the pixels
+  }
+
+  /**
+   * Decodes the DIB header of a bitmap file.
+   *
+   * <p>The fields are read at their absolute position, the position of the buffer is left
+   * untouched.
+   *
+   * @param buffer a {@link ByteBuffer} with the first bytes of the file, up to {@value #MAX_LENGTH}
+   *     bytes after the file header if the file is long enough
+   * @param offset the index of the DIB header in the buffer
+   * @param pixelArrayOffset the offset of the pixel array in the file, which the color masks cannot
+   *     go beyond
+   * @return the decoded {@link DibHeader}
+   * @throws BmpFileException if the header is unknown, truncated or not valid
+   */
+  public static DibHeader read(ByteBuffer buffer, int offset, long pixelArrayOffset)
+      throws BmpFileException {
+    // Bitmap headers are little endian
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+    if (buffer.limit() < offset + 4) {
+      throw new BmpFileException("Not enough bytes to read the DIB header");
+    } /* if */
+    int length = buffer.getInt(offset);
+    boolean infoHeader =
+        length == INFO_HEADER_LENGTH
+            || length == V2_HEADER_LENGTH
+            || length == V3_HEADER_LENGTH
+            || length == V4_HEADER_LENGTH
+            || length == V5_HEADER_LENGTH;
+    boolean os2Header = length >= OS2_HEADER_MIN_LENGTH && length <= OS2_HEADER_MAX_LENGTH;
+    if ((length != CORE_HEADER_LENGTH && !infoHeader && !os2Header)
+        || buffer.limit() < offset + length
+        || offset + length > pixelArrayOffset) {
+      throw new BmpFileException("Invalid DIB header length");
+    } /* if */
+
+    if (length == CORE_HEADER_LENGTH) {
+      return new DibHeader(
+          length,
+          Short.toUnsignedInt(buffer.getShort(offset + 4)),
+          Short.toUnsignedInt(buffer.getShort(offset + 6)),
+          Short.toUnsignedInt(buffer.getShort(offset + 10)),
+          BI_RGB,
+          true,
+          null);
+    } /* if */
+
+    int width = buffer.getInt(offset + 4);
+    int height = buffer.getInt(offset + 8);
+    int bitsPerPixel = Short.toUnsignedInt(buffer.getShort(offset + 14));
+    int compression = length >= 20 ? buffer.getInt(offset + 16) : BI_RGB;
+
+    // The compression methods of OS/2 do not have the same numbers past BI_RGB
+    if (!infoHeader) {
+      return new DibHeader(
+          length, width, height, bitsPerPixel, compression, compression == BI_RGB, null);
+    } /* if */
+
+    int[] masks = null;
+    if (compression == BI_BITFIELDS || compression == BI_ALPHABITFIELDS) {
+      // The masks are part of the newer headers, they follow the older ones
+      // The alpha mask, if any, is not needed as the alpha channel never carries a message
+      int masksOffset = offset + (length >= V2_HEADER_LENGTH ? INFO_HEADER_LENGTH : length);
+      if (buffer.limit() < masksOffset + COLOR_MASKS_LENGTH
+          || masksOffset + COLOR_MASKS_LENGTH > pixelArrayOffset) {
+        throw new BmpFileException("Not enough bytes to read the color masks");
+      } /* if */
+
+      masks = new int[3];
+      for (int i = 0; i < masks.length; ++i) {
+        masks[i] = buffer.getInt(masksOffset + 4 * i);
+      } /* for */
+    } /* if */
+
+    boolean uncompressed =
+        compression == BI_RGB || compression == BI_BITFIELDS || compression == BI_ALPHABITFIELDS;
+    return new DibHeader(length, width, height, bitsPerPixel, compression, uncompressed, masks);
+  }
+
+  /**
+   * @return the length of the DIB header, telling its version
+   */
+  public int getLength() {
+    return _length;
+  }
+
+  /**
+   * @return the width of the image, in pixels
+   */
+  public int getWidth() {
+    return _width;
+  }
+
+  /**
+   * @return the height of the image, in pixels
+   */
+  public int getHeight() {
+    return _height;
+  }
+
+  /**
+   * @return {@code true} if the first row of the pixel array is the top one, {@code false} if it is
+   *     the bottom one
+   */
+  public boolean isTopDown() {
+    return _topDown;
+  }
+
+  /**
+   * @return the number of bits per pixel
+   */
+  public int getBitsPerPixel() {
+    return _bitsPerPixel;
+  }
+
+  /**
+   * @return the compression method, as stored in the header
+   */
+  public int getCompression() {
+    return _compression;
+  }
+
+  /**
+   * @return the number of bytes of a row in the pixel array, padding included
+   */
+  public int getRowStride() {
+    return _rowStride;
+  }
+
+  /**
+   * Returns the number of bytes of the pixel array, for an uncompressed image.
+   *
+   * @return the number of bytes of the rows of the image, padding included
+   */
+  public long getPixelArrayLength() {
+    return (long) _rowStride * _height;
+  }
+
+  /**
+   * @return the number of bytes carrying a message in a pixel
+   */
+  public int getChannelsPerPixel() {
+    return _channelBytes.length;
+  }
+
+  /**
+   * Returns the number of bytes of the pixel array that can carry a message.
+   *
+   * @return the number of bytes that can carry a message, 0 if the pixels have no color channel of
+   *     at least 8 bits or are compressed
+   */
+  public long getCarrierLength() {
+    return _carrierLength;
+  }
+
+  /**
+   * Checks whether the bytes carrying a message are exactly the first bytes of the pixel array,
+   * i.e. whether the pixels have no alpha or unused byte and the rows have no padding.
+   *
+   * @return {@code true} if the bytes carrying a message are contiguous, {@code false} if not
+   */
+  public boolean isDense() {
+    return _carrierLength > 0
+        && _channelBytes.length == _bytesPerPixel
+        && (_height == 1 || _rowStride == _width * _bytesPerPixel);
+  }
+
+  /**
+   * Returns the index in the pixel array of a byte carrying a message.
+   *
+   * @param index the index of the byte among the bytes carrying a message
+   * @return the index of the byte in the pixel array
+   */
+  public long getPixelArrayIndex(long index) {
+    long rowLength = (long) _width * _channelBytes.length;
+    int column = (int) (index % rowLength);
+    return index / rowLength * _rowStride
+        + column / _channelBytes.length * _bytesPerPixel
+        + _channelBytes[column % _channelBytes.length];
+  }
+
+  /**
+   * Copies bytes carrying a message from the pixel array to an array, or the other way around.
+   *
+   * @param pixels a {@link ByteBuffer} with a range of the pixel array, big enough for the bytes
+   *     copied
+   * @param pixelsOffset the index in the pixel array of the index 0 of {@code pixels}
+   * @param index the index of the first byte to copy among the bytes carrying a message
+   * @param carrier the array of bytes carrying a message
+   * @param carrierOffset the index of the first byte to copy in {@code carrier}
+   * @param length the number of bytes to copy
+   * @param toPixels {@code true} to copy from {@code carrier} to {@code pixels}, {@code false} for
+   *     the opposite
+   */
+  public void transfer(
+      ByteBuffer pixels,
+      long pixelsOffset,
+      long index,
+      byte[] carrier,
+      int carrierOffset,
+      int length,
+      boolean toPixels) {
+    int channels = _channelBytes.length;
+    int rowLength = _width * channels;
+    long row = index / rowLength;
+    int column = (int) (index % rowLength);
+    int rowStart = (int) (row * _rowStride - pixelsOffset); // Inside the buffer
+
+    if (channels == _bytesPerPixel) {
+      // The bytes of a row are contiguous, they are copied row by row
+      for (int copied = 0; copied < length; ) {
+        int run = Math.min(rowLength - column, length - copied);
+        if (toPixels) {
+          pixels.put(rowStart + column, carrier, carrierOffset + copied, run);
+        } else {
+          pixels.get(rowStart + column, carrier, carrierOffset + copied, run);
+        } /* if */
+        copied += run;
+        column = 0;
+        rowStart += _rowStride;
+      } /* for */
+      return;
+    } /* if */
+
+    int pixel = column / channels;
+    int channel = column % channels;
+    for (int i = carrierOffset; i < carrierOffset + length; ++i) {
+      int position = rowStart + pixel * _bytesPerPixel + _channelBytes[channel];
+      if (toPixels) {
+        pixels.put(position, carrier[i]);
+      } else {
+        carrier[i] = pixels.get(position);
+      } /* if */
+
+      if (++channel == channels) {
+        channel = 0;
+        if (++pixel == _width) {
+          pixel = 0;
+          rowStart += _rowStride;
+        } /* if */
+      } /* if */
+    } /* for */
+  }
+
+  /**
+   * Finds the bytes of a pixel holding the least significant byte of a color channel of at least 8
+   * bits.
+   *
+   * @param masks the red, green and blue masks, {@code null} for the default ones
+   * @return the indexes of the bytes in a pixel, in increasing order
+   */
+  private int[] findChannelBytes(int[] masks) {
+    if (masks == null) {
+      // 5 bits per channel with 16 bits per pixel, 8 bits for the others (the 4th byte is unused)
+      return _bitsPerPixel == 16 ? new int[0] : new int[] {0, 1, 2};
+    } /* if */
+
+    int found = 0;
+    for (int mask : masks) {
+      int lowest = Integer.numberOfTrailingZeros(mask);
+      if (mask != 0
+          && lowest % 8 == 0
+          && lowest < _bitsPerPixel
+          && ((mask >>> lowest) & 0xFF) == 0xFF) {
+        found |= 1 << (lowest / 8);
+      } /* if */
+    } /* for */
+
+    int[] channelBytes = new int[Integer.bitCount(found)];
+    for (int i = 0, b = 0; b < 4; ++b) {
+      if ((found & (1 << b)) != 0) {
+        channelBytes[i++] = b;
+      } /* if */
+    } /* for */
+    return channelBytes;
+  }
+}
@@ -23,16 +23,35 @@ import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 /**
  * Implements the necessary functions to read/write the bytes of the file to hide/expose.
  *
+ * <p>The special filename {@value #STANDARD_STREAM} designates the standard input when reading and
+ * the standard output when writing, for the stream functions. They can be replaced for a thread
+ * with {@link #setStandardStreams(InputStream, OutputStream)}.
+ *
+ * <p>When {@link Metrics} are collected, the time spent reading and writing the file is recorded.
+ *
  * @author Pedro Alves da Silva
  * @author Gonçalo Carvalheiro Heleno
  */
 public class FileManipulator {
 
+  /** Filename designating the standard input or output. */
+  public static final String STANDARD_STREAM = "-";
+
+  // Replacements of the standard input and output, e.g. for a request received by the server
+  private static final InheritableThreadLocal<InputStream> STANDARD_INPUT =
+      new InheritableThreadLocal<>();
+  private static final InheritableThreadLocal<OutputStream> STANDARD_OUTPUT =
+      new InheritableThreadLocal<>();
+
   private final File file;
   private boolean writeEnabled = false;
 
@@ -62,6 +81,97 @@ public class FileManipulator {
     this.writeEnabled = writeEnabled;
   }
 
+  /**
+   * Replaces the standard input and output used by the stream functions, for the current thread and
+   * the threads it creates from now on.
+   *
+   * @param in the {@link InputStream} to use as the standard input, {@code null} for {@link
+   *     System#in}
+   * @param out the {@link OutputStream} to use as the standard output, {@code null} for {@link
+   *     System#out}
+   */
+  public static void setStandardStreams(InputStream in, OutputStream out) {
+    STANDARD_INPUT.set(in);
+    STANDARD_OUTPUT.set(out);
+  }
+
+  /**
+   * Checks whether the object designates the standard input/output instead of a file.
+   *
+   * @return {@code true} if the filename is {@value #STANDARD_STREAM}, {@code false} if not
+   */
+  public boolean isStandardStream() {
+    return file.getPath().equals(STANDARD_STREAM);
+  }
+
+  /**
+   * Opens a buffered stream to read the file linked to the object, or the standard input.
+   *
+   * <p>The caller must close the stream. Closing the standard input stream does not close the
+   * standard input itself.
+   *
+   * @return an {@link InputStream} for the file
+   * @throws IOException if there is an IO error when trying to open the file
+   */
+  public InputStream openInputStream() throws IOException {
+    InputStream stream;
+    if (isStandardStream()) {
+      stream =
+          new BufferedInputStream(
+              new FilterInputStream(
+                  STANDARD_INPUT.get() == null ? System.in : STANDARD_INPUT.get()) {
+                @Override
+                public void close() {
+                  // The standard input stays open for the rest of the program
+                }
+              });
+    } else {
+      stream = new BufferedInputStream(new FileInputStream(file));
+    }
+
+    return Metrics.isEnabled() ? new MeteredInputStream(stream) : stream;
+  }
+
+  /**
+   * Opens a buffered stream to write the file linked to the object, or the standard output.
+   *
+   * <p>Note that this could be a destructive operation if there is already a file at that location,
+   * so you should take care to perform the necessary verifications. The caller must close the
+   * stream. Closing the standard output stream only flushes it.
+   *
+   * @return an {@link OutputStream} for the file
+   * @throws IOException if there is an IO error when trying to open the file
+   * @throws RuntimeException if the write operations have not been enabled at the instance creation
+   */
+  public OutputStream openOutputStream() throws IOException, RuntimeException {
+    if (!writeEnabled)
+      throw new RuntimeException(
+          "Unable to write to file, because write operations are not activated for this object.");
+
+    OutputStream stream;
+    if (isStandardStream()) {
+      stream =
+          new BufferedOutputStream(
+              new FilterOutputStream(
+                  STANDARD_OUTPUT.get() == null ? System.out : STANDARD_OUTPUT.get()) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                  out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                  // The standard output stays open for the rest of the program
+                  flush();
+                }
+              });
+    } else {
+      stream = new BufferedOutputStream(new FileOutputStream(file));
+    }
+
+    return Metrics.isEnabled() ? new MeteredOutputStream(stream) : stream;
+  }
+
   /**
    * Reads the file linked to the object and creates a byte array with its content.
    *
@@ -76,6 +186,7 @@ public class FileManipulator {
     if (fileSize >= Integer.MAX_VALUE)
       throw new OutOfMemoryError("The message file is too big for byte[] array.");
 
+    long start = System.nanoTime();
     byte[] bytes = new byte[(int) fileSize];
 
     try (FileInputStream fileInputStream = new FileInputStream(file);
@@ -85,6 +196,7 @@ public class FileManipulator {
         throw new RuntimeException("Error while reading from the buffer to the byte[] array.");
       }
     }
+    Metrics.record(Metrics.Phase.READ_MESSAGE, start, fileSize);
 
     return bytes;
   }
@@ -104,10 +216,68 @@ public class FileManipulator {
       throw new RuntimeException(
           "Unable to write to file, because write operations are not activated for this object.");
 
+    long start = System.nanoTime();
     try (FileOutputStream fileOutputStream = new FileOutputStream(file);
         BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(fileOutputStream)) {
       bufferedOutputStream.write(bytes);
       bufferedOutputStream.flush();
     }
+    Metrics.record(Metrics.Phase.WRITE_MESSAGE, start, bytes.length);
+  }
+
+  /**
+   * Stream recording the time spent reading another stream as {@link Metrics.Phase#READ_MESSAGE}.
+   */
+  private static class MeteredInputStream extends FilterInputStream {
+    MeteredInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      long start = System.nanoTime();
+      int b = in.read();
+      Metrics.record(Metrics.Phase.READ_MESSAGE, start, b < 0 ? 0 : 1);
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      int n = in.read(b, off, len);
+      Metrics.record(Metrics.Phase.READ_MESSAGE, start, Math.max(n, 0));
+      return n;
+    }
+  }
+
+  /**
+   * Stream recording the time spent writing to another stream as {@link
+   * Metrics.Phase#WRITE_MESSAGE}, including flushing it.
+   */
+  private static class MeteredOutputStream extends FilterOutputStream {
+    MeteredOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      long start = System.nanoTime();
+      out.write(b);
+      Metrics.record(Metrics.Phase.WRITE_MESSAGE, start, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      out.write(b, off, len);
+      Metrics.record(Metrics.Phase.WRITE_MESSAGE, start, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      long start = System.nanoTime();
+      out.flush();
+      Metrics.record(Metrics.Phase.WRITE_MESSAGE, start, 0);
+    }
   }
 }
@@ -0,0 +1,644 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import ch.heigvd.dai.exceptions.MessageManipulationException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Implements the header hidden before a message when the message needs more information than the
+ * length and the number of bits per byte stored in the bitmap header (see {@link
+ * BmpFile#hasMessageHeader()}).
+ *
+ * <p>The header is hidden like the message itself, right before it, and is made of little endian
+ * fields:
+ *
+ * <ul>
+ *   <li>the length of the header (2 bytes);
+ *   <li>flags telling which optional fields follow (2 bytes);
+ *   <li>the length of the payload following the header (8 bytes);
+ *   <li>with {@link #FLAG_SHARD}: the identifier of the set of shards (8 bytes), the index of the
+ *       shard (4 bytes), the number of shards (4 bytes), the offset of the shard in the payload (8
+ *       bytes) and the length of the whole payload (8 bytes);
+ *   <li>with {@link #FLAG_COMPRESSED}: the identifier of the {@link PayloadCodec} (2 bytes) and the
+ *       length of the content once decompressed (8 bytes);
+ *   <li>with {@link #FLAG_ENCRYPTED}: the identifier of the {@link PayloadCipher} (2 bytes), the
+ *       number of iterations (4 bytes) and the salt ({@value Passphrase#SALT_LENGTH} bytes)
+ *       deriving the key from the {@link Passphrase}, and the prefix of the nonces ({@value
+ *       PayloadCipher#NONCE_PREFIX_LENGTH} bytes);
+ *   <li>with {@link #FLAG_CHECKSUM}: the CRC-32C of the content (4 bytes);
+ *   <li>with {@link #FLAG_SCATTERED}: the length of the blocks the payload is scattered in (4
+ *       bytes) and the seed of their permutation (8 bytes);
+ *   <li>with {@link #FLAG_CONTAINER}: the length of the {@link ContainerIndex} starting the payload
+ *       (4 bytes).
+ * </ul>
+ *
+ * <p>The offsets and lengths of the shard fields are those of the content: a compressed shard is
+ * the compressed part of the content starting at its offset. A payload both compressed and
+ * encrypted is compressed first. The checksum is the one of the content itself, before it is
+ * compressed or encrypted, so that it is checked on what is finally exposed. The header itself is
+ * never scattered, so that it can be read before the layout of the payload is known. The files of a
+ * container are checked by the checksums of their index rather than by the one of the header.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public class MessageHeader {
+
+  /** Flag telling that the payload is a shard of a bigger payload split across several images. */
+  public static final int FLAG_SHARD = 0x0001;
+
+  /** Flag telling that the payload is compressed by a {@link PayloadCodec}. */
+  public static final int FLAG_COMPRESSED = 0x0002;
+
+  /** Flag telling that the payload is encrypted by a {@link PayloadCipher}. */
+  public static final int FLAG_ENCRYPTED = 0x0004;
+
+  /** Flag telling that the header has the CRC-32C of the content. */
+  public static final int FLAG_CHECKSUM = 0x0008;
+
+  /** Flag telling that the payload is scattered in blocks over the whole image. */
+  public static final int FLAG_SCATTERED = 0x0010;
+
+  /** Flag telling that the payload is made of several named files, described by an index. */
+  public static final int FLAG_CONTAINER = 0x0020;
+
+  /** Length of the fields every header starts with, enough to know the length of the header. */
+  public static final int MIN_LENGTH = 12;
+
+  private static final int KNOWN_FLAGS =
+      FLAG_SHARD
+          | FLAG_COMPRESSED
+          | FLAG_ENCRYPTED
+          | FLAG_CHECKSUM
+          | FLAG_SCATTERED
+          | FLAG_CONTAINER;
+  private static final int SHARD_FIELDS_LENGTH = 32;
+  private static final int COMPRESSION_FIELDS_LENGTH = 10;
+  private static final int ENCRYPTION_FIELDS_LENGTH =
+      6 + Passphrase.SALT_LENGTH + PayloadCipher.NONCE_PREFIX_LENGTH;
+  private static final int CHECKSUM_FIELDS_LENGTH = 4;
+  private static final int SCATTER_FIELDS_LENGTH = 12;
+  private static final int CONTAINER_FIELDS_LENGTH = 4;
+
+  private int flags;
+  private long payloadLength;
+  private long shardSetId;
+  private int shardIndex;
+  private int shardCount;
+  private long shardOffset;
+  private long totalLength;
+  private PayloadCodec codec;
+  private long contentLength;
+  private PayloadCipher cipher;
+  private int iterations;
+  private byte[] salt = new byte[Passphrase.SALT_LENGTH];
+  private byte[] noncePrefix = new byte[PayloadCipher.NONCE_PREFIX_LENGTH];
+  private int checksum;
+  private int scatterBlockLength;
+  private long scatterSeed;
+  private int indexLength;
+
+  /** Main constructor, for a header without any optional field. */
+  public MessageHeader() {}
+
+  /**
+   * Creates the header of a shard.
+   *
+   * @param setId the identifier shared by all the shards of the payload
+   * @param index the index of the shard, starting from 0
+   * @param count the number of shards
+   * @param offset the offset of the shard in the whole payload
+   * @param totalLength the length of the whole payload
+   * @return the {@link MessageHeader} of the shard
+   */
+  public static MessageHeader forShard(
+      long setId, int index, int count, long offset, long totalLength) {
+    MessageHeader header = new MessageHeader();
+    header.flags |= FLAG_SHARD;
+    header.shardSetId = setId;
+    header.shardIndex = index;
+    header.shardCount = count;
+    header.shardOffset = offset;
+    header.totalLength = totalLength;
+    return header;
+  }
+
+  /**
+   * Creates the header of a container of several named files.
+   *
+   * @param indexLength the length of the {@link ContainerIndex} starting the payload
+   * @return the {@link MessageHeader} of the container
+   */
+  public static MessageHeader forContainer(int indexLength) {
+    MessageHeader header = new MessageHeader();
+    header.setContainer(indexLength);
+    return header;
+  }
+
+  /**
+   * Returns the number of bytes the header takes once encoded.
+   *
+   * @return an {@code int} with the length of the header
+   */
+  public int getLength() {
+    return MIN_LENGTH
+        + (isShard() ? SHARD_FIELDS_LENGTH : 0)
+        + (isCompressed() ? COMPRESSION_FIELDS_LENGTH : 0)
+        + (isEncrypted() ? ENCRYPTION_FIELDS_LENGTH : 0)
+        + (isChecksummed() ? CHECKSUM_FIELDS_LENGTH : 0)
+        + (isScattered() ? SCATTER_FIELDS_LENGTH : 0)
+        + (isContainer() ? CONTAINER_FIELDS_LENGTH : 0);
+  }
+
+  /**
+   * Returns the length of the payload following the header.
+   *
+   * @return a {@code long} with the length of the payload
+   */
+  public long getPayloadLength() {
+    return payloadLength;
+  }
+
+  /**
+   * Changes the length of the payload following the header.
+   *
+   * @param payloadLength the new length of the payload
+   */
+  public void setPayloadLength(long payloadLength) {
+    this.payloadLength = payloadLength;
+  }
+
+  /**
+   * Returns whether the payload is a shard of a bigger payload.
+   *
+   * @return {@code true} if the header has the {@link #FLAG_SHARD} flag, {@code false} if not
+   */
+  public boolean isShard() {
+    return (flags & FLAG_SHARD) != 0;
+  }
+
+  /**
+   * Returns the identifier shared by all the shards of a payload.
+   *
+   * @return a {@code long} with the identifier of the set of shards
+   */
+  public long getShardSetId() {
+    return shardSetId;
+  }
+
+  /**
+   * Returns the index of the shard, starting from 0.
+   *
+   * @return an {@code int} with the index of the shard
+   */
+  public int getShardIndex() {
+    return shardIndex;
+  }
+
+  /**
+   * Returns the number of shards the payload is split into.
+   *
+   * @return an {@code int} with the number of shards
+   */
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  /**
+   * Returns the offset of the shard in the whole payload.
+   *
+   * @return a {@code long} with the offset of the shard
+   */
+  public long getShardOffset() {
+    return shardOffset;
+  }
+
+  /**
+   * Returns the length of the whole payload the shard is part of.
+   *
+   * @return a {@code long} with the length of the whole payload
+   */
+  public long getTotalLength() {
+    return totalLength;
+  }
+
+  /**
+   * Returns whether the payload is compressed.
+   *
+   * @return {@code true} if the header has the {@link #FLAG_COMPRESSED} flag, {@code false} if not
+   */
+  public boolean isCompressed() {
+    return (flags & FLAG_COMPRESSED) != 0;
+  }
+
+  /**
+   * Returns the codec compressing the payload.
+   *
+   * @return the {@link PayloadCodec} of the payload, or {@code null} if it is not compressed
+   */
+  public PayloadCodec getCodec() {
+    return codec;
+  }
+
+  /**
+   * Changes the codec compressing the payload.
+   *
+   * @param codec the {@link PayloadCodec} of the payload, or {@code null} if it is not compressed
+   */
+  public void setCodec(PayloadCodec codec) {
+    this.codec = codec;
+    flags = codec == null ? flags & ~FLAG_COMPRESSED : flags | FLAG_COMPRESSED;
+  }
+
+  /**
+   * Returns the length of the content carried by the payload, once decrypted and decompressed.
+   *
+   * @return a {@code long} with the length of the content, the length of the payload if it is
+   *     neither compressed nor encrypted
+   */
+  public long getContentLength() {
+    if (isCompressed()) {
+      return contentLength;
+    } /* if */
+
+    return isEncrypted() ? PayloadCipher.getContentLength(payloadLength) : payloadLength;
+  }
+
+  /**
+   * Changes the length of the content carried by a compressed payload.
+   *
+   * @param contentLength the new length of the content, once decompressed
+   */
+  public void setContentLength(long contentLength) {
+    this.contentLength = contentLength;
+  }
+
+  /**
+   * Returns whether the payload is encrypted.
+   *
+   * @return {@code true} if the header has the {@link #FLAG_ENCRYPTED} flag, {@code false} if not
+   */
+  public boolean isEncrypted() {
+    return (flags & FLAG_ENCRYPTED) != 0;
+  }
+
+  /**
+   * Returns the cipher encrypting the payload.
+   *
+   * @return the {@link PayloadCipher} of the payload, or {@code null} if it is not encrypted
+   */
+  public PayloadCipher getCipher() {
+    return cipher;
+  }
+
+  /**
+   * Changes the cipher encrypting the payload. The key and the nonces are chosen by {@link
+   * MessageManipulator} when the payload is hidden.
+   *
+   * @param cipher the {@link PayloadCipher} of the payload, or {@code null} if it is not encrypted
+   */
+  public void setCipher(PayloadCipher cipher) {
+    this.cipher = cipher;
+    flags = cipher == null ? flags & ~FLAG_ENCRYPTED : flags | FLAG_ENCRYPTED;
+  }
+
+  /**
+   * Returns the salt deriving the key of an encrypted payload from the {@link Passphrase}.
+   *
+   * @return a {@code byte[]} with the salt
+   */
+  public byte[] getSalt() {
+    return salt.clone();
+  }
+
+  /**
+   * Returns the number of iterations deriving the key of an encrypted payload from the {@link
+   * Passphrase}.
+   *
+   * @return an {@code int} with the number of iterations
+   */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /**
+   * Returns the random prefix of the nonces of an encrypted payload.
+   *
+   * @return a {@code byte[]} with the prefix of the nonces
+   */
+  public byte[] getNoncePrefix() {
+    return noncePrefix.clone();
+  }
+
+  /**
+   * Changes the parameters of the encryption of the payload, just before it is encrypted.
+   *
+   * @param key the {@link Passphrase.Key} encrypting the payload
+   * @param noncePrefix the random prefix of the nonces
+   */
+  void setEncryption(Passphrase.Key key, byte[] noncePrefix) {
+    this.salt = key.salt().clone();
+    this.iterations = key.iterations();
+    this.noncePrefix = noncePrefix.clone();
+  }
+
+  /**
+   * Returns whether the header has the checksum of the content.
+   *
+   * @return {@code true} if the header has the {@link #FLAG_CHECKSUM} flag, {@code false} if not
+   */
+  public boolean isChecksummed() {
+    return (flags & FLAG_CHECKSUM) != 0;
+  }
+
+  /**
+   * Changes whether the header has the checksum of the content. The checksum itself is computed by
+   * {@link MessageManipulator} while the content is hidden.
+   *
+   * @param checksummed {@code true} to add the checksum, {@code false} to remove it
+   */
+  public void setChecksummed(boolean checksummed) {
+    flags = checksummed ? flags | FLAG_CHECKSUM : flags & ~FLAG_CHECKSUM;
+  }
+
+  /**
+   * Returns the CRC-32C of the content.
+   *
+   * @return an {@code int} with the checksum, meaningless if the header has no checksum
+   */
+  public int getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * Changes the CRC-32C of the content.
+   *
+   * @param checksum the new checksum
+   */
+  public void setChecksum(int checksum) {
+    this.checksum = checksum;
+  }
+
+  /**
+   * Returns whether the payload is scattered over the whole image.
+   *
+   * @return {@code true} if the header has the {@link #FLAG_SCATTERED} flag, {@code false} if not
+   */
+  public boolean isScattered() {
+    return (flags & FLAG_SCATTERED) != 0;
+  }
+
+  /**
+   * Changes whether the payload is scattered over the whole image. The blocks and their permutation
+   * are chosen by {@link MessageManipulator} when the payload is hidden.
+   *
+   * @param scattered {@code true} to scatter the payload, {@code false} to hide it right after the
+   *     header
+   */
+  public void setScattered(boolean scattered) {
+    flags = scattered ? flags | FLAG_SCATTERED : flags & ~FLAG_SCATTERED;
+  }
+
+  /**
+   * Returns the length of the blocks a scattered payload is hidden in.
+   *
+   * @return an {@code int} with the number of bytes carrying a message in each block
+   */
+  public int getScatterBlockLength() {
+    return scatterBlockLength;
+  }
+
+  /**
+   * Returns the seed of the permutation of the blocks a scattered payload is hidden in.
+   *
+   * @return a {@code long} with the seed
+   */
+  public long getScatterSeed() {
+    return scatterSeed;
+  }
+
+  /**
+   * Changes the layout of a scattered payload, just before it is hidden.
+   *
+   * @param blockLength the number of bytes carrying a message in each block
+   * @param seed the seed of the permutation of the blocks
+   */
+  void setScatter(int blockLength, long seed) {
+    this.scatterBlockLength = blockLength;
+    this.scatterSeed = seed;
+  }
+
+  /**
+   * Returns whether the payload is made of several named files.
+   *
+   * @return {@code true} if the header has the {@link #FLAG_CONTAINER} flag, {@code false} if not
+   */
+  public boolean isContainer() {
+    return (flags & FLAG_CONTAINER) != 0;
+  }
+
+  /**
+   * Returns the length of the {@link ContainerIndex} starting the payload of a container.
+   *
+   * @return an {@code int} with the length of the index, meaningless if the payload is not a
+   *     container
+   */
+  public int getIndexLength() {
+    return indexLength;
+  }
+
+  /**
+   * Makes the payload a container of several named files, just before they are hidden.
+   *
+   * @param indexLength the length of the {@link ContainerIndex} starting the payload
+   */
+  void setContainer(int indexLength) {
+    this.flags |= FLAG_CONTAINER;
+    this.indexLength = indexLength;
+  }
+
+  /**
+   * Encodes the header as it is hidden.
+   *
+   * @return a {@code byte[]} of {@link #getLength()} bytes
+   */
+  public byte[] encode() {
+    return encode(true);
+  }
+
+  /**
+   * Encodes the header as the data authenticated along with an encrypted payload. The lengths and
+   * the checksum are only known once the payload has been hidden and are left out: the lengths are
+   * authenticated by the {@link PayloadCipher} itself, as is the content the checksum covers.
+   *
+   * @return a {@code byte[]} of {@link #getLength()} bytes
+   */
+  byte[] encodeAssociatedData() {
+    return encode(false);
+  }
+
+  private byte[] encode(boolean complete) {
+    ByteBuffer header = ByteBuffer.allocate(getLength()).order(ByteOrder.LITTLE_ENDIAN);
+    header.putShort((short) getLength());
+    header.putShort((short) flags);
+    header.putLong(complete ? payloadLength : 0);
+
+    if (isShard()) {
+      header.putLong(shardSetId);
+      header.putInt(shardIndex);
+      header.putInt(shardCount);
+      header.putLong(shardOffset);
+      header.putLong(totalLength);
+    } /* if */
+
+    if (isCompressed()) {
+      header.putShort((short) codec.getId());
+      header.putLong(complete ? contentLength : 0);
+    } /* if */
+
+    if (isEncrypted()) {
+      header.putShort((short) cipher.getId());
+      header.putInt(iterations);
+      header.put(salt);
+      header.put(noncePrefix);
+    } /* if */
+
+    if (isChecksummed()) {
+      header.putInt(complete ? checksum : 0);
+    } /* if */
+
+    if (isScattered()) {
+      header.putInt(scatterBlockLength);
+      header.putLong(scatterSeed);
+    } /* if */
+
+    if (isContainer()) {
+      header.putInt(indexLength);
+    } /* if */
+
+    return header.array();
+  }
+
+  /**
+   * Reads the length of an encoded header from its first bytes.
+   *
+   * @param header a {@code byte[]} starting with at least the first {@link #MIN_LENGTH} bytes of
+   *     the header
+   * @return an {@code int} with the length of the header
+   */
+  public static int decodeLength(byte[] header) {
+    return ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
+  }
+
+  /**
+   * Decodes and checks an encoded header.
+   *
+   * @param header a {@code byte[]} with the header, as returned by {@link #encode()}
+   * @return the decoded {@link MessageHeader}
+   * @throws MessageManipulationException if the header is not valid or uses unknown features
+   */
+  public static MessageHeader decode(byte[] header) throws MessageManipulationException {
+    ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+    MessageHeader decoded = new MessageHeader();
+
+    try {
+      int length = buffer.getShort() & 0xFFFF;
+      decoded.flags = buffer.getShort() & 0xFFFF;
+      decoded.payloadLength = buffer.getLong();
+
+      if ((decoded.flags & ~KNOWN_FLAGS) != 0) {
+        throw new MessageManipulationException(
+            "The message uses features unknown to this version of the program");
+      } /* if */
+
+      if (length != header.length || length != decoded.getLength()) {
+        throw new MessageManipulationException("Invalid message header length");
+      } /* if */
+
+      if (decoded.isShard()) {
+        decoded.shardSetId = buffer.getLong();
+        decoded.shardIndex = buffer.getInt();
+        decoded.shardCount = buffer.getInt();
+        decoded.shardOffset = buffer.getLong();
+        decoded.totalLength = buffer.getLong();
+      } /* if */
+
+      if (decoded.isCompressed()) {
+        decoded.codec = PayloadCodec.fromId(buffer.getShort() & 0xFFFF);
+        decoded.contentLength = buffer.getLong();
+        if (decoded.codec == null) {
+          throw new MessageManipulationException(
+              "The message is compressed with a codec unknown to this version of the program");
+        } /* if */
+      } /* if */
+
+      if (decoded.isEncrypted()) {
+        decoded.cipher = PayloadCipher.fromId(buffer.getShort() & 0xFFFF);
+        decoded.iterations = buffer.getInt();
+        buffer.get(decoded.salt);
+        buffer.get(decoded.noncePrefix);
+        if (decoded.cipher == null) {
+          throw new MessageManipulationException(
+              "The message is encrypted with a cipher unknown to this version of the program");
+        } /* if */
+      } /* if */
+
+      if (decoded.isChecksummed()) {
+        decoded.checksum = buffer.getInt();
+      } /* if */
+
+      if (decoded.isScattered()) {
+        decoded.scatterBlockLength = buffer.getInt();
+        decoded.scatterSeed = buffer.getLong();
+        if (!ScatterLayout.isValidBlockLength(decoded.scatterBlockLength)) {
+          throw new MessageManipulationException("Invalid scatter block length");
+        } /* if */
+      } /* if */
+
+      if (decoded.isContainer()) {
+        decoded.indexLength = buffer.getInt();
+      } /* if */
+    } catch (BufferUnderflowException e) {
+      throw new MessageManipulationException("Not enough bytes to read the message header");
+    } /* try */
+
+    if (decoded.payloadLength < 0 || decoded.getContentLength() < 0) {
+      throw new MessageManipulationException("Invalid payload length");
+    } /* if */
+
+    if (decoded.isShard()
+        && (decoded.shardCount < 1
+            || decoded.shardIndex < 0
+            || decoded.shardIndex >= decoded.shardCount
+            || decoded.shardOffset < 0
+            || decoded.shardOffset > decoded.totalLength - decoded.getContentLength())) {
+      throw new MessageManipulationException("Invalid shard fields");
+    } /* if */
+
+    if (decoded.isContainer()
+        && (decoded.indexLength < 0 || decoded.indexLength > decoded.payloadLength)) {
+      throw new MessageManipulationException("Invalid container index length");
+    } /* if */
+
+    return decoded;
+  }
+}
@@ -21,98 +21,1140 @@ package ch.heigvd.dai.utilities;
 import static ch.heigvd.dai.utilities.BmpFile.*;
 
 import ch.heigvd.dai.exceptions.MessageManipulationException;
+import ch.heigvd.dai.kernels.EmbeddingKernel;
+import ch.heigvd.dai.kernels.Kernels;
+import ch.heigvd.dai.kernels.ParallelKernel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import javax.crypto.SecretKey;
 
 /**
  * Implements the logic necessary to hide and expose an array of bytes inside a bitmap image, which
  * is itself parsed using the {@link BmpFile} class.
  *
+ * <p>The bit manipulation itself is delegated to an {@link EmbeddingKernel}, split over several
+ * threads by a {@link ParallelKernel} when more than one thread is requested. Messages can be
+ * provided as arrays, or as streams that are processed by chunks of at least {@value
+ * #STREAM_CHUNK_SIZE} bytes so that the message is never entirely held in memory.
+ *
+ * <p>Messages needing more information than their length (see {@link MessageHeader}) are hidden
+ * after a header describing them, as are all the messages hidden in images whose pixel array has
+ * row padding or alpha (see {@link BmpFile}). Such messages may be compressed by a {@link
+ * PayloadCodec} and encrypted by a {@link PayloadCipher} while they are hidden, with a key derived
+ * from the {@link Passphrase} of the instance, and are then decrypted and decompressed while they
+ * are exposed. Their header may also carry the CRC-32C of the content, computed while the content
+ * is read and checked while it is written, without any other pass over the message. Their payload
+ * may finally be scattered over the whole image by a {@link ScatterLayout} rather than hidden in
+ * its first bytes. Several named files can also be hidden together after a {@link ContainerIndex},
+ * each of them being exposed alone by reading only the index and its own bytes.
+ *
+ * <p>Instances using several threads must be closed to release them.
+ *
  * @author Pedro Alves da Silva
  * @author Gonçalo Carvalheiro Heleno
  */
-public class MessageManipulator {
+public class MessageManipulator implements AutoCloseable {
+
+  /** Number of message bytes processed at a time when the message is a stream. */
+  public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final EmbeddingKernel kernel;
+  private final int streamChunkSize;
+  private Passphrase passphrase;
+
+  /** Main constructor, using the kernel selected by {@link Kernels#fastest()}. */
+  public MessageManipulator() {
+    this(Kernels.fastest(), 1);
+  }
+
+  /**
+   * Constructor using the kernel selected by {@link Kernels#fastest()} on several threads.
+   *
+   * @param threads the number of threads to use
+   * @throws IllegalArgumentException if the number of threads is not positive
+   */
+  public MessageManipulator(int threads) throws IllegalArgumentException {
+    this(Kernels.fastest(), threads);
+  }
+
+  /**
+   * Constructor used to choose the kernel doing the bit manipulation, e.g. to compare kernels with
+   * the reference {@link ch.heigvd.dai.kernels.ScalarKernel}.
+   *
+   * @param kernel the {@link EmbeddingKernel} to use
+   */
+  public MessageManipulator(EmbeddingKernel kernel) {
+    this(kernel, 1);
+  }
+
+  /**
+   * Constructor used to choose the kernel doing the bit manipulation and the number of threads
+   * running it.
+   *
+   * <p>With several threads, streams are processed by bigger chunks, so that each chunk can be
+   * split between the threads.
+   *
+   * @param kernel the {@link EmbeddingKernel} to use
+   * @param threads the number of threads to use
+   * @throws IllegalArgumentException if the number of threads is not positive
+   */
+  public MessageManipulator(EmbeddingKernel kernel, int threads) throws IllegalArgumentException {
+    if (threads < 1) {
+      throw new IllegalArgumentException("The number of threads must be positive");
+    }
+
+    if (threads == 1) {
+      this.kernel = kernel;
+      this.streamChunkSize = STREAM_CHUNK_SIZE;
+    } else {
+      this.kernel = new ParallelKernel(kernel, threads);
+      this.streamChunkSize =
+          Math.max(STREAM_CHUNK_SIZE, threads * ParallelKernel.PARALLEL_THRESHOLD);
+    }
+  }
+
+  /** Releases the threads used by the instance, if any. */
+  @Override
+  public void close() {
+    if (kernel instanceof ParallelKernel parallelKernel) {
+      parallelKernel.close();
+    }
+  }
+
+  /**
+   * Changes the passphrase from which the keys of the encrypted messages are derived.
+   *
+   * @param passphrase the {@link Passphrase}, or {@code null} if there is none
+   */
+  public void setPassphrase(Passphrase passphrase) {
+    this.passphrase = passphrase;
+  }
+
+  /**
+   * Returns how many message bytes can be hidden in a bitmap image, taking into account the {@link
+   * MessageHeader} needed by images whose pixels are not only made of color bytes.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param bitsPerByte number of bits per data byte
+   * @return a {@code long} with the maximum length of a message, which may be negative if the image
+   *     cannot even hold the header
+   */
+  public static long getMessageCapacity(BmpFile bmpFile, int bitsPerByte) {
+    long capacity = bmpFile.getCapacity(bitsPerByte);
+    return bmpFile.getDibHeader().isDense()
+        ? capacity
+        : getMessageCapacity(bmpFile, bitsPerByte, new MessageHeader());
+  }
 
   /**
-   * Hides a provided message inside the provided data array.
+   * Returns how many content bytes can be hidden in a bitmap image after a given {@link
+   * MessageHeader}, taking into account the tags added by its {@link PayloadCipher} and the bytes
+   * left unused by the blocks of a scattered payload, but not the compression by its {@link
+   * PayloadCodec}.
    *
-   * <p>Data array is used as input and output. Each of the (bitsPerByte) LSb of each byte in data
-   * are replaced.
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param bitsPerByte number of bits per data byte
+   * @param header the {@link MessageHeader} hidden before the content
+   * @return a {@code long} with the maximum length of the content, which may be negative if the
+   *     image cannot even hold the header
+   */
+  public static long getMessageCapacity(BmpFile bmpFile, int bitsPerByte, MessageHeader header) {
+    int headerLength = header.getLength();
+    long capacity = bmpFile.getCapacity(bitsPerByte) - headerLength;
+    if (header.isScattered() && capacity > 0) {
+      int blockLength = ScatterLayout.chooseBlockLength(bmpFile, bitsPerByte, headerLength);
+      try {
+        capacity =
+            new ScatterLayout(bmpFile, bitsPerByte, headerLength, blockLength, 0).getCapacity();
+      } catch (MessageManipulationException e) {
+        // Not a single block after the header
+        capacity = 0;
+      } /* try */
+    } /* if */
+    return header.isEncrypted() ? PayloadCipher.getMaxContentLength(capacity) : capacity;
+  }
+
+  /**
+   * Hides a provided message inside the pixel array of a bitmap file.
+   *
+   * <p>The pixel array is modified in place. The message is packed so that each byte in data
+   * carries (bitsPerByte) bits of the message in its LSb, starting with the message's MSb. A
+   * message byte therefore uses {@code 8 / bitsPerByte} bytes of data.
    *
    * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
    * @param message the message to hide
-   * @param bitsPerByte the number of bits to use per message byte
+   * @param bitsPerByte the number of message bits to store per data byte
    * @throws MessageManipulationException if one of the arguments is not valid
+   * @throws IOException if the pixel array of a mapped file cannot be accessed
    */
   public void hideMessage(BmpFile bmpFile, byte[] message, int bitsPerByte)
-      throws MessageManipulationException {
-    byte[] data = bmpFile.getPixelArray();
+      throws MessageManipulationException, IOException {
+    checkBitsPerByte(bitsPerByte);
+    checkCarrier(bmpFile);
 
-    if (bitsPerByte < MIN_BITS_PER_BYTE || bitsPerByte > MAX_BITS_PER_BYTE) {
-      throw new MessageManipulationException(
-          "Bit count must be between " + MIN_BITS_PER_BYTE + " and " + MAX_BITS_PER_BYTE);
+    if (message.length < MIN_MESSAGE_LENGTH || message.length > MAX_MESSAGE_LENGTH) {
+      throw new MessageManipulationException("Invalid message length");
     } /* if */
 
-    if (message.length < MIN_MESSAGE_LENGTH || message.length > MAX_MESSAGE_LENGTH) {
+    if (!bmpFile.getDibHeader().isDense()) {
+      hideMessage(bmpFile, new ByteArrayInputStream(message), bitsPerByte, new MessageHeader());
+      return;
+    } /* if */
+
+    if (bmpFile.getCapacity(bitsPerByte) < message.length) {
+      throw new MessageManipulationException("Not enough space to hide message in data");
+    } /* if */
+
+    embed(bmpFile, null, 0, message, message.length, bitsPerByte);
+    bmpFile.setMessage(message.length, bitsPerByte);
+  }
+
+  /**
+   * Hides a message read from a stream inside the pixel array of a bitmap file.
+   *
+   * <p>The stream is read until its end by chunks of at least {@value #STREAM_CHUNK_SIZE} bytes,
+   * each chunk being hidden before the next one is read. The layout is the same as with {@link
+   * #hideMessage(BmpFile, byte[], int)}, so the message is limited to {@link
+   * BmpFile#MAX_MESSAGE_LENGTH} bytes. The stream is not closed.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param message the {@link InputStream} to read the message from
+   * @param bitsPerByte the number of message bits to store per data byte
+   * @return the length of the hidden message
+   * @throws MessageManipulationException if one of the arguments is not valid, in which case the
+   *     pixel array may have been partially modified
+   * @throws IOException if the message cannot be read or if the pixel array of a mapped file cannot
+   *     be accessed
+   */
+  public int hideMessage(BmpFile bmpFile, InputStream message, int bitsPerByte)
+      throws MessageManipulationException, IOException {
+    checkBitsPerByte(bitsPerByte);
+    checkCarrier(bmpFile);
+
+    if (!bmpFile.getDibHeader().isDense()) {
+      return (int) hideMessage(bmpFile, message, bitsPerByte, new MessageHeader());
+    } /* if */
+
+    // Without header, the length must fit in the bitmap header
+    long capacity = Math.min(bmpFile.getCapacity(bitsPerByte), MAX_MESSAGE_LENGTH);
+    int messageLength = (int) hideStream(bmpFile, null, 0, capacity, message, bitsPerByte);
+    if (messageLength < MIN_MESSAGE_LENGTH) {
       throw new MessageManipulationException("Invalid message length");
     } /* if */
 
-    // 8 bytes in pixel array to store 1 byte of message
-    if (data.length < message.length * MAX_BITS_PER_BYTE) {
+    bmpFile.setMessage(messageLength, bitsPerByte);
+    return messageLength;
+  }
+
+  /**
+   * Hides a message read from a stream inside the pixel array of a bitmap file, after a {@link
+   * MessageHeader}.
+   *
+   * <p>The stream is hidden as with {@link #hideMessage(BmpFile, InputStream, int)}, then the
+   * header is completed with the length of the payload and hidden before it. The payload may be
+   * empty. If the header has a {@link PayloadCodec}, the stream is compressed while it is read, and
+   * if it has a {@link PayloadCipher}, it is then encrypted with the key of {@link
+   * Passphrase#newKey()} and fresh nonces. If the header has a checksum, it is computed while the
+   * stream is read. If the payload is scattered, its blocks are permuted with a fresh seed.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param message the {@link InputStream} to read the payload from
+   * @param bitsPerByte the number of message bits to store per data byte
+   * @param header the {@link MessageHeader} describing the payload, whose payload length (and
+   *     content length, checksum and layout if it has them) is set
+   * @return the length of the content read from the stream
+   * @throws MessageManipulationException if one of the arguments is not valid or if the header has
+   *     a cipher but the instance has no passphrase, in which case the pixel array may have been
+   *     partially modified
+   * @throws IOException if the message cannot be read or if the pixel array of a mapped file cannot
+   *     be accessed
+   */
+  public long hideMessage(
+      BmpFile bmpFile, InputStream message, int bitsPerByte, MessageHeader header)
+      throws MessageManipulationException, IOException {
+    checkBitsPerByte(bitsPerByte);
+    checkCarrier(bmpFile);
+
+    int headerLength = header.getLength();
+    if (bmpFile.getCapacity(bitsPerByte) < headerLength) {
       throw new MessageManipulationException("Not enough space to hide message in data");
     } /* if */
 
-    // Mask used to reset the data bits to hide the message in
-    byte bit_mask = (byte) ((1 << bitsPerByte) - 1);
+    ScatterLayout layout = null;
+    if (header.isScattered()) {
+      header.setScatter(
+          ScatterLayout.chooseBlockLength(bmpFile, bitsPerByte, headerLength), RANDOM.nextLong());
+      layout = newScatterLayout(bmpFile, bitsPerByte, header);
+    } /* if */
+
+    long capacity = getStreamCapacity(bmpFile, layout, headerLength, bitsPerByte);
+    long payloadLength;
+    if (isPlain(header)) {
+      payloadLength =
+          hideStream(bmpFile, null, headerLength, capacity, message, bitsPerByte) - headerLength;
+    } else {
+      SecretKey key = null;
+      if (header.isEncrypted()) {
+        Passphrase.Key newKey = requirePassphrase().newKey();
+        byte[] noncePrefix = new byte[PayloadCipher.NONCE_PREFIX_LENGTH];
+        RANDOM.nextBytes(noncePrefix);
+        header.setEncryption(newKey, noncePrefix);
+        key = newKey.secret();
+      } /* if */
 
-    // Bit by bit in message, byte by byte in pixel array
-    for (int i = 0; i < message.length * MAX_BITS_PER_BYTE; ++i) {
-      int bit_offset = i % MAX_BITS_PER_BYTE;
-      int msg_offset = i >> 3;
-      byte msg_byte = message[msg_offset];
-      byte msg_bit = (byte) ((msg_byte >> (MAX_BITS_PER_BYTE - 1 - bit_offset)) & bit_mask);
-      data[i] &= (byte) ~bit_mask;
-      data[i] |= msg_bit;
+      // Content, then compressed content, then encrypted content
+      CountingInputStream content = new CountingInputStream(message);
+      CRC32C checksum = new CRC32C();
+      try (InputStream checked =
+              header.isChecksummed() ? new CheckedInputStream(content, checksum) : content;
+          InputStream compressed =
+              header.isCompressed() ? header.getCodec().compress(checked) : checked;
+          InputStream payload =
+              header.isEncrypted()
+                  ? header
+                      .getCipher()
+                      .encrypt(
+                          compressed, key, header.getNoncePrefix(), header.encodeAssociatedData())
+                  : compressed) {
+        payloadLength =
+            hideStream(bmpFile, layout, headerLength, capacity, payload, bitsPerByte)
+                - headerLength;
+      }
+      header.setContentLength(content.count);
+      header.setChecksum((int) checksum.getValue());
+    } /* if */
+
+    header.setPayloadLength(payloadLength);
+    embed(bmpFile, null, 0, header.encode(), headerLength, bitsPerByte);
+
+    bmpFile.setMessage(headerLength + payloadLength, bitsPerByte, true);
+    return header.getContentLength();
+  }
+
+  /**
+   * Hides several named files inside the pixel array of a bitmap file, after a {@link
+   * MessageHeader} and a {@link ContainerIndex}.
+   *
+   * <p>The room of the index is reserved first, as its length only depends on the names. The files
+   * are then opened one at a time and hidden one after the other as with {@link
+   * #hideMessage(BmpFile, InputStream, int)}, their length and CRC-32C being computed while they
+   * are read, and the index is finally hidden before them. If the payload is scattered, the index
+   * and the files are scattered together. The header has no checksum of its own, the files being
+   * checked by the checksums of the index.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param names the names of the files, in the order they are hidden
+   * @param source the {@link ContainerIndex.Source} opening the files
+   * @param bitsPerByte the number of message bits to store per data byte
+   * @param header the {@link MessageHeader} describing the payload, e.g. from {@link
+   *     MessageHeader#forContainer(int)}, which must be neither compressed, encrypted nor a shard
+   * @return the {@link ContainerIndex} of the hidden files
+   * @throws MessageManipulationException if one of the arguments is not valid, in which case the
+   *     pixel array may have been partially modified
+   * @throws IOException if a file cannot be read or if the pixel array of a mapped file cannot be
+   *     accessed
+   */
+  public ContainerIndex hideContainer(
+      BmpFile bmpFile,
+      List<String> names,
+      ContainerIndex.Source source,
+      int bitsPerByte,
+      MessageHeader header)
+      throws MessageManipulationException, IOException {
+    checkBitsPerByte(bitsPerByte);
+    checkCarrier(bmpFile);
+    ContainerIndex.checkNames(names);
+
+    if (header.isShard() || header.isCompressed() || header.isEncrypted()) {
+      throw new MessageManipulationException(
+          "The files of a container cannot be compressed, encrypted or split across images");
+    } /* if */
+
+    int indexLength = ContainerIndex.getLength(names);
+    header.setChecksummed(false);
+    header.setContainer(indexLength);
+
+    int headerLength = header.getLength();
+    if (bmpFile.getCapacity(bitsPerByte) < headerLength + indexLength) {
+      throw new MessageManipulationException("Not enough space to hide message in data");
+    } /* if */
+
+    ScatterLayout layout = null;
+    if (header.isScattered()) {
+      header.setScatter(
+          ScatterLayout.chooseBlockLength(bmpFile, bitsPerByte, headerLength), RANDOM.nextLong());
+      layout = newScatterLayout(bmpFile, bitsPerByte, header);
+      if (layout.getCapacity() < indexLength) {
+        throw new MessageManipulationException("Not enough space to hide message in data");
+      } /* if */
+    } /* if */
+
+    // Files first, each one right after the previous one, then the index before them
+    long capacity = getStreamCapacity(bmpFile, layout, headerLength, bitsPerByte);
+    long dataStart = headerLength + indexLength;
+    long position = dataStart;
+    List<ContainerIndex.Entry> entries = new ArrayList<>(names.size());
+    for (String name : names) {
+      CRC32C checksum = new CRC32C();
+      try (InputStream file = new CheckedInputStream(source.open(name), checksum)) {
+        long end = hideStream(bmpFile, layout, position, capacity, file, bitsPerByte);
+        entries.add(
+            new ContainerIndex.Entry(
+                name, position - dataStart, end - position, (int) checksum.getValue()));
+        position = end;
+      }
     } /* for */
 
-    bmpFile.setData(data, message.length, bitsPerByte);
+    ContainerIndex index = new ContainerIndex(entries);
+    embed(bmpFile, layout, headerLength, index.encode(), indexLength, bitsPerByte);
+
+    header.setPayloadLength(position - headerLength);
+    embed(bmpFile, null, 0, header.encode(), headerLength, bitsPerByte);
+
+    bmpFile.setMessage(position, bitsPerByte, true);
+    return index;
   }
 
   /**
-   * Extracts a hidden message from the provided data array.
+   * Overwrites a range of the message hidden in a bitmap file with bytes read from a stream,
+   * extending the message when the range goes past its end.
    *
-   * <p>Data array is used as input and output. Each of the (bitsPerByte) LSb of each byte in data
-   * are set to 0.
+   * <p>Only the pixels carrying the range are accessed, along with the header of the message when
+   * its length or its checksum changes, so the cost of an update does not depend on the length of
+   * the message. The checksum is updated from the replaced bytes alone (see {@link Crc32c}). The
+   * stream is read until its end and is not closed.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance, with a hidden message
+   * @param offset the position of the range in the content, at most its length to append to it
+   * @param update the {@link InputStream} to read the new bytes from
+   * @return the length of the content once updated
+   * @throws MessageManipulationException if there is no message, if the message is compressed,
+   *     encrypted, split across several images or made of several files, if the offset is past the
+   *     end of the content or if the range does not fit in the pixel array, in which case the pixel
+   *     array may have been partially modified
+   * @throws IOException if the stream cannot be read or if the pixel array of a mapped file cannot
+   *     be accessed
+   */
+  public long updateMessage(BmpFile bmpFile, long offset, InputStream update)
+      throws MessageManipulationException, IOException {
+    if (!bmpFile.hasMessage()) {
+      throw new MessageManipulationException("The image has no hidden message to update");
+    } /* if */
+
+    checkHiddenMessage(bmpFile);
+    int bitsPerByte = bmpFile.getBitsPerByte();
+    MessageHeader header = null;
+    ScatterLayout layout = null;
+    int start = 0;
+    long end = bmpFile.getMessageLength();
+    long capacity = bmpFile.getCapacity(bitsPerByte);
+
+    if (bmpFile.hasMessageHeader()) {
+      header = readMessageHeader(bmpFile);
+      if (header.isShard()
+          || header.isCompressed()
+          || header.isEncrypted()
+          || header.isContainer()) {
+        throw new MessageManipulationException(
+            "A compressed, encrypted, split or multi-file message cannot be updated, it must be hidden again");
+      } /* if */
+
+      start = header.getLength();
+      end = start + header.getPayloadLength(); // Only known from the header if extended
+      if (header.isScattered()) {
+        layout = newScatterLayout(bmpFile, bitsPerByte, header);
+        capacity = start + layout.getCapacity();
+      } /* if */
+    } else if (!bmpFile.getDibHeader().isDense()) {
+      throw new MessageManipulationException(
+          "A message hidden in the padding or alpha of an image by an older version cannot be updated");
+    } else {
+      capacity = Math.min(capacity, MAX_MESSAGE_LENGTH);
+    } /* if */
+
+    if (offset < 0 || offset > end - start) {
+      throw new MessageManipulationException(
+          "The update must start inside the hidden message or right after its end");
+    } /* if */
+
+    boolean checksummed = header != null && header.isChecksummed();
+    int checksum = checksummed ? header.getChecksum() : 0;
+    long position = start + offset;
+
+    try (BufferPool.Buffer buffer = BufferPool.shared().borrow(streamChunkSize);
+        BufferPool.Buffer previousBuffer =
+            BufferPool.shared().borrow(checksummed ? streamChunkSize : 0)) {
+      byte[] chunk = buffer.array();
+      byte[] previous = previousBuffer.array();
+
+      int chunkLength;
+      while ((chunkLength = update.readNBytes(chunk, 0, streamChunkSize)) > 0) {
+        if (chunkLength > capacity - position) {
+          throw new MessageManipulationException("Not enough space to hide message in data");
+        } /* if */
+
+        if (checksummed) {
+          // Replaced bytes first, then appended bytes
+          int replaced = (int) Math.max(0, Math.min(chunkLength, end - position));
+          extract(bmpFile, layout, position, previous, replaced, bitsPerByte);
+          checksum = Crc32c.replace(checksum, previous, chunk, replaced, end - position - replaced);
+          checksum = Crc32c.append(checksum, chunk, replaced, chunkLength - replaced);
+        } /* if */
+
+        embed(bmpFile, layout, position, chunk, chunkLength, bitsPerByte);
+        position += chunkLength;
+        end = Math.max(end, position);
+      } /* while */
+    }
+
+    if (header == null) {
+      bmpFile.setMessage(end, bitsPerByte);
+      return end;
+    } /* if */
+
+    if (end - start != header.getPayloadLength() || checksummed) {
+      header.setPayloadLength(end - start);
+      header.setChecksum(checksum);
+      embed(bmpFile, null, 0, header.encode(), start, bitsPerByte);
+    } /* if */
+
+    bmpFile.setMessage(end, bitsPerByte, true);
+    return end - start;
+  }
+
+  /**
+   * Extracts a hidden message from the pixel array of a bitmap file.
+   *
+   * <p>The pixel array is only read, the hidden bits are left untouched.
    *
    * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
    * @param message a byte array where the extracted message will be extracted to
    * @throws MessageManipulationException if one of the arguments is not valid
+   * @throws IOException if the pixel array of a mapped file cannot be accessed
+   */
+  public void exposeMessage(BmpFile bmpFile, byte[] message)
+      throws MessageManipulationException, IOException {
+    int position = 0;
+    long messageLength = bmpFile.getMessageLength();
+
+    if (bmpFile.hasMessageHeader()) {
+      MessageHeader header = readMessageHeader(bmpFile);
+      if (!isPlain(header)) {
+        if (message.length < header.getContentLength()) {
+          throw new MessageManipulationException(
+              "Message array is too small for the hidden message");
+        } /* if */
+
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        exposePayload(bmpFile, header, content);
+        System.arraycopy(content.toByteArray(), 0, message, 0, content.size());
+        return;
+      } /* if */
+
+      position = header.getLength();
+      messageLength = header.getPayloadLength();
+    } /* if */
+
+    if (message.length < messageLength) {
+      throw new MessageManipulationException("Message array is too small for the hidden message");
+    } /* if */
+
+    checkHiddenMessage(bmpFile);
+    extract(bmpFile, null, position, message, (int) messageLength, bmpFile.getBitsPerByte());
+  }
+
+  /**
+   * Extracts a hidden message from the pixel array of a bitmap file into a stream.
+   *
+   * <p>The message is extracted and written by chunks of at least {@value #STREAM_CHUNK_SIZE}
+   * bytes. The stream is neither flushed nor closed.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param message the {@link OutputStream} to write the message to
+   * @return the length of the exposed message
+   * @throws MessageManipulationException if the hidden message is not valid
+   * @throws IOException if the message cannot be written or if the pixel array of a mapped file
+   *     cannot be accessed
+   */
+  public long exposeMessage(BmpFile bmpFile, OutputStream message)
+      throws MessageManipulationException, IOException {
+    if (bmpFile.hasMessageHeader()) {
+      MessageHeader header = readMessageHeader(bmpFile);
+      if (header.isShard()) {
+        throw new MessageManipulationException(
+            "The message is split across several images, all of them must be exposed together");
+      } /* if */
+
+      return exposePayload(bmpFile, header, message);
+    } /* if */
+
+    checkHiddenMessage(bmpFile);
+    return exposeStream(bmpFile, null, 0, bmpFile.getMessageLength(), message);
+  }
+
+  /**
+   * Reads the {@link MessageHeader} hidden before the message of a bitmap file.
+   *
+   * <p>If the message is too long for its length to be stored in the bitmap header (see {@link
+   * BmpFile#hasExtendedMessageLength()}), the length of the bitmap file is taken from the header.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance, whose hidden data starts
+   *     with a message header
+   * @return the {@link MessageHeader} of the message
+   * @throws MessageManipulationException if there is no header or if it is not valid
+   * @throws IOException if the pixel array of a mapped file cannot be accessed
+   */
+  public MessageHeader readMessageHeader(BmpFile bmpFile)
+      throws MessageManipulationException, IOException {
+    int bitsPerByte = bmpFile.getBitsPerByte();
+    long messageLength = bmpFile.getMessageLength();
+
+    if (!bmpFile.hasMessageHeader() || messageLength < MessageHeader.MIN_LENGTH) {
+      throw new MessageManipulationException("The hidden message has no header");
+    } /* if */
+
+    checkHiddenMessage(bmpFile);
+
+    byte[] start = new byte[MessageHeader.MIN_LENGTH];
+    extract(bmpFile, null, 0, start, start.length, bitsPerByte);
+    int headerLength = MessageHeader.decodeLength(start);
+    if (headerLength < MessageHeader.MIN_LENGTH || headerLength > messageLength) {
+      throw new MessageManipulationException("Invalid message header length");
+    } /* if */
+
+    byte[] encoded = new byte[headerLength];
+    extract(bmpFile, null, 0, encoded, headerLength, bitsPerByte);
+    MessageHeader header = MessageHeader.decode(encoded);
+    if (bmpFile.hasExtendedMessageLength()) {
+      if (header.getPayloadLength() > Long.MAX_VALUE - headerLength) {
+        throw new MessageManipulationException("Invalid payload length");
+      } /* if */
+      bmpFile.resolveMessageLength(headerLength + header.getPayloadLength());
+      checkHiddenMessage(bmpFile);
+    } else if (header.getPayloadLength() != messageLength - headerLength) {
+      throw new MessageManipulationException("Invalid payload length");
+    } /* if */
+
+    return header;
+  }
+
+  /**
+   * Extracts the payload following a {@link MessageHeader} into a stream.
+   *
+   * <p>The payload is extracted and written as with {@link #exposeMessage(BmpFile, OutputStream)},
+   * authenticated and decrypted while it is written if the header has a {@link PayloadCipher}, with
+   * the key derived from the passphrase of the instance, and then decompressed if it has a {@link
+   * PayloadCodec}. Only authenticated content is written. If the header has a checksum, it is
+   * checked once the whole content has been written. A scattered payload is gathered from its
+   * blocks in the order of their position in the image, chunk by chunk.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param header the {@link MessageHeader} read by {@link #readMessageHeader(BmpFile)}
+   * @param message the {@link OutputStream} to write the content to
+   * @return the length of the exposed content
+   * @throws MessageManipulationException if the content does not have the length or the checksum in
+   *     the header, if a scattered payload does not fit in its blocks, if the payload is encrypted
+   *     but the instance has no passphrase or if it is made of several files
+   * @throws IOException if the content cannot be written, if the payload cannot be authenticated or
+   *     decompressed or if the pixel array of a mapped file cannot be accessed
+   */
+  public long exposePayload(BmpFile bmpFile, MessageHeader header, OutputStream message)
+      throws MessageManipulationException, IOException {
+    long payloadLength = header.getPayloadLength();
+    if (isPlain(header)) {
+      return exposeStream(bmpFile, null, header.getLength(), payloadLength, message);
+    } /* if */
+
+    if (header.isContainer()) {
+      throw new MessageManipulationException(
+          "The image holds several files, one of them must be exposed by its name");
+    } /* if */
+
+    ScatterLayout layout = readLayout(bmpFile, header);
+
+    SecretKey key = null;
+    if (header.isEncrypted()) {
+      Passphrase passphrase = requirePassphrase();
+      try {
+        key = passphrase.keyFor(header.getSalt(), header.getIterations()).secret();
+      } catch (IllegalArgumentException e) {
+        throw new MessageManipulationException(e.getMessage());
+      }
+    } /* if */
+
+    // Encrypted content, then compressed content, then content
+    CountingOutputStream content = new CountingOutputStream(message);
+    CRC32C checksum = new CRC32C();
+    try (OutputStream checked =
+            header.isChecksummed() ? new CheckedOutputStream(content, checksum) : content;
+        OutputStream compressed =
+            header.isCompressed() ? header.getCodec().decompress(checked) : checked;
+        OutputStream payload =
+            header.isEncrypted()
+                ? header
+                    .getCipher()
+                    .decrypt(
+                        compressed, key, header.getNoncePrefix(), header.encodeAssociatedData())
+                : compressed) {
+      exposeStream(bmpFile, layout, header.getLength(), payloadLength, payload);
+    }
+
+    if (content.count != header.getContentLength()) {
+      throw new MessageManipulationException(
+          "The exposed message does not have the length in its header");
+    } /* if */
+
+    if (header.isChecksummed() && (int) checksum.getValue() != header.getChecksum()) {
+      throw new MessageManipulationException(
+          "The exposed message is corrupted, its checksum does not match the one in its header");
+    } /* if */
+    return content.count;
+  }
+
+  /**
+   * Reads the {@link ContainerIndex} of the files hidden together in a bitmap file.
+   *
+   * <p>Only the header and the index are extracted, not the files.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @return the {@link ContainerIndex} of the files
+   * @throws MessageManipulationException if the hidden message is not a valid container
+   * @throws IOException if the pixel array of a mapped file cannot be accessed
+   */
+  public ContainerIndex readContainerIndex(BmpFile bmpFile)
+      throws MessageManipulationException, IOException {
+    MessageHeader header = readMessageHeader(bmpFile);
+    return readContainerIndex(bmpFile, header, readLayout(bmpFile, header));
+  }
+
+  /**
+   * Extracts a single file hidden with others in a bitmap file into a stream.
+   *
+   * <p>Only the header, the {@link ContainerIndex} and the bytes of the file are extracted, so the
+   * cost does not depend on the other files. The file is written by chunks as with {@link
+   * #exposeMessage(BmpFile, OutputStream)} and its checksum is checked once it has been written.
+   * The stream is neither flushed nor closed.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param name the name of the file in the container
+   * @param message the {@link OutputStream} to write the file to
+   * @return the length of the exposed file
+   * @throws MessageManipulationException if the hidden message is not a valid container, if it has
+   *     no file with this name or if the checksum of the file does not match
+   * @throws IOException if the file cannot be written or if the pixel array of a mapped file cannot
+   *     be accessed
+   */
+  public long exposeEntry(BmpFile bmpFile, String name, OutputStream message)
+      throws MessageManipulationException, IOException {
+    MessageHeader header = readMessageHeader(bmpFile);
+    ScatterLayout layout = readLayout(bmpFile, header);
+    ContainerIndex.Entry entry = readContainerIndex(bmpFile, header, layout).find(name);
+    if (entry == null) {
+      throw new MessageManipulationException("The image holds no file named " + name);
+    } /* if */
+
+    CRC32C checksum = new CRC32C();
+    long start = header.getLength() + header.getIndexLength() + entry.offset();
+    // The counting stream keeps the stream of the caller open
+    try (OutputStream checked =
+        new CheckedOutputStream(new CountingOutputStream(message), checksum)) {
+      exposeStream(bmpFile, layout, start, entry.length(), checked);
+    }
+
+    if ((int) checksum.getValue() != entry.checksum()) {
+      throw new MessageManipulationException(
+          "The exposed file is corrupted, its checksum does not match the one in the index");
+    } /* if */
+    return entry.length();
+  }
+
+  /**
+   * Reads the {@link ContainerIndex} starting the payload of a container.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param header the {@link MessageHeader} of the payload
+   * @param layout the {@link ScatterLayout} of the payload, or {@code null} if it is not scattered
+   * @return the {@link ContainerIndex} of the files
+   * @throws MessageManipulationException if the payload is not a container or if its index is not
+   *     valid
+   * @throws IOException if the pixel array of a mapped file cannot be accessed
+   */
+  private ContainerIndex readContainerIndex(
+      BmpFile bmpFile, MessageHeader header, ScatterLayout layout)
+      throws MessageManipulationException, IOException {
+    if (!header.isContainer()) {
+      throw new MessageManipulationException("The hidden message is not made of several files");
+    } /* if */
+
+    byte[] index = new byte[header.getIndexLength()];
+    extract(bmpFile, layout, header.getLength(), index, index.length, bmpFile.getBitsPerByte());
+    return ContainerIndex.decode(index, header.getPayloadLength() - index.length);
+  }
+
+  /**
+   * Checks whether a payload is the content itself, hidden right after the header without being
+   * transformed or checked.
+   *
+   * @param header the {@link MessageHeader} of the payload
+   * @return {@code true} if the content is neither compressed, encrypted, checksummed, scattered
+   *     nor made of several files, {@code false} if not
    */
-  public void exposeMessage(BmpFile bmpFile, byte[] message) throws MessageManipulationException {
+  private static boolean isPlain(MessageHeader header) {
+    return !header.isCompressed()
+        && !header.isEncrypted()
+        && !header.isChecksummed()
+        && !header.isScattered()
+        && !header.isContainer();
+  }
+
+  /**
+   * Creates the layout of a scattered payload from its header.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param bitsPerByte the number of message bits stored per data byte
+   * @param header the {@link MessageHeader} of the payload, with its layout
+   * @return the {@link ScatterLayout} of the payload
+   * @throws MessageManipulationException if the layout is not valid
+   */
+  private static ScatterLayout newScatterLayout(
+      BmpFile bmpFile, int bitsPerByte, MessageHeader header) throws MessageManipulationException {
+    return new ScatterLayout(
+        bmpFile,
+        bitsPerByte,
+        header.getLength(),
+        header.getScatterBlockLength(),
+        header.getScatterSeed());
+  }
+
+  /**
+   * Creates the layout of the payload of a hidden message, checking that the payload fits in it.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param header the {@link MessageHeader} of the payload
+   * @return the {@link ScatterLayout} of the payload, or {@code null} if it is not scattered
+   * @throws MessageManipulationException if the layout is not valid or too small for the payload
+   */
+  private static ScatterLayout readLayout(BmpFile bmpFile, MessageHeader header)
+      throws MessageManipulationException {
+    if (!header.isScattered()) {
+      return null;
+    } /* if */
+
+    ScatterLayout layout = newScatterLayout(bmpFile, bmpFile.getBitsPerByte(), header);
+    if (header.getPayloadLength() > layout.getCapacity()) {
+      throw new MessageManipulationException("Invalid payload length");
+    } /* if */
+    return layout;
+  }
+
+  /**
+   * Returns the passphrase of the instance, needed by encrypted messages.
+   *
+   * @return the {@link Passphrase} of the instance
+   * @throws MessageManipulationException if the instance has no passphrase
+   */
+  private Passphrase requirePassphrase() throws MessageManipulationException {
+    if (passphrase == null) {
+      throw new MessageManipulationException(
+          "The message is encrypted, a passphrase is needed to hide or expose it");
+    } /* if */
+
+    return passphrase;
+  }
+
+  /**
+   * Returns the position in the message up to which a payload can be hidden.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param layout the {@link ScatterLayout} of the payload, or {@code null} if it is not scattered
+   * @param payloadStart the position in the message where the payload starts
+   * @param bitsPerByte the number of message bits to store per data byte
+   * @return a {@code long} with the length of the longest message
+   */
+  private static long getStreamCapacity(
+      BmpFile bmpFile, ScatterLayout layout, int payloadStart, int bitsPerByte) {
+    return layout == null ? bmpFile.getCapacity(bitsPerByte) : payloadStart + layout.getCapacity();
+  }
+
+  /**
+   * Hides a stream until its end, from a given position of the message.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param layout the {@link ScatterLayout} of the payload, or {@code null} if it is not scattered
+   * @param start the position in the message where the stream starts
+   * @param capacity the position in the message the stream must not go past
+   * @param message the {@link InputStream} to read from
+   * @param bitsPerByte the number of message bits to store per data byte
+   * @return the position in the message where the stream ends
+   * @throws MessageManipulationException if the stream does not fit in the pixel array
+   * @throws IOException if the message cannot be read or if the pixel array of a mapped file cannot
+   *     be accessed
+   */
+  private long hideStream(
+      BmpFile bmpFile,
+      ScatterLayout layout,
+      long start,
+      long capacity,
+      InputStream message,
+      int bitsPerByte)
+      throws MessageManipulationException, IOException {
+    long position = start;
+
+    try (BufferPool.Buffer buffer = BufferPool.shared().borrow(streamChunkSize)) {
+      byte[] chunk = buffer.array();
+
+      // Chunk by chunk in message, each chunk going right after the previous one in pixel array
+      int chunkLength;
+      while ((chunkLength = message.readNBytes(chunk, 0, streamChunkSize)) > 0) {
+        if (chunkLength > capacity - position) {
+          throw new MessageManipulationException("Not enough space to hide message in data");
+        } /* if */
+
+        embed(bmpFile, layout, position, chunk, chunkLength, bitsPerByte);
+        position += chunkLength;
+      } /* while */
+    }
+
+    return position;
+  }
+
+  /**
+   * Extracts a range of the message into a stream, chunk by chunk.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param layout the {@link ScatterLayout} of the payload, or {@code null} if it is not scattered
+   * @param start the position in the message where the range starts
+   * @param length the length of the range
+   * @param message the {@link OutputStream} to write to
+   * @return the length of the range
+   * @throws IOException if the message cannot be written or if the pixel array of a mapped file
+   *     cannot be accessed
+   */
+  private long exposeStream(
+      BmpFile bmpFile, ScatterLayout layout, long start, long length, OutputStream message)
+      throws IOException {
     int bitsPerByte = bmpFile.getBitsPerByte();
-    int messageLength = bmpFile.getMessageLength();
-    byte[] data = bmpFile.getPixelArray();
 
-    // 8 bytes in pixel array to store 1 byte of message
-    if (data.length < message.length * MAX_BITS_PER_BYTE) {
+    int chunkSize = (int) Math.min(streamChunkSize, length);
+    try (BufferPool.Buffer buffer = BufferPool.shared().borrow(chunkSize)) {
+      byte[] chunk = buffer.array();
+      for (long position = 0; position < length; position += chunkSize) {
+        int chunkLength = (int) Math.min(chunkSize, length - position);
+        extract(bmpFile, layout, start + position, chunk, chunkLength, bitsPerByte);
+        message.write(chunk, 0, chunkLength);
+      } /* for */
+    }
+
+    return length;
+  }
+
+  /**
+   * Checks that the number of bits per byte is supported.
+   *
+   * @param bitsPerByte the number of message bits to store per data byte
+   * @throws MessageManipulationException if the number of bits per byte is not supported
+   */
+  private static void checkBitsPerByte(int bitsPerByte) throws MessageManipulationException {
+    if (bitsPerByte < MIN_BITS_PER_BYTE
+        || bitsPerByte > MAX_BITS_PER_BYTE
+        || MAX_BITS_PER_BYTE % bitsPerByte != 0) {
+      throw new MessageManipulationException(
+          "Bit count must be a power of 2 between "
+              + MIN_BITS_PER_BYTE
+              + " and "
+              + MAX_BITS_PER_BYTE);
+    } /* if */
+  }
+
+  /**
+   * Checks that the pixels of a bitmap file have color channels to hide a message in.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @throws MessageManipulationException if no byte of the pixel array can carry a message
+   */
+  private static void checkCarrier(BmpFile bmpFile) throws MessageManipulationException {
+    if (bmpFile.getCarrierLength() == 0) {
+      throw new MessageManipulationException(
+          "The pixels of the image have no color channel of 8 bits to hide a message in");
+    } /* if */
+  }
+
+  /**
+   * Checks that the message described by the header of a bitmap file fits in its pixel array.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @throws MessageManipulationException if the message does not fit
+   */
+  private static void checkHiddenMessage(BmpFile bmpFile) throws MessageManipulationException {
+    if (!bmpFile.isMessageComplete()) {
       throw new MessageManipulationException("Data is not enough to retrieve hidden message");
     } /* if */
+  }
 
-    // Mask used to reset the data bits to hide the message in
-    byte bit_mask = (byte) ((1 << bitsPerByte) - 1);
+  /**
+   * Hides a part of a message at a given position of the message in a bitmap file.
+   *
+   * <p>Only the pixels carrying this part of the message are accessed, by chunks of at most the
+   * stream chunk size of the instance.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param layout the {@link ScatterLayout} of the payload, or {@code null} if the part is hidden
+   *     in the first bytes
+   * @param position the position of the part in the whole message
+   * @param part an array starting with the part of the message to hide
+   * @param length the length of the part
+   * @param bitsPerByte the number of message bits to store per data byte
+   * @throws IOException if the pixel array of a mapped file cannot be accessed
+   */
+  private void embed(
+      BmpFile bmpFile,
+      ScatterLayout layout,
+      long position,
+      byte[] part,
+      int length,
+      int bitsPerByte)
+      throws IOException {
+    long start = System.nanoTime();
+    if (layout == null) {
+      // Chunk by chunk, so that the range of pixels of a long part still has an int length
+      int pixelsPerMessageByte = MAX_BITS_PER_BYTE / bitsPerByte;
+      for (int index = 0; index < length; ) {
+        int chunkIndex = index;
+        int chunkLength = Math.min(streamChunkSize, length - index);
+        bmpFile.editPixels(
+            (position + chunkIndex) * pixelsPerMessageByte,
+            chunkLength * pixelsPerMessageByte,
+            pixels -> kernel.embed(pixels, 0, part, chunkIndex, chunkLength, bitsPerByte));
+        index += chunkLength;
+      } /* for */
+    } else {
+      layout.embed(bmpFile, position, part, length, kernel);
+    } /* if */
+    Metrics.record(Metrics.Phase.EMBED, start, length);
+  }
 
-    // Bit by bit in message, byte by byte in pixel array
-    for (int i = 0; i < messageLength * MAX_BITS_PER_BYTE; ++i) {
-      int bit_offset = i % MAX_BITS_PER_BYTE;
-      int byte_offset = i >> 3;
-      byte pixel = data[i];
-      byte hidden_bit = (byte) (pixel & bit_mask);
+  /**
+   * Extracts a part of a message at a given position of the message in a bitmap file.
+   *
+   * <p>Only the pixels carrying this part of the message are accessed, by chunks of at most the
+   * stream chunk size of the instance.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param layout the {@link ScatterLayout} of the payload, or {@code null} if the part is hidden
+   *     in the first bytes
+   * @param position the position of the part in the whole message
+   * @param part an array where the part of the message is written to, from its start
+   * @param length the length of the part
+   * @param bitsPerByte the number of message bits stored per data byte
+   * @throws IOException if the pixel array of a mapped file cannot be accessed
+   */
+  private void extract(
+      BmpFile bmpFile,
+      ScatterLayout layout,
+      long position,
+      byte[] part,
+      int length,
+      int bitsPerByte)
+      throws IOException {
+    long start = System.nanoTime();
+    if (layout == null) {
+      // Chunk by chunk, as in embed()
+      int pixelsPerMessageByte = MAX_BITS_PER_BYTE / bitsPerByte;
+      for (int index = 0; index < length; ) {
+        int chunkIndex = index;
+        int chunkLength = Math.min(streamChunkSize, length - index);
+        bmpFile.readPixels(
+            (position + chunkIndex) * pixelsPerMessageByte,
+            chunkLength * pixelsPerMessageByte,
+            pixels -> kernel.extract(pixels, 0, part, chunkIndex, chunkLength, bitsPerByte));
+        index += chunkLength;
+      } /* for */
+    } else {
+      layout.extract(bmpFile, position, part, length, kernel);
+    } /* if */
+    Metrics.record(Metrics.Phase.EXTRACT, start, length);
+  }
 
-      // Reset data bits
-      data[i] = (byte) (pixel ^ hidden_bit);
+  /** Stream counting the bytes read from another stream, without closing it. */
+  private static class CountingInputStream extends FilterInputStream {
+    private long count;
 
-      // Extract message
-      message[byte_offset] |= (byte) (hidden_bit << (MAX_BITS_PER_BYTE - 1 - bit_offset));
-    } /* for */
+    CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        ++count;
+      } /* if */
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n > 0) {
+        count += n;
+      } /* if */
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(n);
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      // The message stream is closed by its owner
+    }
+  }
+
+  /** Stream counting the bytes written to another stream, without closing it. */
+  private static class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
 
-    bmpFile.setData(data, 0, 0);
+    @Override
+    public void close() {
+      // The message stream is closed by its owner
+    }
   }
 }
@@ -0,0 +1,322 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the time spent and the bytes processed by each phase of an execution, along with the
+ * peak heap usage, the garbage collections and the use of the shared {@link BufferPool}.
+ *
+ * <p>The phases are recorded by {@link BmpFile}, {@link FileManipulator}, {@link
+ * MessageManipulator}, {@link Passphrase} and {@link PayloadCipher} through {@link #record(Phase,
+ * long, long)}, into the instance started by the current thread or by the thread that created it.
+ * Nothing is recorded when no instance has been started. The time of a phase is summed over the
+ * threads running it, so it can be longer than the whole execution when several images are handled
+ * at the same time.
+ *
+ * <p>The peak heap usage, the garbage collections and the use of the {@link BufferPool} are those
+ * of the whole process. They are only collected by the instances that own the process, and left out
+ * of the reports of the others, e.g. of the commands run at the same time by a server.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public final class Metrics {
+
+  /** Format of the report. */
+  public enum Format {
+    TEXT,
+    JSON
+  }
+
+  /** Phase of an execution. */
+  public enum Phase {
+    /** Parsing of a bitmap image, including its pixel array when it is loaded in the heap. */
+    READ_IMAGE("read-image"),
+    /** Reading of the message to hide. */
+    READ_MESSAGE("read-message"),
+    /** Derivation of a key from the passphrase. */
+    DERIVE_KEY("derive-key"),
+    /** Encryption of the message before it is hidden. */
+    ENCRYPT("encrypt"),
+    /** Hiding of the message in the pixel array. */
+    EMBED("embed"),
+    /** Extraction of the message from the pixel array. */
+    EXTRACT("extract"),
+    /** Authentication and decryption of the message once it is extracted. */
+    DECRYPT("decrypt"),
+    /** Writing of the exposed message. */
+    WRITE_MESSAGE("write-message"),
+    /** Writing of a bitmap image. */
+    WRITE_IMAGE("write-image");
+
+    private final String label;
+
+    Phase(String label) {
+      this.label = label;
+    }
+
+    /**
+     * Returns the name of the phase in the reports.
+     *
+     * @return a {@link String} with the name of the phase
+     */
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private static final InheritableThreadLocal<Metrics> CURRENT = new InheritableThreadLocal<>();
+  private static final double NANOS_PER_MILLI = 1e6;
+  private static final double BYTES_PER_MEGABYTE = 1e6;
+
+  private final LongAdder[] calls = newAdders();
+  private final LongAdder[] nanos = newAdders();
+  private final LongAdder[] bytes = newAdders();
+  private final boolean processWide;
+  private final long startNanos;
+  private final long startGcCount;
+  private final long startGcMillis;
+  private final BufferPool.Stats startBuffers;
+  private long endNanos;
+
+  private Metrics(boolean processWide) {
+    this.processWide = processWide;
+    if (processWide) {
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+        } /* if */
+      } /* for */
+    } /* if */
+
+    startGcCount = getGcCount();
+    startGcMillis = getGcMillis();
+    startBuffers = BufferPool.shared().getStats();
+    startNanos = System.nanoTime();
+  }
+
+  /**
+   * Starts collecting metrics for the current thread and the threads it creates from now on.
+   *
+   * @param processWide whether the execution owns the process, so that the metrics of the whole
+   *     process (peak heap usage, garbage collections and buffer pool) are its own and are reported
+   * @return the started {@link Metrics}
+   */
+  public static Metrics start(boolean processWide) {
+    Metrics metrics = new Metrics(processWide);
+    CURRENT.set(metrics);
+    return metrics;
+  }
+
+  /**
+   * Checks whether metrics are being collected for the current thread.
+   *
+   * @return {@code true} if an instance has been started, {@code false} if not
+   */
+  public static boolean isEnabled() {
+    return CURRENT.get() != null;
+  }
+
+  /**
+   * Records a run of a phase that started at a given time and ends now, if metrics are being
+   * collected for the current thread.
+   *
+   * @param phase the {@link Phase} that ran
+   * @param startNanos the value of {@link System#nanoTime()} when the phase started
+   * @param processedBytes the number of bytes processed by the phase
+   */
+  public static void record(Phase phase, long startNanos, long processedBytes) {
+    Metrics metrics = CURRENT.get();
+    if (metrics == null) {
+      return;
+    } /* if */
+
+    long elapsed = System.nanoTime() - startNanos;
+    metrics.calls[phase.ordinal()].increment();
+    metrics.nanos[phase.ordinal()].add(elapsed);
+    metrics.bytes[phase.ordinal()].add(processedBytes);
+  }
+
+  /** Stops the clock of the execution. The phases recorded afterwards are still reported. */
+  public void stop() {
+    endNanos = System.nanoTime();
+  }
+
+  /**
+   * Creates the report of the execution.
+   *
+   * @param format the {@link Format} of the report
+   * @param exitCode the exit code of the execution
+   * @return a {@link String} with the report, on several lines for {@link Format#TEXT} and on a
+   *     single line for {@link Format#JSON}
+   */
+  public String report(Format format, int exitCode) {
+    double totalMillis =
+        ((endNanos == 0 ? System.nanoTime() : endNanos) - startNanos) / NANOS_PER_MILLI;
+    long peakHeap = getPeakHeap();
+    long gcCount = getGcCount() - startGcCount;
+    long gcMillis = getGcMillis() - startGcMillis;
+    BufferPool.Stats buffers = BufferPool.shared().getStats();
+    long borrows = buffers.borrows() - startBuffers.borrows();
+    double hitRate = borrows == 0 ? 0 : (double) (buffers.hits() - startBuffers.hits()) / borrows;
+    long leaks = buffers.leaks() - startBuffers.leaks();
+
+    StringBuilder report = new StringBuilder();
+    if (format == Format.JSON) {
+      report.append(
+          String.format(
+              Locale.ROOT,
+              "{\"exitCode\":%d,\"totalMs\":%.3f,\"phases\":{",
+              exitCode,
+              totalMillis));
+      String separator = "";
+      for (Phase phase : Phase.values()) {
+        if (calls[phase.ordinal()].sum() > 0) {
+          report.append(
+              String.format(
+                  Locale.ROOT,
+                  "%s\"%s\":{\"calls\":%d,\"ms\":%.3f,\"bytes\":%d,\"mbPerSecond\":%.3f}",
+                  separator,
+                  phase.getLabel(),
+                  calls[phase.ordinal()].sum(),
+                  getMillis(phase),
+                  bytes[phase.ordinal()].sum(),
+                  getThroughput(phase)));
+          separator = ",";
+        } /* if */
+      } /* for */
+      report.append('}');
+      if (processWide) {
+        report.append(
+            String.format(
+                Locale.ROOT,
+                ",\"peakHeapBytes\":%d,\"gc\":{\"count\":%d,\"ms\":%d},"
+                    + "\"buffers\":{\"borrows\":%d,\"hitRate\":%.3f,\"retainedBytes\":%d,"
+                    + "\"outstanding\":%d,\"leaks\":%d}",
+                peakHeap,
+                gcCount,
+                gcMillis,
+                borrows,
+                hitRate,
+                buffers.retainedBytes(),
+                buffers.outstanding(),
+                leaks));
+      } /* if */
+      report.append('}');
+    } else {
+      report.append(
+          String.format(
+              Locale.ROOT, "Execution time: %.0f ms (exit code %d)%n", totalMillis, exitCode));
+      report.append(
+          String.format(
+              Locale.ROOT,
+              "%-14s %8s %12s %14s %10s%n",
+              "Phase",
+              "Calls",
+              "Time (ms)",
+              "Bytes",
+              "MB/s"));
+      for (Phase phase : Phase.values()) {
+        if (calls[phase.ordinal()].sum() > 0) {
+          report.append(
+              String.format(
+                  Locale.ROOT,
+                  "%-14s %8d %12.3f %14d %10.1f%n",
+                  phase.getLabel(),
+                  calls[phase.ordinal()].sum(),
+                  getMillis(phase),
+                  bytes[phase.ordinal()].sum(),
+                  getThroughput(phase)));
+        } /* if */
+      } /* for */
+      if (processWide) {
+        report.append(
+            String.format(
+                Locale.ROOT,
+                "Peak heap: %.1f MB, GC: %d collections in %d ms%n",
+                peakHeap / BYTES_PER_MEGABYTE,
+                gcCount,
+                gcMillis));
+        report.append(
+            String.format(
+                Locale.ROOT,
+                "Buffers: %d borrowed (%.1f%% from the pool), %.1f MB retained, %d outstanding, %d leaked",
+                borrows,
+                hitRate * 100,
+                buffers.retainedBytes() / BYTES_PER_MEGABYTE,
+                buffers.outstanding(),
+                leaks));
+      } /* if */
+    } /* if */
+
+    // The text report does not end with a line separator
+    return report.toString().stripTrailing();
+  }
+
+  private double getMillis(Phase phase) {
+    return nanos[phase.ordinal()].sum() / NANOS_PER_MILLI;
+  }
+
+  private double getThroughput(Phase phase) {
+    long elapsed = nanos[phase.ordinal()].sum();
+    return elapsed == 0 ? 0 : bytes[phase.ordinal()].sum() * 1e9 / elapsed / BYTES_PER_MEGABYTE;
+  }
+
+  private static LongAdder[] newAdders() {
+    LongAdder[] adders = new LongAdder[Phase.values().length];
+    for (int i = 0; i < adders.length; ++i) {
+      adders[i] = new LongAdder();
+    } /* for */
+    return adders;
+  }
+
+  // Sum of the peaks of each heap pool, which do not necessarily happen at the same time
+  private static long getPeakHeap() {
+    long peak = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+        peak += pool.getPeakUsage().getUsed();
+      } /* if */
+    } /* for */
+    return peak;
+  }
+
+  private static long getGcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, collector.getCollectionCount());
+    } /* for */
+    return count;
+  }
+
+  private static long getGcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, collector.getCollectionTime());
+    } /* for */
+    return millis;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Passphrase from which the keys of the {@link PayloadCipher} are derived, with PBKDF2 and
+ * HMAC-SHA256.
+ *
+ * <p>A key is derived from the passphrase, a random salt and a number of iterations, both recorded
+ * in the {@link MessageHeader} so that the key can be derived again when the message is exposed.
+ * The derivation is deliberately slow, so the keys are cached: the messages hidden with the same
+ * instance (e.g. the shards of a message or the jobs of a batch) share a single key, and the
+ * messages exposed with the same instance only derive the key of each salt once. The number of
+ * iterations of new keys is given by the {@code shadow.passphrase.iterations} system property,
+ * {@value #DEFAULT_ITERATIONS} by default.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public final class Passphrase {
+
+  /** Number of PBKDF2 iterations of new keys, as recommended by OWASP for HMAC-SHA256. */
+  public static final int DEFAULT_ITERATIONS = 600_000;
+
+  /** Maximum number of iterations accepted in a header, so that a header cannot stall a command. */
+  public static final int MAX_ITERATIONS = 100_000_000;
+
+  /** Length of the salts, in bytes. */
+  public static final int SALT_LENGTH = 16;
+
+  private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+  private static final int KEY_LENGTH = 256;
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  /** Key derived from the passphrase, with the parameters needed to derive it again. */
+  public record Key(SecretKey secret, byte[] salt, int iterations) {}
+
+  private final char[] chars;
+  private final Map<String, Key> keys = new ConcurrentHashMap<>();
+  private Key newKey;
+
+  /**
+   * Main constructor.
+   *
+   * @param chars the characters of the passphrase, which are copied
+   * @throws IllegalArgumentException if the passphrase is empty
+   */
+  public Passphrase(char[] chars) throws IllegalArgumentException {
+    if (chars.length == 0) {
+      throw new IllegalArgumentException("The passphrase cannot be empty");
+    } /* if */
+    this.chars = chars.clone();
+  }
+
+  /**
+   * Returns the key used to encrypt new messages, derived with a random salt the first time it is
+   * requested.
+   *
+   * @return the {@link Key} of new messages
+   */
+  public synchronized Key newKey() {
+    if (newKey == null) {
+      byte[] salt = new byte[SALT_LENGTH];
+      RANDOM.nextBytes(salt);
+      newKey = keyFor(salt, Integer.getInteger("shadow.passphrase.iterations", DEFAULT_ITERATIONS));
+    } /* if */
+    return newKey;
+  }
+
+  /**
+   * Returns the key derived with the given parameters, e.g. those read from a {@link
+   * MessageHeader}.
+   *
+   * @param salt the salt of the key
+   * @param iterations the number of PBKDF2 iterations
+   * @return the {@link Key}, derived only if it is not cached yet
+   * @throws IllegalArgumentException if the number of iterations is not between 1 and {@value
+   *     #MAX_ITERATIONS}
+   */
+  public Key keyFor(byte[] salt, int iterations) throws IllegalArgumentException {
+    if (iterations < 1 || iterations > MAX_ITERATIONS) {
+      throw new IllegalArgumentException("Invalid number of iterations to derive the key");
+    } /* if */
+
+    // The derivations of other salts are not blocked by this one
+    return keys.computeIfAbsent(
+        HexFormat.of().formatHex(salt) + ":" + iterations, id -> derive(salt, iterations));
+  }
+
+  private Key derive(byte[] salt, int iterations) {
+    long start = System.nanoTime();
+    PBEKeySpec spec = new PBEKeySpec(chars, salt, iterations, KEY_LENGTH);
+    try {
+      byte[] encoded = SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+      SecretKey secret = new SecretKeySpec(encoded, "AES");
+      Arrays.fill(encoded, (byte) 0);
+      return new Key(secret, salt.clone(), iterations);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("The key cannot be derived from the passphrase", e);
+    } finally {
+      spec.clearPassword();
+      Metrics.record(Metrics.Phase.DERIVE_KEY, start, 0);
+    }
+  }
+}
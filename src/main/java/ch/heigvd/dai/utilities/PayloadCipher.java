@@ -0,0 +1,339 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Authenticated ciphers encrypting a payload before it is hidden, recorded in its {@link
+ * MessageHeader} so that it is authenticated and decrypted when it is exposed.
+ *
+ * <p>The payload is encrypted as a stream of segments of {@value #SEGMENT_LENGTH} content bytes,
+ * each one sealed on its own with a {@value #TAG_LENGTH} bytes tag, so that neither the encryption
+ * nor the decryption needs to hold more than a segment: the content of a segment is only written
+ * once its tag has been checked. The nonce of a segment is made of a random prefix of {@value
+ * #NONCE_PREFIX_LENGTH} bytes followed by the index of the segment, and its associated data tells
+ * whether it is the last one, so that segments cannot be reordered, removed or added without being
+ * detected. The associated data also includes the fields of the header, which are therefore
+ * authenticated too.
+ *
+ * <p>The streams the ciphers return never close the stream they wrap.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public enum PayloadCipher {
+  /** AES with a 256 bits key in GCM mode, using the JDK provider. */
+  AES_GCM(1, "AES/GCM/NoPadding");
+
+  /** Number of content bytes in each segment but the last one. */
+  public static final int SEGMENT_LENGTH = 64 * 1024;
+
+  /** Length of the tag sealing each segment, in bytes. */
+  public static final int TAG_LENGTH = 16;
+
+  /** Length of the random prefix of the nonces, in bytes. */
+  public static final int NONCE_PREFIX_LENGTH = 8;
+
+  private static final int SEALED_SEGMENT_LENGTH = SEGMENT_LENGTH + TAG_LENGTH;
+  private static final long MAX_SEGMENTS = 1L << Integer.SIZE;
+
+  private final int id;
+  private final String transformation;
+
+  PayloadCipher(int id, String transformation) {
+    this.id = id;
+    this.transformation = transformation;
+  }
+
+  /**
+   * Returns the identifier of the cipher in a {@link MessageHeader}.
+   *
+   * @return an {@code int} identifying the cipher
+   */
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * Returns the cipher with the given identifier.
+   *
+   * @param id the identifier read from a {@link MessageHeader}
+   * @return the {@link PayloadCipher}, or {@code null} if the identifier is unknown
+   */
+  public static PayloadCipher fromId(int id) {
+    for (PayloadCipher cipher : values()) {
+      if (cipher.id == id) {
+        return cipher;
+      } /* if */
+    } /* for */
+
+    return null;
+  }
+
+  /**
+   * Returns the length of the payload once a content has been encrypted.
+   *
+   * @param contentLength the length of the content
+   * @return a {@code long} with the length of the payload
+   */
+  public static long getPayloadLength(long contentLength) {
+    long segments = Math.max(1, (contentLength + SEGMENT_LENGTH - 1) / SEGMENT_LENGTH);
+    return contentLength + segments * TAG_LENGTH;
+  }
+
+  /**
+   * Returns the length of the content carried by an encrypted payload.
+   *
+   * @param payloadLength the length of the payload
+   * @return a {@code long} with the length of the content, negative if the payload is too short to
+   *     carry one
+   */
+  public static long getContentLength(long payloadLength) {
+    long segments =
+        Math.max(1, (payloadLength + SEALED_SEGMENT_LENGTH - 1) / SEALED_SEGMENT_LENGTH);
+    return payloadLength - segments * TAG_LENGTH;
+  }
+
+  /**
+   * Returns the length of the longest content whose encrypted payload fits in a given length.
+   *
+   * @param capacity the number of bytes available for the payload
+   * @return a {@code long} with the maximum length of the content, negative if not even an empty
+   *     content fits
+   */
+  public static long getMaxContentLength(long capacity) {
+    long segments = capacity / SEALED_SEGMENT_LENGTH;
+    long rest = capacity % SEALED_SEGMENT_LENGTH;
+    if (segments == 0) {
+      return rest - TAG_LENGTH;
+    } /* if */
+
+    return segments * SEGMENT_LENGTH + Math.max(0, rest - TAG_LENGTH);
+  }
+
+  /**
+   * Wraps a stream so that reading from the returned stream gives the encrypted content.
+   *
+   * @param content the {@link InputStream} of the content, which is not closed
+   * @param key the {@link SecretKey} encrypting the content
+   * @param noncePrefix the random prefix of the nonces, never used twice with the same key
+   * @param associatedData the data authenticated along with each segment
+   * @return an {@link InputStream} of the encrypted content
+   * @throws IOException if the cipher is not available
+   */
+  public InputStream encrypt(
+      InputStream content, SecretKey key, byte[] noncePrefix, byte[] associatedData)
+      throws IOException {
+    return new EncryptingInputStream(content, new Segments(key, noncePrefix, associatedData));
+  }
+
+  /**
+   * Wraps a stream so that the encrypted content written to the returned stream is authenticated
+   * and decrypted into it, segment by segment.
+   *
+   * @param content the {@link OutputStream} where the content is written, which is not closed
+   * @param key the {@link SecretKey} the content was encrypted with
+   * @param noncePrefix the prefix of the nonces the content was encrypted with
+   * @param associatedData the data authenticated along with each segment
+   * @return an {@link OutputStream} for the encrypted content, which must be closed to write the
+   *     last segment
+   * @throws IOException if the cipher is not available
+   */
+  public OutputStream decrypt(
+      OutputStream content, SecretKey key, byte[] noncePrefix, byte[] associatedData)
+      throws IOException {
+    return new DecryptingOutputStream(content, new Segments(key, noncePrefix, associatedData));
+  }
+
+  /** Seals and opens the segments of a payload, one after the other. */
+  private final class Segments {
+    private final Cipher cipher;
+    private final SecretKey key;
+    private final byte[] nonce = new byte[NONCE_PREFIX_LENGTH + Integer.BYTES];
+    private final byte[] associatedData;
+    private long index;
+
+    private Segments(SecretKey key, byte[] noncePrefix, byte[] associatedData) throws IOException {
+      try {
+        this.cipher = Cipher.getInstance(transformation);
+      } catch (GeneralSecurityException e) {
+        throw new IOException("The cipher " + transformation + " is not available", e);
+      }
+      this.key = key;
+      this.associatedData = associatedData;
+      System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+    }
+
+    /**
+     * Seals or opens the next segment.
+     *
+     * @return the number of bytes written to {@code output}
+     */
+    private int next(int mode, byte[] input, int length, byte[] output, boolean last)
+        throws IOException {
+      if (index == MAX_SEGMENTS) {
+        throw new IOException("The payload has too many segments to be encrypted");
+      } /* if */
+
+      long start = System.nanoTime();
+      ByteBuffer.wrap(nonce, NONCE_PREFIX_LENGTH, Integer.BYTES).putInt((int) index++);
+      try {
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * Byte.SIZE, nonce));
+        cipher.updateAAD(associatedData);
+        cipher.updateAAD(new byte[] {(byte) (last ? 1 : 0)});
+        return cipher.doFinal(input, 0, length, output, 0);
+      } catch (AEADBadTagException e) {
+        throw new IOException(
+            "The message cannot be decrypted, the passphrase is wrong or the message has been modified");
+      } catch (GeneralSecurityException e) {
+        throw new IOException("The payload cannot be processed by the cipher", e);
+      } finally {
+        Metrics.record(
+            mode == Cipher.ENCRYPT_MODE ? Metrics.Phase.ENCRYPT : Metrics.Phase.DECRYPT,
+            start,
+            length);
+      }
+    }
+  }
+
+  /** Stream encrypting the content read from another stream, segment by segment. */
+  private static final class EncryptingInputStream extends InputStream {
+    private final InputStream in;
+    private final Segments segments;
+
+    // Not borrowed from the BufferPool, so that no plaintext ends up in arrays used by others
+    private final byte[] content = new byte[SEGMENT_LENGTH];
+    private final byte[] sealed = new byte[SEALED_SEGMENT_LENGTH];
+    private int sealedLength;
+    private int position;
+    private int lookahead = -1;
+    private boolean ended;
+
+    private EncryptingInputStream(InputStream in, Segments segments) {
+      this.in = in;
+      this.segments = segments;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      } /* if */
+
+      if (position == sealedLength) {
+        if (ended) {
+          return -1;
+        } /* if */
+        sealNextSegment();
+      } /* if */
+
+      int n = Math.min(len, sealedLength - position);
+      System.arraycopy(sealed, position, b, off, n);
+      position += n;
+      return n;
+    }
+
+    private void sealNextSegment() throws IOException {
+      int length = 0;
+      if (lookahead >= 0) {
+        content[length++] = (byte) lookahead;
+      } /* if */
+      length += in.readNBytes(content, length, SEGMENT_LENGTH - length);
+
+      // A full segment is the last one only if nothing follows it
+      lookahead = length == SEGMENT_LENGTH ? in.read() : -1;
+      ended = lookahead < 0;
+
+      sealedLength = segments.next(Cipher.ENCRYPT_MODE, content, length, sealed, ended);
+      position = 0;
+    }
+  }
+
+  /** Stream decrypting the payload written to it into another stream, segment by segment. */
+  private static final class DecryptingOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final Segments segments;
+
+    // Not borrowed from the BufferPool, so that no plaintext ends up in arrays used by others
+    private final byte[] sealed = new byte[SEALED_SEGMENT_LENGTH];
+    private final byte[] content = new byte[SEGMENT_LENGTH];
+    private int sealedLength;
+    private boolean closed;
+
+    private DecryptingOutputStream(OutputStream out, Segments segments) {
+      this.out = out;
+      this.segments = segments;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        // A full segment followed by more bytes is not the last one
+        if (sealedLength == SEALED_SEGMENT_LENGTH) {
+          openSegment(false);
+        } /* if */
+
+        int n = Math.min(len, SEALED_SEGMENT_LENGTH - sealedLength);
+        System.arraycopy(b, off, sealed, sealedLength, n);
+        sealedLength += n;
+        off += n;
+        len -= n;
+      } /* while */
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      } /* if */
+      closed = true;
+
+      if (sealedLength < TAG_LENGTH) {
+        throw new IOException("The encrypted payload is truncated");
+      } /* if */
+      openSegment(true);
+    }
+
+    private void openSegment(boolean last) throws IOException {
+      int length = segments.next(Cipher.DECRYPT_MODE, sealed, sealedLength, content, last);
+      out.write(content, 0, length);
+      sealedLength = 0;
+    }
+  }
+}
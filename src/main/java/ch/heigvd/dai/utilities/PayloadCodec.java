@@ -0,0 +1,123 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Codecs compressing a payload before it is hidden, recorded in its {@link MessageHeader} so that
+ * it is decompressed when it is exposed.
+ *
+ * <p>The codecs work on streams, so that the payload is compressed while it is read and
+ * decompressed while it is written, chunk by chunk. The streams they return never close the stream
+ * they wrap, only the resources of the codec itself.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public enum PayloadCodec {
+  /**
+   * Raw DEFLATE stream (RFC 1951), without zlib or gzip wrapper, using the JDK {@link Deflater}.
+   */
+  DEFLATE(1) {
+    @Override
+    public InputStream compress(InputStream content) {
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      return new DeflaterInputStream(content, deflater, MessageManipulator.STREAM_CHUNK_SIZE) {
+        @Override
+        public void close() {
+          deflater.end();
+        }
+      };
+    }
+
+    @Override
+    public OutputStream decompress(OutputStream content) {
+      Inflater inflater = new Inflater(true);
+      return new InflaterOutputStream(content, inflater, MessageManipulator.STREAM_CHUNK_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            finish();
+            if (!inflater.finished()) {
+              throw new IOException("The compressed payload is truncated");
+            } /* if */
+          } finally {
+            inflater.end();
+          }
+        }
+      };
+    }
+  };
+
+  private final int id;
+
+  PayloadCodec(int id) {
+    this.id = id;
+  }
+
+  /**
+   * Returns the identifier of the codec in a {@link MessageHeader}.
+   *
+   * @return an {@code int} identifying the codec
+   */
+  public int getId() {
+    return id;
+  }
+
+  /**
+   * Returns the codec with the given identifier.
+   *
+   * @param id the identifier read from a {@link MessageHeader}
+   * @return the {@link PayloadCodec}, or {@code null} if the identifier is unknown
+   */
+  public static PayloadCodec fromId(int id) {
+    for (PayloadCodec codec : values()) {
+      if (codec.id == id) {
+        return codec;
+      } /* if */
+    } /* for */
+
+    return null;
+  }
+
+  /**
+   * Wraps a stream so that reading from the returned stream gives the compressed content.
+   *
+   * @param content the {@link InputStream} of the content, which is not closed
+   * @return an {@link InputStream} of the compressed content, which must be closed
+   */
+  public abstract InputStream compress(InputStream content);
+
+  /**
+   * Wraps a stream so that the compressed content written to the returned stream is decompressed
+   * into it.
+   *
+   * @param content the {@link OutputStream} where the content is written, which is not closed
+   * @return an {@link OutputStream} for the compressed content, which must be closed to write the
+   *     end of the content
+   */
+  public abstract OutputStream decompress(OutputStream content);
+}
@@ -0,0 +1,301 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Implements a pipeline processing items through successive stages, each stage having its own
+ * threads and being connected to the next one by a bounded queue.
+ *
+ * <p>A stage whose next queue is full waits until the next stage takes an item, and the items are
+ * only fed to the first stage as fast as it takes them: this backpressure bounds the number of
+ * items in flight to the number of threads plus the capacity of the queues, whatever the number of
+ * items. Stages waiting on the disk can run on virtual threads and stages using the CPU on a fixed
+ * number of platform threads.
+ *
+ * <p>An item failing in a stage skips the next stages. Every item is handed once to the {@link
+ * Completion} of the pipeline, when it has gone through all the stages or when it has failed, so
+ * that its resources can be released. The time each stage spends working, waiting for an item and
+ * waiting for room in the next queue is reported once the pipeline has run.
+ *
+ * @param <T> the type of the items, which carry their state from one stage to the next
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public class Pipeline<T> {
+
+  /**
+   * Work done by a stage on an item.
+   *
+   * @param <T> the type of the items
+   */
+  @FunctionalInterface
+  public interface Stage<T> {
+
+    /**
+     * Processes an item.
+     *
+     * @param item the item to process
+     * @throws Exception if the item failed, in which case it skips the next stages
+     */
+    void process(T item) throws Exception;
+  }
+
+  /**
+   * Called once for each item leaving the pipeline.
+   *
+   * @param <T> the type of the items
+   */
+  @FunctionalInterface
+  public interface Completion<T> {
+
+    /**
+     * Handles an item leaving the pipeline, from the thread of the stage it leaves.
+     *
+     * @param item the item
+     * @param error the {@link Exception} that made it fail, or {@code null} if it went through all
+     *     the stages
+     */
+    void complete(T item, Exception error);
+  }
+
+  /**
+   * Activity of a stage during a run of the pipeline.
+   *
+   * @param name the name of the stage
+   * @param threads the number of threads of the stage
+   * @param items the number of items processed by the stage, failed or not
+   * @param busyNanos the time spent processing items, summed over the threads
+   * @param idleNanos the time spent waiting for an item, summed over the threads
+   * @param blockedNanos the time spent waiting for room in the next queue, summed over the threads
+   */
+  public record StageReport(
+      String name, int threads, long items, long busyNanos, long idleNanos, long blockedNanos) {
+
+    /**
+     * Returns the share of the time of the threads spent processing items.
+     *
+     * @param elapsedNanos the duration of the run
+     * @return a {@code double} between 0 and 1
+     */
+    public double utilisation(long elapsedNanos) {
+      return elapsedNanos == 0 ? 0 : (double) busyNanos / ((double) elapsedNanos * threads);
+    }
+  }
+
+  private static final Object END = new Object();
+
+  private final List<StageSpec<T>> stages = new ArrayList<>();
+  private final int queueCapacity;
+  private final Completion<T> completion;
+
+  /**
+   * Main constructor.
+   *
+   * @param queueCapacity the capacity of the queue before each stage
+   * @param completion the {@link Completion} handling the items leaving the pipeline
+   * @throws IllegalArgumentException if the capacity is not positive
+   */
+  public Pipeline(int queueCapacity, Completion<T> completion) throws IllegalArgumentException {
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("The capacity of the queues must be positive");
+    } /* if */
+
+    this.queueCapacity = queueCapacity;
+    this.completion = completion;
+  }
+
+  /**
+   * Appends a stage to the pipeline.
+   *
+   * @param name the name of the stage, used by its report
+   * @param threads the number of threads of the stage
+   * @param virtual whether the threads are virtual threads, for stages waiting on I/O, or platform
+   *     threads, for stages using the CPU
+   * @param stage the {@link Stage} to run on each item
+   * @return the same {@link Pipeline}
+   * @throws IllegalArgumentException if the number of threads is not positive
+   */
+  public Pipeline<T> addStage(String name, int threads, boolean virtual, Stage<T> stage)
+      throws IllegalArgumentException {
+    if (threads < 1) {
+      throw new IllegalArgumentException("The number of threads of a stage must be positive");
+    } /* if */
+
+    stages.add(new StageSpec<>(name, threads, virtual, stage));
+    return this;
+  }
+
+  /**
+   * Returns the maximum number of items in flight, i.e. taken from the iterator but not yet handed
+   * to the {@link Completion}.
+   *
+   * @return an {@code int} with the number of threads plus the capacity of the queues
+   */
+  public int getMaxItemsInFlight() {
+    int items = 0;
+    for (StageSpec<T> stage : stages) {
+      items += stage.threads() + queueCapacity;
+    } /* for */
+    return items;
+  }
+
+  /**
+   * Runs all the items through the pipeline, the calling thread feeding the first stage.
+   *
+   * @param items the {@link Iterator} of the items, only advanced when the first queue has room
+   * @return the {@link StageReport} of each stage, in the order of the stages
+   * @throws InterruptedException if the calling thread is interrupted, in which case the threads of
+   *     the stages are interrupted too
+   */
+  public List<StageReport> run(Iterator<T> items) throws InterruptedException {
+    List<BlockingQueue<Object>> queues = new ArrayList<>(stages.size());
+    for (int i = 0; i < stages.size(); ++i) {
+      queues.add(new ArrayBlockingQueue<>(queueCapacity));
+    } /* for */
+
+    List<Worker> workers = new ArrayList<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < stages.size(); ++i) {
+      StageSpec<T> spec = stages.get(i);
+      Worker worker =
+          new Worker(
+              spec,
+              queues.get(i),
+              i + 1 < stages.size() ? queues.get(i + 1) : null,
+              i + 1 < stages.size() ? stages.get(i + 1).threads() : 0);
+      workers.add(worker);
+
+      Thread.Builder builder =
+          spec.virtual()
+              ? Thread.ofVirtual().name("shadow-" + spec.name() + "-", 0)
+              : Thread.ofPlatform().name("shadow-" + spec.name() + "-", 0).daemon();
+      for (int t = 0; t < spec.threads(); ++t) {
+        threads.add(builder.start(worker));
+      } /* for */
+    } /* for */
+
+    try {
+      BlockingQueue<Object> first = queues.getFirst();
+      while (items.hasNext()) {
+        first.put(items.next());
+      } /* while */
+      for (int t = 0; t < stages.getFirst().threads(); ++t) {
+        first.put(END);
+      } /* for */
+
+      for (Thread thread : threads) {
+        thread.join();
+      } /* for */
+    } catch (InterruptedException e) {
+      for (Thread thread : threads) {
+        thread.interrupt();
+      } /* for */
+      throw e;
+    } /* try */
+
+    List<StageReport> reports = new ArrayList<>(workers.size());
+    for (Worker worker : workers) {
+      reports.add(worker.report());
+    } /* for */
+    return reports;
+  }
+
+  private record StageSpec<T>(String name, int threads, boolean virtual, Stage<T> stage) {}
+
+  /** Loop run by each thread of a stage, until the end of the items. */
+  private class Worker implements Runnable {
+    private final StageSpec<T> spec;
+    private final BlockingQueue<Object> input;
+    private final BlockingQueue<Object> output;
+    private final int nextThreads;
+    private final AtomicInteger running;
+    private final LongAdder items = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder idle = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+
+    Worker(
+        StageSpec<T> spec,
+        BlockingQueue<Object> input,
+        BlockingQueue<Object> output,
+        int nextThreads) {
+      this.spec = spec;
+      this.input = input;
+      this.output = output;
+      this.nextThreads = nextThreads;
+      this.running = new AtomicInteger(spec.threads());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() {
+      try {
+        while (true) {
+          long start = System.nanoTime();
+          Object next = input.take();
+          long taken = System.nanoTime();
+          idle.add(taken - start);
+          if (next == END) {
+            break;
+          } /* if */
+
+          T item = (T) next;
+          Exception error = null;
+          try {
+            spec.stage().process(item);
+          } catch (Exception e) {
+            error = e;
+          } /* try */
+          long processed = System.nanoTime();
+          busy.add(processed - taken);
+          items.increment();
+
+          if (error != null || output == null) {
+            completion.complete(item, error);
+          } else {
+            output.put(item);
+            blocked.add(System.nanoTime() - processed);
+          } /* if */
+        } /* while */
+
+        // The last thread of the stage ends the next one, once all the items have been passed on
+        if (running.decrementAndGet() == 0 && output != null) {
+          for (int t = 0; t < nextThreads; ++t) {
+            output.put(END);
+          } /* for */
+        } /* if */
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } /* try */
+    }
+
+    StageReport report() {
+      return new StageReport(
+          spec.name(), spec.threads(), items.sum(), busy.sum(), idle.sum(), blocked.sum());
+    }
+  }
+}
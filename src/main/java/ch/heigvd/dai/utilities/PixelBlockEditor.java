@@ -0,0 +1,44 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Defines an operation working directly on blocks of the pixel array of a {@link BmpFile},
+ * scattered among the bytes carrying a message.
+ *
+ * <p>See {@link BmpFile#editBlocks(long[], int, int, PixelBlockEditor)} for the ownership rules of
+ * the buffer.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@FunctionalInterface
+public interface PixelBlockEditor {
+
+  /**
+   * Works on one block of the bytes of the pixel array carrying a message.
+   *
+   * @param pixels a {@link ByteBuffer} holding the block, which may hold other bytes around it
+   * @param pixelIndex the index in {@code pixels} of the first byte of the block
+   * @param block the index of the block in the array of offsets given to the {@link BmpFile}
+   */
+  void edit(ByteBuffer pixels, int pixelIndex, int block);
+}
@@ -0,0 +1,41 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Defines an operation working directly on the pixel array of a {@link BmpFile}.
+ *
+ * <p>See {@link BmpFile#editPixels(long, int, PixelEditor)} for the ownership rules of the buffer.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+@FunctionalInterface
+public interface PixelEditor {
+
+  /**
+   * Works on the bytes of the pixel array carrying a message.
+   *
+   * @param pixels a {@link ByteBuffer} with a range of the bytes carrying a message, starting at
+   *     index 0
+   */
+  void edit(ByteBuffer pixels);
+}
@@ -0,0 +1,301 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import static ch.heigvd.dai.utilities.BmpFile.*;
+
+import ch.heigvd.dai.exceptions.MessageManipulationException;
+import ch.heigvd.dai.kernels.EmbeddingKernel;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Implements the layout of a payload scattered over the whole pixel array of a bitmap image (see
+ * {@link MessageHeader#FLAG_SCATTERED}), rather than hidden in its first bytes.
+ *
+ * <p>The bytes carrying a message that follow the {@link MessageHeader} are split in blocks of
+ * {@value #MIN_BLOCK_LENGTH} to {@value #MAX_BLOCK_LENGTH} bytes, from a cache line to a page, and
+ * the payload is hidden block by block in the order given by a permutation of the blocks seeded by
+ * the header. Inside a block, the payload is hidden as it would be in the first bytes, so the
+ * kernels still work on contiguous memory. The permutation is a Feistel network on the smallest
+ * power of 4 holding all the blocks, walked again until it lands on a block of the image, so no
+ * table of the blocks is ever built.
+ *
+ * <p>The blocks holding a range of the payload are accessed in the order of their position in the
+ * pixel array, through a single access to the range holding them (see {@link
+ * BmpFile#editBlocks(long[], int, int, PixelBlockEditor)}), so the memory and the file are still
+ * walked forward.
+ *
+ * <p>Instances reuse their arrays from one range to the next and must not be shared by threads.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+final class ScatterLayout {
+
+  /** Length of the smallest blocks, a cache line. */
+  static final int MIN_BLOCK_LENGTH = 64;
+
+  /** Length of the biggest blocks, a page. */
+  static final int MAX_BLOCK_LENGTH = 4096;
+
+  // Blocks are made smaller, down to a cache line, until the image has at least as many blocks
+  private static final int MIN_BLOCK_COUNT = 256;
+  // Blocks past this count are left unused, so that the permutation works on ints
+  private static final int MAX_BLOCK_COUNT = 1 << 30;
+  private static final int ROUNDS = 4;
+  private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+  private final int bitsPerByte;
+  private final int pixelsPerMessageByte;
+  private final int payloadStart;
+  private final int carrierStart;
+  private final int blockLength;
+  private final int blockPayloadLength;
+  private final int blockCount;
+  private final long capacity;
+  private final long seed;
+  private final int halfBits;
+  private final int halfMask;
+
+  // Blocks of the current range, sorted by position in the pixel array
+  private long[] sortKeys = new long[0];
+  private long[] offsets = new long[0];
+  private int[] pixelIndexes = new int[0];
+  private int[] partIndexes = new int[0];
+  private int[] partLengths = new int[0];
+
+  /**
+   * Main constructor.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param bitsPerByte the number of message bits stored per data byte
+   * @param payloadStart the position in the message where the payload starts, right after the
+   *     header
+   * @param blockLength the number of bytes carrying a message in each block
+   * @param seed the seed of the permutation of the blocks
+   * @throws MessageManipulationException if the length of the blocks is not supported, or if the
+   *     image has not a single block after the header
+   */
+  ScatterLayout(BmpFile bmpFile, int bitsPerByte, int payloadStart, int blockLength, long seed)
+      throws MessageManipulationException {
+    if (!isValidBlockLength(blockLength)) {
+      throw new MessageManipulationException("Invalid scatter block length");
+    } /* if */
+
+    this.bitsPerByte = bitsPerByte;
+    this.pixelsPerMessageByte = MAX_BITS_PER_BYTE / bitsPerByte;
+    this.payloadStart = payloadStart;
+    this.carrierStart = payloadStart * pixelsPerMessageByte;
+    this.blockLength = blockLength;
+    this.blockPayloadLength = blockLength / pixelsPerMessageByte;
+    this.blockCount =
+        (int)
+            Math.min(
+                Math.max(0, bmpFile.getCarrierLength() - carrierStart) / blockLength,
+                MAX_BLOCK_COUNT);
+    if (blockCount == 0) {
+      // The permutation would walk forever looking for a block of the image
+      throw new MessageManipulationException("Not enough space to scatter message in data");
+    } /* if */
+    this.capacity =
+        Math.max(
+            0,
+            Math.min(
+                (long) blockCount * blockPayloadLength,
+                bmpFile.getCapacity(bitsPerByte) - payloadStart));
+    this.seed = seed;
+
+    int bits = 32 - Integer.numberOfLeadingZeros(Math.max(blockCount - 1, 1));
+    this.halfBits = (bits + 1) / 2;
+    this.halfMask = (1 << halfBits) - 1;
+  }
+
+  /**
+   * Checks whether a length of the blocks is supported.
+   *
+   * @param blockLength the number of bytes carrying a message in each block
+   * @return {@code true} if it is a power of 2 between {@value #MIN_BLOCK_LENGTH} and {@value
+   *     #MAX_BLOCK_LENGTH}, {@code false} if not
+   */
+  static boolean isValidBlockLength(int blockLength) {
+    return blockLength >= MIN_BLOCK_LENGTH
+        && blockLength <= MAX_BLOCK_LENGTH
+        && Integer.bitCount(blockLength) == 1;
+  }
+
+  /**
+   * Chooses the length of the blocks of a payload: a page, or less for images too small to have
+   * enough pages to spread the payload over.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param bitsPerByte the number of message bits stored per data byte
+   * @param payloadStart the position in the message where the payload starts
+   * @return an {@code int} with the number of bytes carrying a message in each block
+   */
+  static int chooseBlockLength(BmpFile bmpFile, int bitsPerByte, int payloadStart) {
+    long region =
+        bmpFile.getCarrierLength() - (long) payloadStart * (MAX_BITS_PER_BYTE / bitsPerByte);
+    int blockLength = MAX_BLOCK_LENGTH;
+    while (blockLength > MIN_BLOCK_LENGTH && region / blockLength < MIN_BLOCK_COUNT) {
+      blockLength /= 2;
+    } /* while */
+    return blockLength;
+  }
+
+  /**
+   * Returns how many payload bytes the blocks can hold, the bytes after the last whole block being
+   * left unused.
+   *
+   * @return a {@code long} with the maximum length of the payload
+   */
+  long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Hides a part of a message at a given position of the message, block by block.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param position the position of the part in the whole message, in the payload
+   * @param part an array starting with the part of the message to hide
+   * @param length the length of the part
+   * @param kernel the {@link EmbeddingKernel} doing the bit manipulation
+   * @throws IOException if the pixel array of a mapped file cannot be accessed
+   */
+  void embed(BmpFile bmpFile, long position, byte[] part, int length, EmbeddingKernel kernel)
+      throws IOException {
+    int count = locate(position, length);
+    bmpFile.editBlocks(
+        offsets,
+        count,
+        blockLength,
+        (pixels, pixelIndex, block) ->
+            kernel.embed(
+                pixels,
+                pixelIndex + pixelIndexes[block],
+                part,
+                partIndexes[block],
+                partLengths[block],
+                bitsPerByte));
+  }
+
+  /**
+   * Extracts a part of a message at a given position of the message, block by block.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param position the position of the part in the whole message, in the payload
+   * @param part an array where the part of the message is written to, from its start
+   * @param length the length of the part
+   * @param kernel the {@link EmbeddingKernel} doing the bit manipulation
+   * @throws IOException if the pixel array of a mapped file cannot be accessed
+   */
+  void extract(BmpFile bmpFile, long position, byte[] part, int length, EmbeddingKernel kernel)
+      throws IOException {
+    int count = locate(position, length);
+    bmpFile.readBlocks(
+        offsets,
+        count,
+        blockLength,
+        (pixels, pixelIndex, block) ->
+            kernel.extract(
+                pixels,
+                pixelIndex + pixelIndexes[block],
+                part,
+                partIndexes[block],
+                partLengths[block],
+                bitsPerByte));
+  }
+
+  /**
+   * Finds the blocks holding a range of the payload and sorts them by position in the pixel array.
+   *
+   * @param position the position of the range in the whole message
+   * @param length the length of the range
+   * @return the number of blocks holding the range
+   */
+  private int locate(long position, int length) {
+    if (length == 0) {
+      return 0;
+    } /* if */
+
+    long start = position - payloadStart;
+    long end = start + length;
+    int first = (int) (start / blockPayloadLength);
+    int count = (int) ((end - 1) / blockPayloadLength + 1 - first);
+    if (sortKeys.length < count) {
+      sortKeys = new long[count];
+      offsets = new long[count];
+      pixelIndexes = new int[count];
+      partIndexes = new int[count];
+      partLengths = new int[count];
+    } /* if */
+
+    for (int index = 0; index < count; ++index) {
+      sortKeys[index] = (long) permute(first + index) << Integer.SIZE | index;
+    } /* for */
+    Arrays.sort(sortKeys, 0, count);
+
+    for (int block = 0; block < count; ++block) {
+      int index = (int) sortKeys[block];
+      long blockStart = (long) (first + index) * blockPayloadLength;
+      long partStart = Math.max(start, blockStart);
+      long partEnd = Math.min(end, blockStart + blockPayloadLength);
+      offsets[block] = carrierStart + (sortKeys[block] >>> Integer.SIZE) * blockLength;
+      pixelIndexes[block] = (int) (partStart - blockStart) * pixelsPerMessageByte;
+      partIndexes[block] = (int) (partStart - start);
+      partLengths[block] = (int) (partEnd - partStart);
+    } /* for */
+
+    return count;
+  }
+
+  /**
+   * Returns the block of the image holding a block of the payload.
+   *
+   * @param index the index of the block in the payload
+   * @return an {@code int} with the index of the block in the image
+   */
+  int permute(int index) {
+    int block = index;
+    do {
+      int left = block >>> halfBits;
+      int right = block & halfMask;
+      for (int round = 0; round < ROUNDS; ++round) {
+        int mixed = left ^ ((int) mix((seed + round * GOLDEN_GAMMA) ^ right) & halfMask);
+        left = right;
+        right = mixed;
+      } /* for */
+      block = left << halfBits | right;
+    } while (block >= blockCount);
+    return block;
+  }
+
+  /**
+   * Mixes the bits of a value, with the finalizer of SplitMix64.
+   *
+   * @param value the value to mix
+   * @return a {@code long} whose bits all depend on every bit of {@code value}
+   */
+  private static long mix(long value) {
+    long mixed = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+    mixed = (mixed ^ (mixed >>> 27)) * 0x94D049BB133111EBL;
+    return mixed ^ (mixed >>> 31);
+  }
+}
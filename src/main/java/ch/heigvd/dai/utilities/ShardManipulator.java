@@ -0,0 +1,359 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import ch.heigvd.dai.exceptions.MessageManipulationException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Implements the logic necessary to split a message across several bitmap images, and to expose it
+ * back from them.
+ *
+ * <p>Each image carries a shard of the message, hidden after a {@link MessageHeader} giving the
+ * index of the shard, the number of shards and the offset of the shard in the message. The shards
+ * can therefore be exposed in any order, concurrently, each one being written at its offset in the
+ * output file: a shard failing to be exposed does not prevent the others from being written.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public class ShardManipulator {
+
+  private final MessageManipulator messageManipulator;
+
+  /**
+   * Main constructor.
+   *
+   * @param messageManipulator the {@link MessageManipulator} hiding and exposing each shard
+   */
+  public ShardManipulator(MessageManipulator messageManipulator) {
+    this.messageManipulator = messageManipulator;
+  }
+
+  /**
+   * Returns how many message bytes can be hidden in a bitmap image as a shard.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param bitsPerByte number of bits per data byte
+   * @return a {@code long} with the maximum length of a shard, which may be negative if the image
+   *     cannot even hold the header of a shard
+   */
+  public static long getShardCapacity(BmpFile bmpFile, int bitsPerByte) {
+    return getShardCapacity(bmpFile, bitsPerByte, MessageHeader.forShard(0, 0, 1, 0, 0));
+  }
+
+  /**
+   * Returns how many message bytes can be hidden in a bitmap image as a shard with the given
+   * optional fields, taking into account the tags added by a {@link PayloadCipher} but not the
+   * compression by a {@link PayloadCodec}.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param bitsPerByte number of bits per data byte
+   * @param header a {@link MessageHeader} of a shard, with the same optional fields as the shards
+   * @return a {@code long} with the maximum length of a shard, which may be negative if the image
+   *     cannot even hold the header of a shard
+   */
+  public static long getShardCapacity(BmpFile bmpFile, int bitsPerByte, MessageHeader header) {
+    return MessageManipulator.getMessageCapacity(bmpFile, bitsPerByte, header);
+  }
+
+  /**
+   * Splits a message between images in proportion to their capacity, so that every image is
+   * modified to the same extent.
+   *
+   * @param messageLength the length of the message
+   * @param capacities the capacity of each image, as returned by {@link #getShardCapacity(BmpFile,
+   *     int)}
+   * @return the length of the shard hidden in each image
+   * @throws MessageManipulationException if the images cannot hold the message
+   */
+  public static long[] splitMessage(long messageLength, long[] capacities)
+      throws MessageManipulationException {
+    long totalCapacity = 0;
+    for (long capacity : capacities) {
+      if (capacity < 0) {
+        throw new MessageManipulationException("An image is too small to hold a shard");
+      } /* if */
+      totalCapacity += capacity;
+    } /* for */
+
+    if (messageLength > totalCapacity) {
+      throw new MessageManipulationException("Not enough space to hide message in data");
+    } /* if */
+
+    // The product of two lengths beyond 3 GB overflows a long
+    long[] lengths = new long[capacities.length];
+    long remaining = messageLength;
+    BigInteger total = BigInteger.valueOf(Math.max(totalCapacity, 1));
+    for (int i = 0; i < capacities.length; ++i) {
+      lengths[i] =
+          BigInteger.valueOf(messageLength)
+              .multiply(BigInteger.valueOf(capacities[i]))
+              .divide(total)
+              .longValue();
+      remaining -= lengths[i];
+    } /* for */
+
+    // Rounding down leaves less than one byte per image to distribute
+    for (int i = 0; remaining > 0; ++i) {
+      if (lengths[i] < capacities[i]) {
+        ++lengths[i];
+        --remaining;
+      } /* if */
+    } /* for */
+
+    return lengths;
+  }
+
+  /**
+   * Hides the next shard of a message read from a stream inside the pixel array of a bitmap file.
+   *
+   * @param bmpFile the parsed bitmap file from a {@link BmpFile} instance
+   * @param message the {@link InputStream} to read the message from, positioned at the start of the
+   *     shard
+   * @param bitsPerByte the number of message bits to store per data byte
+   * @param header the {@link MessageHeader} of the shard, created by {@link
+   *     MessageHeader#forShard(long, int, int, long, long)}, with the {@link PayloadCodec}
+   *     compressing the shard and the {@link PayloadCipher} encrypting it if any, and with a
+   *     checksum if needed
+   * @param length the length of the shard, before compression and encryption
+   * @throws MessageManipulationException if the shard does not fit in the pixel array or if the
+   *     message ends before the shard
+   * @throws IOException if the message cannot be read or if the pixel array of a mapped file cannot
+   *     be accessed
+   */
+  public void hideShard(
+      BmpFile bmpFile, InputStream message, int bitsPerByte, MessageHeader header, long length)
+      throws MessageManipulationException, IOException {
+    long contentLength =
+        messageManipulator.hideMessage(
+            bmpFile, new BoundedInputStream(message, length), bitsPerByte, header);
+    if (contentLength != length) {
+      throw new MessageManipulationException("The message is shorter than expected");
+    } /* if */
+  }
+
+  /**
+   * Reads the headers of shards and checks that they belong to the same message.
+   *
+   * <p>Only the start of the pixel array of each image is accessed.
+   *
+   * @param shardPaths the paths to the bitmap images carrying the shards, in any order
+   * @param requireAll whether all the shards of the message must be provided
+   * @return the {@link MessageHeader} of each shard, in the same order as the paths
+   * @throws MessageManipulationException if an image does not carry a shard or if the shards are
+   *     not coherent
+   * @throws IOException if an image cannot be read
+   */
+  public MessageHeader[] readShardHeaders(List<String> shardPaths, boolean requireAll)
+      throws MessageManipulationException, IOException {
+    MessageHeader[] headers = new MessageHeader[shardPaths.size()];
+
+    for (int i = 0; i < headers.length; ++i) {
+      try (BmpFile bmpFile = new BmpFile(shardPaths.get(i), BmpFile.Backend.MAPPED)) {
+        if (bmpFile.hasMessageHeader()) {
+          headers[i] = messageManipulator.readMessageHeader(bmpFile);
+        } /* if */
+      }
+
+      if (headers[i] == null || !headers[i].isShard()) {
+        throw new MessageManipulationException(shardPaths.get(i) + " does not carry a shard");
+      } /* if */
+    } /* for */
+
+    boolean[] present = new boolean[headers[0].getShardCount()];
+    for (int i = 0; i < headers.length; ++i) {
+      if (headers[i].getShardSetId() != headers[0].getShardSetId()
+          || headers[i].getShardCount() != headers[0].getShardCount()
+          || headers[i].getTotalLength() != headers[0].getTotalLength()) {
+        throw new MessageManipulationException(
+            shardPaths.get(i) + " carries a shard of another message than " + shardPaths.get(0));
+      } /* if */
+
+      if (present[headers[i].getShardIndex()]) {
+        throw new MessageManipulationException(
+            "Shard " + headers[i].getShardIndex() + " is provided several times");
+      } /* if */
+      present[headers[i].getShardIndex()] = true;
+    } /* for */
+
+    if (requireAll && headers.length != present.length) {
+      List<Integer> missing = new ArrayList<>();
+      for (int index = 0; index < present.length; ++index) {
+        if (!present[index]) {
+          missing.add(index);
+        } /* if */
+      } /* for */
+      throw new MessageManipulationException(
+          "The message is split into "
+              + present.length
+              + " shards, shards "
+              + missing
+              + " are missing");
+    } /* if */
+
+    return headers;
+  }
+
+  /**
+   * Exposes shards concurrently, each one being written at its offset in the output file.
+   *
+   * <p>Each shard is exposed by its own virtual thread. A shard failing does not stop the others.
+   *
+   * @param shardPaths the paths to the bitmap images carrying the shards
+   * @param headers the headers of the shards, as returned by {@link #readShardHeaders(List,
+   *     boolean)}
+   * @param backend the {@link BmpFile.Backend} used to open the images
+   * @param output the {@link FileChannel} of the output file, opened for writing
+   * @return the exception thrown for each shard that failed, by path, empty if all shards were
+   *     exposed
+   * @throws InterruptedException if the thread is interrupted while waiting for the shards
+   */
+  public Map<String, Exception> exposeShards(
+      List<String> shardPaths, MessageHeader[] headers, BmpFile.Backend backend, FileChannel output)
+      throws InterruptedException {
+    List<Future<Long>> results = new ArrayList<>(headers.length);
+
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < headers.length; ++i) {
+        String shardPath = shardPaths.get(i);
+        MessageHeader header = headers[i];
+        results.add(
+            executor.submit(
+                () -> {
+                  try (BmpFile bmpFile = new BmpFile(shardPath, backend)) {
+                    return messageManipulator.exposePayload(
+                        bmpFile,
+                        header,
+                        new PositionalOutputStream(output, header.getShardOffset()));
+                  }
+                }));
+      } /* for */
+    }
+
+    Map<String, Exception> failures = new LinkedHashMap<>();
+    for (int i = 0; i < headers.length; ++i) {
+      try {
+        results.get(i).get();
+      } catch (ExecutionException e) {
+        failures.put(shardPaths.get(i), e.getCause() instanceof Exception cause ? cause : e);
+      } /* try */
+    } /* for */
+
+    return failures;
+  }
+
+  /** Stream reading at most a given number of bytes from another stream, without closing it. */
+  private static class BoundedInputStream extends FilterInputStream {
+    private long remaining;
+
+    BoundedInputStream(InputStream in, long length) {
+      super(in);
+      remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      } /* if */
+
+      int b = in.read();
+      if (b >= 0) {
+        --remaining;
+      } /* if */
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return len == 0 ? 0 : -1;
+      } /* if */
+
+      int n = in.read(b, off, (int) Math.min(len, remaining));
+      if (n > 0) {
+        remaining -= n;
+      } /* if */
+      return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      // The underlying stream is shared by the shards
+    }
+  }
+
+  /** Stream writing to a file from a given position, without moving the file's own position. */
+  private static class PositionalOutputStream extends OutputStream {
+    private final FileChannel channel;
+    private long position;
+
+    PositionalOutputStream(FileChannel channel, long position) {
+      this.channel = channel;
+      this.position = position;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      long start = System.nanoTime();
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      } /* while */
+      Metrics.record(Metrics.Phase.WRITE_MESSAGE, start, len);
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.kernels;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+/**
+ * Checks that every {@link EmbeddingKernel} produces exactly the same pixels and messages as the
+ * reference {@link ScalarKernel}.
+ *
+ * <p>The ranges start at unaligned pixel and message indexes and have lengths that leave tails
+ * shorter than a word of {@link SwarKernel} or a vector of {@link VectorKernel}, in heap and direct
+ * buffers.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+class KernelEquivalenceTest {
+
+  private static final int[] BITS_PER_BYTE = {1, 2, 4, 8};
+  private static final int[] PIXEL_INDEXES = {0, 1, 3, 7, 13, 64};
+  private static final int[] MESSAGE_INDEXES = {0, 1, 5};
+  private static final int[] LENGTHS = {0, 1, 2, 3, 7, 8, 9, 15, 31, 33, 63, 65, 127, 1000, 4099};
+  private static final int PADDING = 97; // Bytes around the range, which must stay untouched
+
+  private static final ScalarKernel REFERENCE = new ScalarKernel();
+  private static final ParallelKernel PARALLEL = new ParallelKernel(new SwarKernel(), 4);
+
+  @AfterAll
+  static void closeParallelKernel() {
+    PARALLEL.close();
+  }
+
+  static Stream<Arguments> kernels() {
+    List<Arguments> kernels = new ArrayList<>();
+    kernels.add(Arguments.of("swar", new SwarKernel()));
+    if (Kernels.isVectorAvailable()) {
+      kernels.add(Arguments.of("vector", new VectorKernel()));
+    }
+    kernels.add(Arguments.of("parallel", PARALLEL));
+    return kernels.stream();
+  }
+
+  @ParameterizedTest(name = "{0}")
+  @MethodSource("kernels")
+  void embedsLikeScalarKernel(String name, EmbeddingKernel kernel) {
+    Random random = new Random(42);
+    for (boolean direct : new boolean[] {false, true}) {
+      for (int bitsPerByte : BITS_PER_BYTE) {
+        for (int pixelIndex : PIXEL_INDEXES) {
+          for (int messageIndex : MESSAGE_INDEXES) {
+            for (int length : LENGTHS) {
+              assertSameEmbedding(
+                  kernel, random, direct, bitsPerByte, pixelIndex, messageIndex, length);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @ParameterizedTest(name = "{0}")
+  @MethodSource("kernels")
+  void extractsLikeScalarKernel(String name, EmbeddingKernel kernel) {
+    Random random = new Random(43);
+    for (boolean direct : new boolean[] {false, true}) {
+      for (int bitsPerByte : BITS_PER_BYTE) {
+        for (int pixelIndex : PIXEL_INDEXES) {
+          for (int messageIndex : MESSAGE_INDEXES) {
+            for (int length : LENGTHS) {
+              assertSameExtraction(
+                  kernel, random, direct, bitsPerByte, pixelIndex, messageIndex, length);
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  void parallelKernelSplitsBigRangesLikeScalarKernel() {
+    Random random = new Random(44);
+    // Above the threshold, with a length and indexes that are not multiples of the chunks
+    int length = ParallelKernel.PARALLEL_THRESHOLD + 12345;
+    for (int bitsPerByte : BITS_PER_BYTE) {
+      assertSameEmbedding(PARALLEL, random, false, bitsPerByte, 5, 3, length);
+      assertSameExtraction(PARALLEL, random, true, bitsPerByte, 5, 3, length);
+    }
+  }
+
+  @Test
+  void vectorKernelIsTestedWhenTheModuleIsAdded() {
+    assumeTrue(
+        ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent(),
+        "The tests run without '--add-modules jdk.incubator.vector'");
+    assertTrue(Kernels.isVectorAvailable());
+  }
+
+  private static void assertSameEmbedding(
+      EmbeddingKernel kernel,
+      Random random,
+      boolean direct,
+      int bitsPerByte,
+      int pixelIndex,
+      int messageIndex,
+      int length) {
+    int pixelLength = pixelIndex + length * (8 / bitsPerByte) + PADDING;
+    byte[] pixels = randomBytes(random, pixelLength);
+    byte[] message = randomBytes(random, messageIndex + length + PADDING);
+
+    ByteBuffer expected = copy(pixels, direct);
+    ByteBuffer actual = copy(pixels, direct);
+    REFERENCE.embed(expected, pixelIndex, message, messageIndex, length, bitsPerByte);
+    kernel.embed(actual, pixelIndex, message, messageIndex, length, bitsPerByte);
+
+    assertArrayEquals(
+        toArray(expected),
+        toArray(actual),
+        describe("embed", direct, bitsPerByte, pixelIndex, messageIndex, length));
+  }
+
+  private static void assertSameExtraction(
+      EmbeddingKernel kernel,
+      Random random,
+      boolean direct,
+      int bitsPerByte,
+      int pixelIndex,
+      int messageIndex,
+      int length) {
+    int pixelLength = pixelIndex + length * (8 / bitsPerByte) + PADDING;
+    ByteBuffer pixels = copy(randomBytes(random, pixelLength), direct);
+    byte[] initial = randomBytes(random, messageIndex + length + PADDING);
+
+    byte[] expected = initial.clone();
+    byte[] actual = initial.clone();
+    REFERENCE.extract(pixels, pixelIndex, expected, messageIndex, length, bitsPerByte);
+    kernel.extract(
+        pixels.asReadOnlyBuffer(), pixelIndex, actual, messageIndex, length, bitsPerByte);
+
+    assertArrayEquals(
+        expected,
+        actual,
+        describe("extract", direct, bitsPerByte, pixelIndex, messageIndex, length));
+  }
+
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static ByteBuffer copy(byte[] bytes, boolean direct) {
+    return direct
+        ? ByteBuffer.allocateDirect(bytes.length).put(0, bytes)
+        : ByteBuffer.wrap(bytes.clone());
+  }
+
+  private static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.capacity()];
+    buffer.get(0, bytes);
+    return bytes;
+  }
+
+  private static String describe(
+      String operation,
+      boolean direct,
+      int bitsPerByte,
+      int pixelIndex,
+      int messageIndex,
+      int length) {
+    return String.format(
+        "%s in a %s buffer, %d bits per byte, pixel index %d, message index %d, length %d",
+        operation, direct ? "direct" : "heap", bitsPerByte, pixelIndex, messageIndex, length);
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import ch.heigvd.dai.utilities.TestImages;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Runs commands through a {@link ShadowServer} with a {@link ShadowClient}, as {@code --connect}
+ * does.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+class ShadowServerTest {
+
+  @TempDir Path directory;
+
+  private final List<ShadowServer> servers = new ArrayList<>();
+  private final List<Thread> threads = new ArrayList<>();
+  private String home;
+
+  @BeforeEach
+  void setHome() {
+    // The token files are written in the home directory
+    home = System.getProperty("user.home");
+    System.setProperty("user.home", directory.toString());
+  }
+
+  @AfterEach
+  void stop() throws IOException, InterruptedException {
+    for (ShadowServer server : servers) {
+      server.close();
+    } /* for */
+    for (Thread thread : threads) {
+      thread.join();
+    } /* for */
+    System.setProperty("user.home", home);
+  }
+
+  @Test
+  void exposesEntryByName() throws IOException {
+    String socket = directory.resolve("shadow.sock").toString();
+    start(socket);
+    Path image = TestImages.create(directory.resolve("carrier.bmp"), 64, 64, 24, 0);
+    Path first = Files.writeString(directory.resolve("a.txt"), "first entry\n");
+    Path second = Files.writeString(directory.resolve("b.txt"), "second entry\n");
+    Path hidden = directory.resolve("hidden.bmp");
+    Path exposed = directory.resolve("exposed.txt");
+
+    assertEquals(
+        0,
+        ShadowClient.run(
+            socket,
+            new String[] {
+              image.toString(),
+              first.toString(),
+              "hide",
+              hidden.toString(),
+              "--entry",
+              second.toString()
+            }));
+    // The name is the name of an entry, not a path to resolve against the directory of the client
+    assertEquals(
+        0,
+        ShadowClient.run(
+            socket,
+            new String[] {hidden.toString(), exposed.toString(), "expose", "--name", "b.txt"}));
+
+    assertEquals("second entry\n", Files.readString(exposed));
+  }
+
+  @Test
+  void resolvesPathsAgainstClientDirectory() throws IOException {
+    String socket = directory.resolve("shadow.sock").toString();
+    start(socket);
+    TestImages.create(directory.resolve("carrier.bmp"), 64, 64, 24, 0);
+    Files.writeString(directory.resolve("a.txt"), "content\n");
+
+    String workingDirectory = System.getProperty("user.dir");
+    System.setProperty("user.dir", directory.toString());
+    try {
+      assertEquals(
+          0, ShadowClient.run(socket, new String[] {"carrier.bmp", "a.txt", "hide", "hidden.bmp"}));
+    } finally {
+      System.setProperty("user.dir", workingDirectory);
+    }
+
+    assertTrue(Files.exists(directory.resolve("hidden.bmp")));
+  }
+
+  @Test
+  void socketOnlyOpensToOwner() throws IOException {
+    assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+    Path socket = directory.resolve("shadow.sock");
+    start(socket.toString());
+
+    assertEquals(
+        PosixFilePermissions.fromString("rw-------"), Files.getPosixFilePermissions(socket));
+    // The directory the socket was created in is removed once it is moved
+    try (Stream<Path> files = Files.list(directory)) {
+      assertEquals(List.of(socket), files.toList());
+    }
+  }
+
+  @Test
+  void keepsExistingFileAtSocketPath() throws IOException {
+    Path socket = Files.writeString(directory.resolve("shadow.sock"), "not a socket");
+
+    assertThrows(IOException.class, () -> start(socket.toString()));
+    assertEquals("not a socket", Files.readString(socket));
+  }
+
+  @Test
+  void portNeedsToken() throws IOException {
+    ShadowServer server = start("0");
+    int port = ((InetSocketAddress) server.getAddress()).getPort();
+    Path image = TestImages.create(directory.resolve("carrier.bmp"), 16, 16, 24, 0);
+
+    assertEquals(
+        0, ShadowClient.run(String.valueOf(port), new String[] {"info", image.toString()}));
+    assertEquals(1, send(server, "not the token", "info", image.toString()));
+
+    server.close();
+    assertFalse(Files.exists(server.getTokenPath()));
+  }
+
+  private ShadowServer start(String address) throws IOException {
+    ShadowServer server = new ShadowServer(address, false);
+    servers.add(server);
+    threads.add(
+        Thread.ofPlatform()
+            .start(
+                () -> {
+                  try {
+                    server.serve();
+                  } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                  }
+                }));
+    return server;
+  }
+
+  /** Sends a command with a given token, returning the exit code answered by the server. */
+  private int send(ShadowServer server, String token, String... args) throws IOException {
+    try (SocketChannel channel = SocketChannel.open(server.getAddress())) {
+      DataOutputStream out = new DataOutputStream(Protocol.outputStream(channel));
+      out.writeInt(Protocol.VERSION);
+      out.writeUTF(token);
+      out.writeUTF(directory.toString());
+      out.writeInt(args.length);
+      for (String arg : args) {
+        out.writeUTF(arg);
+      } /* for */
+
+      DataInputStream in =
+          new DataInputStream(new BufferedInputStream(Protocol.inputStream(channel)));
+      while (true) {
+        byte type = in.readByte();
+        if (type == Protocol.EXIT) {
+          return in.readInt();
+        } /* if */
+        in.skipNBytes(in.readInt());
+      } /* while */
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks the CRC-32C combinations of {@link Crc32c} against a CRC-32C computed over the whole data.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+class Crc32cTest {
+
+  private static final int ROUNDS = 500;
+
+  @Test
+  void appendMatchesFullChecksum() {
+    Random random = new Random(1);
+    for (int round = 0; round < ROUNDS; ++round) {
+      byte[] data = randomBytes(random, random.nextInt(2000));
+      int split = random.nextInt(data.length + 1);
+
+      int crc = Crc32c.append(checksum(data, 0, split), data, split, data.length - split);
+      assertEquals(checksum(data, 0, data.length), crc, "split at " + split + "/" + data.length);
+    } /* for */
+  }
+
+  @Test
+  void replaceMatchesFullChecksum() {
+    Random random = new Random(2);
+    byte[] data = randomBytes(random, 5000);
+    int crc = checksum(data, 0, data.length);
+
+    for (int round = 0; round < ROUNDS; ++round) {
+      // Patches of any length, including empty ones and ones ending the data
+      int offset = random.nextInt(data.length + 1);
+      int length = random.nextInt(Math.min(300, data.length - offset) + 1);
+      byte[] previous = new byte[length];
+      System.arraycopy(data, offset, previous, 0, length);
+      byte[] replacement = randomBytes(random, length);
+
+      crc = Crc32c.replace(crc, previous, replacement, length, data.length - offset - length);
+      System.arraycopy(replacement, 0, data, offset, length);
+      assertEquals(checksum(data, 0, data.length), crc, "patch of " + length + " at " + offset);
+    } /* for */
+  }
+
+  @Test
+  void replaceAndAppendMatchFullChecksumOfGrowingData() {
+    Random random = new Random(3);
+    byte[] data = randomBytes(random, 100);
+    int crc = checksum(data, 0, data.length);
+
+    for (int round = 0; round < ROUNDS; ++round) {
+      // A chunk overwriting the end of the data and extending it, as written by an update
+      int offset = random.nextInt(data.length + 1);
+      byte[] chunk = randomBytes(random, 1 + random.nextInt(200));
+      int replaced = Math.min(chunk.length, data.length - offset);
+      byte[] previous = new byte[replaced];
+      System.arraycopy(data, offset, previous, 0, replaced);
+
+      crc = Crc32c.replace(crc, previous, chunk, replaced, data.length - offset - replaced);
+      crc = Crc32c.append(crc, chunk, replaced, chunk.length - replaced);
+
+      byte[] updated = new byte[Math.max(data.length, offset + chunk.length)];
+      System.arraycopy(data, 0, updated, 0, data.length);
+      System.arraycopy(chunk, 0, updated, offset, chunk.length);
+      data = updated;
+      assertEquals(checksum(data, 0, data.length), crc, "chunk of " + chunk.length);
+    } /* for */
+  }
+
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static int checksum(byte[] data, int offset, int length) {
+    CRC32C crc = new CRC32C();
+    crc.update(data, offset, length);
+    return (int) crc.getValue();
+  }
+}
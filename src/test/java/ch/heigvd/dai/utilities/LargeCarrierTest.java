@@ -0,0 +1,89 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Hides and exposes messages whose range of pixels is longer than an {@code int}, in a sparse
+ * bitmap image of more than 2 GiB.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+class LargeCarrierTest {
+
+  private static final int WIDTH = 32768;
+  private static final int HEIGHT = 22000;
+  private static final int HEADERS_LENGTH = 54; // Of the images of TestImages
+
+  // One bit per byte, so 8 bytes of pixels per byte of message: past 2^31 bytes of pixels
+  private static final int MESSAGE_LENGTH = (1 << 28) + 4099;
+
+  @TempDir Path directory;
+
+  @Test
+  void exposesMessageLongerThanIntPixelRange() throws IOException {
+    Path image = TestImages.createSparse(directory.resolve("carrier.bmp"), WIDTH, HEIGHT, 24);
+    // The last byte of the message, 0xA5, one bit per byte of pixels, MSb first
+    try (RandomAccessFile file = new RandomAccessFile(image.toFile(), "rw")) {
+      file.seek(HEADERS_LENGTH + (MESSAGE_LENGTH - 1L) * 8);
+      file.write(new byte[] {1, 0, 1, 0, 0, 1, 0, 1});
+    }
+    try (BmpFile bmpFile = new BmpFile(image.toString(), BmpFile.Backend.MAPPED, true)) {
+      bmpFile.setMessage(MESSAGE_LENGTH, 1);
+    }
+
+    byte[] message = new byte[MESSAGE_LENGTH];
+    try (BmpFile bmpFile = new BmpFile(image.toString(), BmpFile.Backend.MAPPED);
+        MessageManipulator messageManipulator = new MessageManipulator()) {
+      messageManipulator.exposeMessage(bmpFile, message);
+    }
+
+    assertEquals(0, message[0]);
+    assertEquals(0, message[MESSAGE_LENGTH - 2]);
+    assertEquals((byte) 0xA5, message[MESSAGE_LENGTH - 1]);
+  }
+
+  @Test
+  void hidesMessageLongerThanIntPixelRange() throws IOException {
+    Path image = TestImages.createSparse(directory.resolve("carrier.bmp"), WIDTH, HEIGHT, 24);
+    byte[] message = new byte[MESSAGE_LENGTH];
+    message[MESSAGE_LENGTH - 1] = (byte) 0xA5;
+
+    try (BmpFile bmpFile = new BmpFile(image.toString(), BmpFile.Backend.MAPPED, true);
+        MessageManipulator messageManipulator = new MessageManipulator()) {
+      messageManipulator.hideMessage(bmpFile, message, 1);
+    }
+
+    byte[] pixels = new byte[8];
+    try (RandomAccessFile file = new RandomAccessFile(image.toFile(), "r")) {
+      file.seek(HEADERS_LENGTH + (MESSAGE_LENGTH - 1L) * 8);
+      file.readFully(pixels);
+    }
+    assertArrayEquals(new byte[] {1, 0, 1, 0, 0, 1, 0, 1}, pixels);
+  }
+}
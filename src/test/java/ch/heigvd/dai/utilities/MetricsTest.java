@@ -0,0 +1,54 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks that the metrics of the whole process are only reported by the executions owning it.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+class MetricsTest {
+
+  @Test
+  void reportsProcessMetricsOfOwner() {
+    Metrics metrics = Metrics.start(true);
+    metrics.stop();
+
+    assertTrue(metrics.report(Metrics.Format.JSON, 0).contains("\"peakHeapBytes\""));
+    assertTrue(metrics.report(Metrics.Format.TEXT, 0).contains("Peak heap"));
+  }
+
+  @Test
+  void leavesOutProcessMetricsOfSharedProcess() {
+    Metrics metrics = Metrics.start(false);
+    metrics.stop();
+
+    String json = metrics.report(Metrics.Format.JSON, 0);
+    assertFalse(json.contains("\"peakHeapBytes\"") || json.contains("\"buffers\""));
+    assertTrue(json.startsWith("{") && json.endsWith("}}"));
+    String text = metrics.report(Metrics.Format.TEXT, 0);
+    assertFalse(text.contains("Peak heap") || text.contains("Buffers"));
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import ch.heigvd.dai.exceptions.MessageManipulationException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Checks that {@link ScatterLayout} spreads a payload over every block of the image exactly once,
+ * and that scattered messages are exposed as they were hidden.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+class ScatterLayoutTest {
+
+  private static final long[] SEEDS = {0, 1, -1, 0x123456789ABCDEFL};
+
+  @TempDir Path directory;
+
+  @ParameterizedTest(name = "{0} blocks")
+  @ValueSource(ints = {1, 2, 3, 4, 5, 15, 16, 17, 63, 255, 256, 257, 1000, 4097})
+  void permuteIsBijection(int blockCount) throws IOException {
+    // A single row of 24 bits pixels, long enough for the blocks and shorter than one more
+    int width = (blockCount * ScatterLayout.MIN_BLOCK_LENGTH + 2) / 3;
+    Path image = TestImages.create(directory.resolve("carrier.bmp"), width, 1, 24, blockCount);
+
+    try (BmpFile bmpFile = new BmpFile(image.toString(), BmpFile.Backend.HEAP)) {
+      for (long seed : SEEDS) {
+        ScatterLayout layout =
+            new ScatterLayout(bmpFile, 8, 0, ScatterLayout.MIN_BLOCK_LENGTH, seed);
+        BitSet blocks = new BitSet(blockCount);
+        for (int index = 0; index < blockCount; ++index) {
+          int block = layout.permute(index);
+          assertTrue(block >= 0 && block < blockCount, "block " + block + " out of the image");
+          assertTrue(!blocks.get(block), "block " + block + " used twice, seed " + seed);
+          blocks.set(block);
+        } /* for */
+        assertEquals(blockCount, blocks.cardinality());
+      } /* for */
+    }
+  }
+
+  @Test
+  void rejectsImageWithoutBlocks() throws IOException {
+    // 90 bytes carrying a message, a single block of the smallest length
+    Path image = TestImages.create(directory.resolve("carrier.bmp"), 30, 1, 24, 0);
+
+    try (BmpFile bmpFile = new BmpFile(image.toString(), BmpFile.Backend.HEAP)) {
+      assertEquals(
+          ScatterLayout.MIN_BLOCK_LENGTH,
+          new ScatterLayout(bmpFile, 8, 0, ScatterLayout.MIN_BLOCK_LENGTH, 0).getCapacity());
+      // A header of 8 bytes hidden 1 bit per byte leaves less than a block after it
+      assertThrows(
+          MessageManipulationException.class,
+          () -> new ScatterLayout(bmpFile, 1, 8, ScatterLayout.MIN_BLOCK_LENGTH, 0));
+    }
+  }
+
+  static Stream<Arguments> roundTrips() {
+    return IntStream.rangeClosed(6, 12)
+        .mapToObj(shift -> 1 << shift)
+        .flatMap(blockLength -> Stream.of(1, 8).map(bits -> Arguments.of(blockLength, bits)));
+  }
+
+  @ParameterizedTest(name = "blocks of {0} bytes, {1} bits per byte")
+  @MethodSource("roundTrips")
+  void exposesScatteredMessage(int blockLength, int bitsPerByte) throws IOException {
+    // Between 256 and 512 blocks of the expected length, so that they are chosen for the payload
+    int width = 256;
+    int height = (300 * blockLength + width * 3 - 1) / (width * 3);
+    Path image =
+        TestImages.create(directory.resolve("carrier.bmp"), width, height, 24, blockLength);
+
+    MessageHeader header = new MessageHeader();
+    header.setScattered(true);
+    byte[] content;
+    try (BmpFile bmpFile = new BmpFile(image.toString(), BmpFile.Backend.MAPPED, true);
+        MessageManipulator messageManipulator = new MessageManipulator()) {
+      // The whole capacity is used, up to the last byte of the last block
+      content = new byte[(int) MessageManipulator.getMessageCapacity(bmpFile, bitsPerByte, header)];
+      new Random(blockLength + bitsPerByte).nextBytes(content);
+      messageManipulator.hideMessage(
+          bmpFile, new ByteArrayInputStream(content), bitsPerByte, header);
+    }
+
+    try (BmpFile bmpFile = new BmpFile(image.toString(), BmpFile.Backend.HEAP);
+        MessageManipulator messageManipulator = new MessageManipulator()) {
+      assertEquals(
+          blockLength, messageManipulator.readMessageHeader(bmpFile).getScatterBlockLength());
+
+      ByteArrayOutputStream exposed = new ByteArrayOutputStream();
+      messageManipulator.exposeMessage(bmpFile, exposed);
+      assertArrayEquals(content, exposed.toByteArray());
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * Creates the bitmap images used by the tests, with random pixels.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+public final class TestImages {
+
+  private static final int HEADERS_LENGTH = 54; // File header and BITMAPINFOHEADER
+
+  private TestImages() {}
+
+  /**
+   * Writes an uncompressed bitmap image with random pixels.
+   *
+   * @param path the {@link Path} of the image to write
+   * @param width the width of the image, in pixels
+   * @param height the height of the image, in pixels
+   * @param bitsPerPixel 24 or 32
+   * @param seed the seed of the pixels
+   * @return the same {@link Path}
+   * @throws IOException if the image cannot be written
+   */
+  public static Path create(Path path, int width, int height, int bitsPerPixel, long seed)
+      throws IOException {
+    ByteBuffer headers = headers(width, height, bitsPerPixel);
+    byte[] pixels = new byte[(int) getPixelArrayLength(width, height, bitsPerPixel)];
+    new Random(seed).nextBytes(pixels);
+
+    ByteBuffer image = ByteBuffer.allocate(HEADERS_LENGTH + pixels.length);
+    image.put(headers).put(pixels);
+    return Files.write(path, image.array());
+  }
+
+  /**
+   * Writes an uncompressed bitmap image whose pixels are a hole of the file, all black, so that
+   * images of several GiB take no space on file systems supporting sparse files.
+   *
+   * @param path the {@link Path} of the image to write
+   * @param width the width of the image, in pixels
+   * @param height the height of the image, in pixels
+   * @param bitsPerPixel 24 or 32
+   * @return the same {@link Path}
+   * @throws IOException if the image cannot be written
+   */
+  public static Path createSparse(Path path, int width, int height, int bitsPerPixel)
+      throws IOException {
+    try (FileChannel file =
+        FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+      file.write(headers(width, height, bitsPerPixel));
+      // Writing the last byte extends the file without writing the bytes before it
+      long length = HEADERS_LENGTH + getPixelArrayLength(width, height, bitsPerPixel);
+      file.write(ByteBuffer.allocate(1), length - 1);
+    }
+    return path;
+  }
+
+  private static long getPixelArrayLength(int width, int height, int bitsPerPixel) {
+    return ((long) width * bitsPerPixel + 31) / 32 * 4 * height;
+  }
+
+  private static ByteBuffer headers(int width, int height, int bitsPerPixel) {
+    long pixelArrayLength = getPixelArrayLength(width, height, bitsPerPixel);
+    ByteBuffer headers = ByteBuffer.allocate(HEADERS_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    headers
+        .put((byte) 'B')
+        .put((byte) 'M')
+        .putInt((int) (HEADERS_LENGTH + pixelArrayLength)) // Wraps for images of 4 GiB and more
+        .putInt(0) // Reserved field, where the hidden message is described
+        .putInt(HEADERS_LENGTH)
+        .putInt(40)
+        .putInt(width)
+        .putInt(height)
+        .putShort((short) 1)
+        .putShort((short) bitsPerPixel)
+        .putInt(0) // BI_RGB
+        .putInt(pixelArrayLength > Integer.MAX_VALUE ? 0 : (int) pixelArrayLength)
+        .putInt(2835)
+        .putInt(2835)
+        .putInt(0)
+        .putInt(0);
+    return headers.flip();
+  }
+}
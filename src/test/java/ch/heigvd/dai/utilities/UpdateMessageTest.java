@@ -0,0 +1,116 @@
+/*
+ * shadow - a CLI tool to hide files inside BMP images
+ * Copyright (C) 2024 Pedro Alves da Silva, Gonçalo Carvalheiro Heleno
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package ch.heigvd.dai.utilities;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * Checks that {@link MessageManipulator#updateMessage(BmpFile, long, java.io.InputStream)} keeps
+ * the content and its checksum coherent through random patches and appends, each one written to the
+ * image in place.
+ *
+ * @author Pedro Alves da Silva
+ * @author Gonçalo Carvalheiro Heleno
+ */
+class UpdateMessageTest {
+
+  private static final int UPDATES = 40;
+
+  @TempDir Path directory;
+
+  @ParameterizedTest(name = "{0} pixels wide, {1} bits per byte, scattered: {2}")
+  @CsvSource({
+    "128, 1, false",
+    "128, 2, false",
+    "128, 4, true",
+    "128, 8, false",
+    "101, 1, false",
+    "101, 8, true",
+    "128, 2, true"
+  })
+  void storedChecksumMatchesUpdatedContent(int width, int bitsPerByte, boolean scattered)
+      throws IOException {
+    Path image = TestImages.create(directory.resolve("carrier.bmp"), width, 96, 24, width);
+    Random random = new Random(bitsPerByte * 31L + width);
+    byte[] content = randomBytes(random, 300);
+
+    MessageHeader header = new MessageHeader();
+    header.setChecksummed(true);
+    header.setScattered(scattered);
+    try (BmpFile bmpFile = new BmpFile(image.toString(), BmpFile.Backend.MAPPED, true);
+        MessageManipulator messageManipulator = new MessageManipulator()) {
+      messageManipulator.hideMessage(
+          bmpFile, new ByteArrayInputStream(content), bitsPerByte, header);
+    }
+
+    for (int update = 0; update < UPDATES; ++update) {
+      boolean append = random.nextInt(4) == 0;
+      int offset = append ? content.length : random.nextInt(content.length + 1);
+      byte[] patch = randomBytes(random, 1 + random.nextInt(append ? 20 : 120));
+
+      try (BmpFile bmpFile = new BmpFile(image.toString(), BmpFile.Backend.MAPPED, true);
+          MessageManipulator messageManipulator = new MessageManipulator()) {
+        messageManipulator.updateMessage(bmpFile, offset, new ByteArrayInputStream(patch));
+      }
+      content = Arrays.copyOf(content, Math.max(content.length, offset + patch.length));
+      System.arraycopy(patch, 0, content, offset, patch.length);
+
+      // The header is read again from the file, as written by the update
+      try (BmpFile bmpFile = new BmpFile(image.toString(), BmpFile.Backend.HEAP);
+          MessageManipulator messageManipulator = new MessageManipulator()) {
+        MessageHeader stored = messageManipulator.readMessageHeader(bmpFile);
+        String description = "update " + update + ", " + patch.length + " bytes at " + offset;
+        assertEquals(content.length, stored.getPayloadLength(), description);
+        assertEquals(checksum(content), stored.getChecksum(), description);
+      }
+    } /* for */
+
+    // Exposing checks the checksum once more, along with the content itself
+    try (BmpFile bmpFile = new BmpFile(image.toString(), BmpFile.Backend.HEAP);
+        MessageManipulator messageManipulator = new MessageManipulator()) {
+      ByteArrayOutputStream exposed = new ByteArrayOutputStream();
+      messageManipulator.exposeMessage(bmpFile, exposed);
+      assertArrayEquals(content, exposed.toByteArray());
+    }
+  }
+
+  private static byte[] randomBytes(Random random, int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static int checksum(byte[] content) {
+    CRC32C crc = new CRC32C();
+    crc.update(content);
+    return (int) crc.getValue();
+  }
+}